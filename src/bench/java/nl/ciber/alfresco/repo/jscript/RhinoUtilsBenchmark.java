@@ -0,0 +1,63 @@
+package nl.ciber.alfresco.repo.jscript;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of large JavaScript parameters, as done when a job is started
+ * with a big {@code items} array.
+ *
+ * @author Bulat Yaminov
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RhinoUtilsBenchmark {
+
+    @Param({"100000"})
+    public int size;
+
+    private ScriptableObject params;
+    private Map<String, Object> paramsMap;
+
+    @Setup
+    public void setUp() {
+        Context cx = Context.enter();
+        ScriptableObject scope = cx.initStandardObjects();
+        Object[] items = new Object[size];
+        for (int i = 0; i < size; i++) {
+            items[i] = "item-" + i;
+        }
+        NativeArray array = (NativeArray) cx.newArray(scope, items);
+        params = (ScriptableObject) cx.newObject(scope);
+        params.put("items", params, array);
+        for (int i = 0; i < 20; i++) {
+            params.put("param" + i, params, i);
+        }
+        paramsMap = RhinoUtils.convertToMap(params);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public Map<String, Object> convertToMap() {
+        return RhinoUtils.convertToMap(params);
+    }
+
+    @Benchmark
+    public List<Object> getArray() {
+        return RhinoUtils.getArray(paramsMap, "items");
+    }
+}
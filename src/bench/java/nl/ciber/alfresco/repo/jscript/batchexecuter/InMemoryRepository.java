@@ -0,0 +1,189 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.rule.RuleService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * Folder tree kept in memory, with just enough of {@link NodeService}, {@link DictionaryService}
+ * and {@link ServiceRegistry} implemented for work providers and workers to run without
+ * a database. Any other service method throws {@link UnsupportedOperationException}.
+ *
+ * @author Bulat Yaminov
+ */
+public class InMemoryRepository {
+
+    private final Map<NodeRef, QName> types = new HashMap<>();
+    private final Map<NodeRef, List<ChildAssociationRef>> children = new HashMap<>();
+    private final Map<NodeRef, ChildAssociationRef> parents = new HashMap<>();
+    private final NodeRef root;
+
+    private final NodeService nodeService;
+    private final DictionaryService dictionaryService;
+    private final ServiceRegistry serviceRegistry;
+    private final InMemoryTransactions transactions = new InMemoryTransactions();
+
+    /**
+     * Builds a tree where each folder has {@code fanOut} children, folders at all levels
+     * but the last one, which has documents.
+     *
+     * @param fanOut number of children of each folder.
+     * @param depth number of levels below the root.
+     */
+    public InMemoryRepository(int fanOut, int depth) {
+        this(fanOut, depth, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds the tree level by level and stops when it has {@code maxNodes} nodes,
+     * so the last levels may be only partly filled.
+     */
+    public InMemoryRepository(int fanOut, int depth, int maxNodes) {
+        root = newNode(ContentModel.TYPE_FOLDER, null);
+        List<NodeRef> level = Collections.singletonList(root);
+        for (int d = 1; d <= depth && types.size() < maxNodes; d++) {
+            QName type = d < depth ? ContentModel.TYPE_FOLDER : ContentModel.TYPE_CONTENT;
+            List<NodeRef> next = new ArrayList<>();
+            for (NodeRef parent : level) {
+                for (int i = 0; i < fanOut && types.size() < maxNodes; i++) {
+                    next.add(newNode(type, parent));
+                }
+            }
+            level = next;
+        }
+
+        nodeService = stub(NodeService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "exists":
+                        return types.containsKey(args[0]);
+                    case "getType":
+                        return types.get(args[0]);
+                    case "getPrimaryParent":
+                        return parents.get(args[0]);
+                    case "getChildAssocs":
+                        List<ChildAssociationRef> assocs = children.get(args[0]);
+                        return assocs == null ? Collections.<ChildAssociationRef>emptyList() : assocs;
+                    case "getProperty":
+                        return ContentModel.PROP_NAME.equals(args[1]) ? ((NodeRef) args[0]).getId() : null;
+                    case "getProperties":
+                        Map<QName, Serializable> properties = new HashMap<>();
+                        properties.put(ContentModel.PROP_NAME, ((NodeRef) args[0]).getId());
+                        return properties;
+                    default:
+                        return unsupported(proxy, method);
+                }
+            }
+        });
+        dictionaryService = stub(DictionaryService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("isSubClass")) {
+                    return args[0].equals(args[1]);
+                }
+                return unsupported(proxy, method);
+            }
+        });
+        final RuleService ruleService = stub(RuleService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                // Rules are never run in memory
+                return null;
+            }
+        });
+        serviceRegistry = stub(ServiceRegistry.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getNodeService":
+                        return nodeService;
+                    case "getDictionaryService":
+                        return dictionaryService;
+                    case "getRuleService":
+                        return ruleService;
+                    case "getTransactionService":
+                        return transactions.getTransactionService();
+                    case "getNamespaceService":
+                        // Only needed to resolve prefixed names, which benchmarks do not use
+                        return null;
+                    default:
+                        return unsupported(proxy, method);
+                }
+            }
+        });
+    }
+
+    private NodeRef newNode(QName type, NodeRef parent) {
+        NodeRef node = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "n" + types.size());
+        types.put(node, type);
+        if (parent != null) {
+            QName name = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, node.getId());
+            ChildAssociationRef assoc = new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, parent, name, node);
+            parents.put(node, assoc);
+            List<ChildAssociationRef> siblings = children.get(parent);
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                children.put(parent, siblings);
+            }
+            siblings.add(assoc);
+        }
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(InMemoryRepository.class.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    private static Object unsupported(Object proxy, Method method) {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return method.getDeclaringClass().getSimpleName() + " stand-in";
+            }
+        }
+        throw new UnsupportedOperationException(method.getName() + " is not available in memory");
+    }
+
+    public NodeRef getRoot() {
+        return root;
+    }
+
+    public int size() {
+        return types.size();
+    }
+
+    public NodeService getNodeService() {
+        return nodeService;
+    }
+
+    public DictionaryService getDictionaryService() {
+        return dictionaryService;
+    }
+
+    public InMemoryTransactions getTransactions() {
+        return transactions;
+    }
+
+    public ServiceRegistry getServiceRegistry() {
+        return serviceRegistry;
+    }
+}
@@ -0,0 +1,156 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.transaction.TransactionService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transaction service stand-in for {@link InMemoryRepository}. Transactions only drive Spring
+ * transaction synchronization, so that transaction resources and listeners work as in the
+ * repository, and record how long each transaction took.
+ *
+ * @author Bulat Yaminov
+ */
+public class InMemoryTransactions {
+
+    private final TransactionService transactionService;
+    private final List<Long> durationsNanos = Collections.synchronizedList(new ArrayList<Long>());
+
+    public InMemoryTransactions() {
+        transactionService = (TransactionService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{TransactionService.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getRetryingTransactionHelper":
+                        RetryingTransactionHelper helper = new RetryingTransactionHelper();
+                        helper.setTransactionService(transactionService);
+                        helper.setMaxRetries(20);
+                        return helper;
+                    case "getUserTransaction":
+                    case "getNonPropagatingUserTransaction":
+                        boolean readOnly = args != null && args.length > 0 && (Boolean) args[0];
+                        return new InMemoryUserTransaction(readOnly);
+                    case "isReadOnly":
+                        return false;
+                    case "getAllowWrite":
+                        return true;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "TransactionService stand-in";
+                    default:
+                        throw new UnsupportedOperationException(method.getName() + " is not available in memory");
+                }
+            }
+        });
+    }
+
+    public TransactionService getTransactionService() {
+        return transactionService;
+    }
+
+    /**
+     * @return durations of all finished transactions in nanoseconds, and forgets them.
+     */
+    public List<Long> takeDurations() {
+        synchronized (durationsNanos) {
+            List<Long> durations = new ArrayList<>(durationsNanos);
+            durationsNanos.clear();
+            return durations;
+        }
+    }
+
+    private class InMemoryUserTransaction implements UserTransaction {
+
+        private final boolean readOnly;
+        private int status = Status.STATUS_NO_TRANSACTION;
+        private long started;
+
+        private InMemoryUserTransaction(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        @Override
+        public void begin() {
+            TransactionSynchronizationManager.initSynchronization();
+            TransactionSynchronizationManager.setActualTransactionActive(true);
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+            status = Status.STATUS_ACTIVE;
+            started = System.nanoTime();
+        }
+
+        @Override
+        public void commit() {
+            if (status == Status.STATUS_MARKED_ROLLBACK) {
+                rollback();
+                throw new IllegalStateException("Transaction was marked for rollback");
+            }
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            try {
+                for (TransactionSynchronization synchronization : synchronizations) {
+                    synchronization.beforeCommit(readOnly);
+                }
+            } catch (RuntimeException e) {
+                rollback();
+                throw e;
+            }
+            for (TransactionSynchronization synchronization : synchronizations) {
+                synchronization.beforeCompletion();
+            }
+            for (TransactionSynchronization synchronization : synchronizations) {
+                synchronization.afterCommit();
+            }
+            finish(synchronizations, Status.STATUS_COMMITTED, TransactionSynchronization.STATUS_COMMITTED);
+        }
+
+        @Override
+        public void rollback() {
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            for (TransactionSynchronization synchronization : synchronizations) {
+                synchronization.beforeCompletion();
+            }
+            finish(synchronizations, Status.STATUS_ROLLEDBACK, TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+
+        private void finish(List<TransactionSynchronization> synchronizations, int newStatus, int completion) {
+            try {
+                for (TransactionSynchronization synchronization : synchronizations) {
+                    synchronization.afterCompletion(completion);
+                }
+            } finally {
+                TransactionSynchronizationManager.clearSynchronization();
+                TransactionSynchronizationManager.setActualTransactionActive(false);
+                TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+                status = newStatus;
+                durationsNanos.add(System.nanoTime() - started);
+            }
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            status = Status.STATUS_MARKED_ROLLBACK;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void setTransactionTimeout(int seconds) {
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptableObject;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs whole jobs through {@link ScriptBatchExecuter} and the Alfresco batch processor against
+ * a synthetic {@link InMemoryRepository}, and writes items per second, heap high-water and batch
+ * latency percentiles of each scenario to a JSON report.
+ *
+ * Exits with status 1 if throughput of any scenario dropped more than the tolerance below the
+ * baseline report, so that the build fails on regressions. Baselines depend on the machine, so
+ * without one the check is skipped with a warning and only the report is written.
+ *
+ * Arguments, all optional: {@code --nodes 100000 --fanOut 10 --depth 6 --items 100000
+ * --threads 4 --batchSize 200 --report harness-report.json --baseline harness-baseline.json
+ * --tolerance 0.2 --saveBaseline --noBaseline}.
+ *
+ * @author Bulat Yaminov
+ */
+public class LoadHarness {
+
+    private static final Pattern BASELINE_LINE = Pattern.compile(
+            "\"name\":\\s*\"([^\"]+)\".*\"itemsPerSec\":\\s*([0-9.]+)");
+
+    private final Map<String, String> options;
+    private final InMemoryRepository repository;
+    private final ScriptBatchExecuter executer;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+
+    public LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.repository = new InMemoryRepository(getInt("fanOut", 10), getInt("depth", 6), getInt("nodes", 100000));
+        StaticApplicationContext applicationContext = new StaticApplicationContext();
+        applicationContext.refresh();
+        this.executer = new ScriptBatchExecuter();
+        executer.setServiceRegistry(repository.getServiceRegistry());
+        executer.setApplicationContext(applicationContext);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+                options.put(args[i].substring(2), hasValue ? args[++i] : "true");
+            }
+        }
+        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getAdminUserName());
+        LoadHarness harness = new LoadHarness(options);
+        harness.runAll();
+        int status = harness.report() ? 0 : 1;
+        System.exit(status);
+    }
+
+    private void runAll() {
+        String common = String.format("threads: %d, batchSize: %d", getInt("threads", 4), getInt("batchSize", 200));
+        String onNode = "onNode: function(node) { var id = node.id; }";
+        String onBatch = "onBatch: function(batch) { var ids = []; " +
+                "for (var i = 0; i < batch.length; i++) { ids.push(batch[i].id); } return ids; }";
+        String items = "var items = []; for (var i = 0; i < " + getInt("items", 100000) + "; i++) { items.push('item-' + i); }\n";
+        String onItem = "onNode: function(item) { var s = item.length; }";
+        String onItems = "onBatch: function(batch) { var s = 0; " +
+                "for (var i = 0; i < batch.length; i++) { s += batch[i].length; } return [s]; }";
+
+        run("folder-onNode", repository.size(),
+                "batchExecuter.processFolderRecursively({root: root, " + common + ", " + onNode + "});");
+        run("folder-onBatch", repository.size(),
+                "batchExecuter.processFolderRecursively({root: root, " + common + ", " + onBatch + "});");
+        run("array-onNode", getInt("items", 100000),
+                items + "batchExecuter.processArray({items: items, " + common + ", " + onItem + "});");
+        run("array-onBatch", getInt("items", 100000),
+                items + "batchExecuter.processArray({items: items, " + common + ", " + onItems + "});");
+    }
+
+    private void run(String name, int itemsCount, String script) {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        repository.getTransactions().takeDurations();
+
+        Context cx = Context.enter();
+        long started = System.nanoTime();
+        try {
+            ScriptableObject scope = cx.initStandardObjects();
+            executer.setScope(scope);
+            ScriptableObject.putProperty(scope, "batchExecuter", Context.javaToJS(executer, scope));
+            ScriptableObject.putProperty(scope, "root", Context.javaToJS(
+                    new ScriptNode(repository.getRoot(), repository.getServiceRegistry(), scope), scope));
+            cx.evaluateString(scope, script, name, 1, null);
+        } finally {
+            Context.exit();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            heapPeak += pool.getPeakUsage().getUsed();
+        }
+        List<Long> durations = repository.getTransactions().takeDurations();
+        Collections.sort(durations);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", name);
+        result.put("items", itemsCount);
+        result.put("seconds", round(seconds));
+        result.put("itemsPerSec", round(itemsCount / seconds));
+        result.put("heapPeakMb", heapPeak / (1024 * 1024));
+        result.put("batches", durations.size());
+        result.put("batchP50Ms", percentileMs(durations, 0.5));
+        result.put("batchP95Ms", percentileMs(durations, 0.95));
+        result.put("batchP99Ms", percentileMs(durations, 0.99));
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Writes the report and compares it with the baseline.
+     *
+     * @return false if throughput regressed.
+     */
+    private boolean report() throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format("  \"nodes\": %d,\n  \"threads\": %d,\n  \"batchSize\": %d,\n",
+                repository.size(), getInt("threads", 4), getInt("batchSize", 200)));
+        json.append("  \"scenarios\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            // One scenario per line keeps the report easy to compare
+            json.append("    {");
+            Iterator<Map.Entry<String, Object>> it = results.get(i).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Object> entry = it.next();
+                Object value = entry.getValue();
+                json.append('"').append(entry.getKey()).append("\": ")
+                        .append(value instanceof String ? "\"" + value + "\"" : value);
+                if (it.hasNext()) {
+                    json.append(", ");
+                }
+            }
+            json.append(i < results.size() - 1 ? "},\n" : "}\n");
+        }
+        json.append("  ]\n}\n");
+
+        File report = new File(getString("report", "target/harness-report.json"));
+        write(report, json.toString());
+        System.out.println("Report written to " + report.getAbsolutePath());
+
+        File baseline = new File(getString("baseline", "harness-baseline.json"));
+        if (options.containsKey("saveBaseline")) {
+            write(baseline, json.toString());
+            System.out.println("Baseline saved to " + baseline.getAbsolutePath());
+            return true;
+        }
+        if (options.containsKey("noBaseline")) {
+            System.out.println("Baseline check skipped");
+            return true;
+        }
+        if (!baseline.exists()) {
+            System.out.println("WARNING: no baseline at " + baseline.getAbsolutePath() + ", throughput is not " +
+                    "checked; run with --saveBaseline to create it");
+            return true;
+        }
+
+        double tolerance = Double.parseDouble(getString("tolerance", "0.2"));
+        boolean passed = true;
+        for (String line : Files.readAllLines(baseline.toPath(), StandardCharsets.UTF_8)) {
+            Matcher matcher = BASELINE_LINE.matcher(line);
+            if (!matcher.find()) {
+                continue;
+            }
+            double expected = Double.parseDouble(matcher.group(2));
+            for (Map<String, Object> result : results) {
+                if (result.get("name").equals(matcher.group(1))) {
+                    double actual = (Double) result.get("itemsPerSec");
+                    if (actual < expected * (1 - tolerance)) {
+                        System.out.println(String.format("REGRESSION in %s: %.1f items/sec, baseline %.1f",
+                                matcher.group(1), actual, expected));
+                        passed = false;
+                    }
+                }
+            }
+        }
+        return passed;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static double percentileMs(List<Long> sortedNanos, double percentile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int index = Math.min(sortedNanos.size() - 1, (int) Math.ceil(percentile * sortedNanos.size()) - 1);
+        return round(sortedNanos.get(Math.max(0, index)) / 1e6);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private int getInt(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private String getString(String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+}
@@ -0,0 +1,94 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.CancellableWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.CollectionWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.FolderBrowsingWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.NodeConverter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast work providers assemble batches, without converting nodes for JavaScript.
+ * Each invocation drains a whole provider, so scores are per job.
+ *
+ * @author Bulat Yaminov
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorkProvidersBenchmark {
+
+    /** Gives node references as they are, to measure the providers alone */
+    private static final NodeConverter RAW_CONVERTER = new NodeConverter() {
+        @Override
+        public List<Object> convert(List<NodeRef> nodes) {
+            return new ArrayList<Object>(nodes);
+        }
+    };
+
+    @Param({"200"})
+    public int batchSize;
+
+    @Param({"10"})
+    public int fanOut;
+
+    @Param({"4"})
+    public int depth;
+
+    private InMemoryRepository repository;
+    private List<Object> items;
+    private BatchJobParameters job;
+    private FolderBrowsingWorkProviderFactory folderFactory;
+
+    @Setup
+    public void setUp() {
+        repository = new InMemoryRepository(fanOut, depth);
+        items = new ArrayList<>(repository.size());
+        for (int i = 0; i < repository.size(); i++) {
+            items.add(i);
+        }
+        job = new BatchJobParameters() {};
+        job.setBatchSize(batchSize);
+        job.getFilter().bind(repository.getServiceRegistry());
+        job.getTraversal().bind(repository.getServiceRegistry());
+        folderFactory = new FolderBrowsingWorkProviderFactory(repository.getServiceRegistry(), RAW_CONVERTER,
+                null, LogFactory.getLog(WorkProvidersBenchmark.class));
+    }
+
+    @Benchmark
+    public void collectionNodes(Blackhole blackhole) {
+        drain(CollectionWorkProviderFactory.getInstance().newNodesWorkProvider(items, job), blackhole);
+    }
+
+    @Benchmark
+    public void collectionBatches(Blackhole blackhole) {
+        drain(CollectionWorkProviderFactory.getInstance().newBatchesWorkProvider(items, job), blackhole);
+    }
+
+    @Benchmark
+    public void folderNodes(Blackhole blackhole) {
+        drain(folderFactory.newNodesWorkProvider(repository.getRoot(), job), blackhole);
+    }
+
+    @Benchmark
+    public void folderBatches(Blackhole blackhole) {
+        drain(folderFactory.newBatchesWorkProvider(repository.getRoot(), job), blackhole);
+    }
+
+    private static <T> void drain(CancellableWorkProvider<T> provider, Blackhole blackhole) {
+        Collection<T> work;
+        while (!(work = provider.getNextWork()).isEmpty()) {
+            blackhole.consume(work);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.ProcessBatchWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.ProcessNodeWorker;
+import org.alfresco.repo.jscript.BaseScopableProcessorExtension;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of calling JavaScript functions from workers, once per item with
+ * {@code onNode} against once per batch with {@code onBatch}. Scores are per batch.
+ *
+ * @author Bulat Yaminov
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorkersBenchmark {
+
+    @Param({"200"})
+    public int batchSize;
+
+    private List<Object> batch;
+    private ProcessNodeWorker nodeWorker;
+    private ProcessBatchWorker batchWorker;
+
+    @Setup
+    public void setUp() {
+        Context cx = Context.enter();
+        ScriptableObject scope = cx.initStandardObjects();
+        Function onNode = cx.compileFunction(scope,
+                "function(item) { return item + 1; }", "onNode", 1, null);
+        Function onBatch = cx.compileFunction(scope,
+                "function(items) { var r = []; for (var i = 0; i < items.length; i++) { r.push(items[i] + 1); } " +
+                "return r; }", "onBatch", 1, null);
+
+        InMemoryRepository repository = new InMemoryRepository(1, 1);
+        BatchJobParameters job = new BatchJobParameters() {};
+        Log logger = LogFactory.getLog(WorkersBenchmark.class);
+        BaseScopableProcessorExtension scopable = new BaseScopableProcessorExtension();
+        nodeWorker = new ProcessNodeWorker(onNode, scope, "admin", job, repository.getServiceRegistry(),
+                null, logger, scopable);
+        batchWorker = new ProcessBatchWorker(onBatch, scope, "admin", job, repository.getServiceRegistry(),
+                null, logger, scopable);
+
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public void callPerItem() throws Throwable {
+        for (Object item : batch) {
+            nodeWorker.doProcess(item);
+        }
+    }
+
+    @Benchmark
+    public void callPerBatch() throws Throwable {
+        batchWorker.doProcess(batch);
+    }
+}
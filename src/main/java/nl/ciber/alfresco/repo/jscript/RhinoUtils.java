@@ -1,6 +1,7 @@
 package nl.ciber.alfresco.repo.jscript;
 
 import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.mozilla.javascript.*;
 
 import java.util.*;
@@ -91,6 +92,45 @@ public class RhinoUtils {
         return result;
     }
 
+    public static String getString(Map<String, Object> map, String key, String defaultValue) {
+        String result = defaultValue;
+        if (map.get(key) != null) {
+            if (map.get(key) instanceof CharSequence) {
+                result = map.get(key).toString();
+            } else {
+                throw new IllegalArgumentException(key + " must be a string, but is instead: " + map.get(key));
+            }
+        }
+        return result;
+    }
+
+    public static Map<String, Object> getMap(Map<String, Object> map, String key) {
+        Map<String, Object> result = null;
+        Object value = map.get(key);
+        if (value != null) {
+            if (value instanceof ScriptableObject && !(value instanceof NativeArray) && !(value instanceof Function)) {
+                result = convertToMap((ScriptableObject) value);
+            } else {
+                throw new IllegalArgumentException(key + " must be an object, but is instead: " + value);
+            }
+        }
+        return result;
+    }
+
+    public static List<String> getStrings(Map<String, Object> map, String key) {
+        List<String> result = new ArrayList<>();
+        List<Object> array = getArray(map, key);
+        if (array != null) {
+            for (Object o : array) {
+                if (!(o instanceof CharSequence)) {
+                    throw new IllegalArgumentException(key + " must contain only strings, but contains: " + o);
+                }
+                result.add(o.toString());
+            }
+        }
+        return result;
+    }
+
     public static ScriptNode getScriptNode(Map<String, Object> map, String key) {
         ScriptNode result = null;
         if (map.get(key) != null) {
@@ -108,4 +148,51 @@ public class RhinoUtils {
         }
         return result;
     }
+
+    /**
+     * Writes a JavaScript value as source code which evaluates to an equal value. Nodes are
+     * written as {@code search.findNode()} calls and functions by their source, so variables
+     * which functions captured from enclosing scopes are lost.
+     *
+     * @param value value of a JavaScript object, array or a Java map with such values.
+     * @return JavaScript source of the value.
+     * @throws IllegalArgumentException if the value cannot be written as source.
+     */
+    public static String toSource(Object value) {
+        if (value instanceof NativeJavaObject) {
+            value = ((NativeJavaObject) value).unwrap();
+        }
+        if (value == null || value instanceof Undefined) {
+            return "null";
+        } else if (value instanceof Function) {
+            return Context.getCurrentContext().decompileFunction((Function) value, 0);
+        } else if (value instanceof ScriptNode) {
+            return "search.findNode(" + quote(((ScriptNode) value).getNodeRef().toString()) + ")";
+        } else if (value instanceof CharSequence || value instanceof NodeRef) {
+            return quote(value.toString());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return Context.toString(value);
+        } else if (value instanceof NativeArray) {
+            NativeArray array = (NativeArray) value;
+            StringBuilder source = new StringBuilder("[");
+            for (int i = 0; i < array.getLength(); i++) {
+                source.append(i > 0 ? ", " : "").append(toSource(array.get(i, array)));
+            }
+            return source.append("]").toString();
+        } else if (value instanceof ScriptableObject) {
+            return toSource(convertToMap((ScriptableObject) value));
+        } else if (value instanceof Map) {
+            StringBuilder source = new StringBuilder("{");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                source.append(source.length() > 1 ? ", " : "")
+                        .append(quote(entry.getKey().toString())).append(": ").append(toSource(entry.getValue()));
+            }
+            return source.append("}").toString();
+        }
+        throw new IllegalArgumentException("cannot write as JavaScript source: " + value);
+    }
+
+    private static String quote(String text) {
+        return "'" + ScriptRuntime.escapeString(text, '\'') + "'";
+    }
 }
@@ -7,6 +7,9 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ScriptableObject;
 
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,26 +27,90 @@ public abstract class BatchJobParameters {
     private static final String PARAM_ON_NODE = "onNode";
     private static final String PARAM_ON_BATCH = "onBatch";
     private static final String PARAM_DISABLE_RULES = "disableRules";
+    private static final String PARAM_DISABLE_BEHAVIOURS = "disableBehaviours";
+    private static final String PARAM_EXECUTE_ON = "executeOn";
+    private static final String PARAM_CLUSTER_RUN_ID = "clusterRunId";
+    private static final String PARAM_SINCE = "since";
+    private static final String PARAM_FILTER = "filter";
+    private static final String PARAM_TRAVERSAL = "traversal";
+    private static final String PARAM_ON_FOLDER = "onFolder";
+    private static final String PARAM_FIELDS = "fields";
+    private static final String PARAM_PARTITION_BY = "partitionBy";
+    private static final String PARAM_RETRY = "retry";
+    private static final String PARAM_ESTIMATE_SIZE = "estimateSize";
+    private static final String PARAM_PREFETCH_CONTENT = "prefetchContent";
+    private static final String PARAM_DEDUPE = "dedupe";
+    private static final String PARAM_CHECKPOINT = "checkpoint";
+    private static final String PARAM_PROFILE = "profile";
+    private static final String PARAM_MAX_ERROR_RATE = "maxErrorRate";
+    private static final String PARAM_MAX_CONSECUTIVE_FAILURES = "maxConsecutiveFailures";
+    private static final String PARAM_CACHE_SIZE = "cacheSize";
+    private static final String PARAM_LOADER = "loader";
+    private static final String PARAM_ARCHIVE = "archive";
+    private static final String PARAM_KEEP_ROOT = "keepRoot";
+    private static final String PARAM_BEHAVIOURS = "behaviours";
+    private static final String PARAM_SAMPLE = "sample";
+    private static final String PARAM_STAGES = "stages";
+    private static final String PARAM_MAX_HEAP_USAGE = "maxHeapUsage";
 
     private static final int DEFAULT_BATCH_SIZE = 200;
     private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+    private static final int DEFAULT_CACHE_SIZE = 10000;
 
     private String id;
     private String name;
     private int threads;
     private int batchSize;
     private boolean disableRules;
+    private List<String> disableBehaviours = Collections.emptyList();
     private String onNodeFunction;
     private String onBatchFunction;
     private Function onNode;
     private Function onBatch;
+    private String onNodeBean;
+    private String onBatchBean;
+    private ExecuteOn executeOn;
+    private String clusterRunId;
+    private NodeFilter filter = NodeFilter.parse(null);
+    private FolderTraversal traversal = FolderTraversal.parse(null, null);
+    private List<String> fields = Collections.emptyList();
+    private Partitioning partitioning;
+    private RetryPolicy retryPolicy = RetryPolicy.parse(null, PARAM_RETRY);
+    private boolean prefetchContent;
+    private boolean dedupe;
+    private ItemProfiler profiler;
+    private ErrorBreaker errorBreaker;
+    private EmittedWork emittedWork;
+    private int cacheSize;
+    private JobCache cache;
+    private BatchLoader loader;
+    private Sampler sampler;
+    private List<Stage> stages;
+    private HeapMonitor heapMonitor;
+    private int checkpointInterval = -1;
+    private String parametersSource;
+    private Serializable resumePosition;
 
     private Status status;
+    private String statusMessage;
+    private int totalErrors;
+    private ClusterLeases clusterLeases;
+    private ClusterLeases.Progress clusterProgress;
+    private TreeSizeEstimator sizeEstimator;
+    private ContentPrefetcher contentPrefetcher;
+    private VisitedNodes visitedNodes;
+    private Checkpointer checkpointer;
+    private final JobStats stats = new JobStats();
 
     public enum Status {
         RUNNING, FINISHED, CANCELED
     }
 
+    public enum ExecuteOn {
+        LOCAL, CLUSTER
+    }
+
     /** New instance can only be created using static factory methods */
     protected BatchJobParameters() {}
 
@@ -68,6 +135,10 @@ public abstract class BatchJobParameters {
         job.setItems(items);
 
         parseCommonParameters(job, paramsMap);
+        parseFunctions(job, paramsMap);
+        if (job.getSampler() != null) {
+            job.getSampler().setTotal(items.size());
+        }
 
         return job;
     }
@@ -93,6 +164,33 @@ public abstract class BatchJobParameters {
         job.setRoot(root);
 
         parseCommonParameters(job, paramsMap);
+        parseFunctions(job, paramsMap);
+        job.setEstimateSize(RhinoUtils.getBoolean(paramsMap, PARAM_ESTIMATE_SIZE, false));
+
+        Object since = paramsMap.get(PARAM_SINCE);
+        if (since instanceof Number) {
+            job.setSinceTxnId(((Number) since).longValue());
+        } else if (since instanceof CharSequence) {
+            job.setSinceWatermark(since.toString());
+        } else if (since != null) {
+            throw new IllegalArgumentException(PARAM_SINCE +
+                    " must be a transaction ID or a watermark name, but is instead: " + since);
+        }
+        if (since != null && job.getExecuteOn() == ExecuteOn.CLUSTER) {
+            throw new IllegalArgumentException(PARAM_SINCE + " cannot be used in cluster");
+        }
+        if (since != null && job.getSampler() != null) {
+            throw new IllegalArgumentException(PARAM_SAMPLE + " cannot be used with " + PARAM_SINCE +
+                    ", the watermark would move without the changes being processed");
+        }
+        if (job.getSampler() != null && job.getSampler().getCount() > 0) {
+            throw new IllegalArgumentException(PARAM_SAMPLE + ".count needs the number of items known up front, " +
+                    "use " + PARAM_SAMPLE + ".fraction for folders");
+        }
+        if (since != null && job.getCheckpointInterval() >= 0) {
+            throw new IllegalArgumentException(PARAM_CHECKPOINT + " cannot be used with " + PARAM_SINCE +
+                    ", the watermark is the checkpoint of such jobs");
+        }
 
         return job;
     }
@@ -102,20 +200,154 @@ public abstract class BatchJobParameters {
         job.setBatchSize(RhinoUtils.getInteger(paramsMap, PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE));
         job.setThreads(RhinoUtils.getInteger(paramsMap, PARAM_THREADS, DEFAULT_THREADS));
         job.setDisableRules(RhinoUtils.getBoolean(paramsMap, PARAM_DISABLE_RULES, false));
+        job.setDisableBehaviours(RhinoUtils.getStrings(paramsMap, PARAM_DISABLE_BEHAVIOURS));
+
+        String executeOn = RhinoUtils.getString(paramsMap, PARAM_EXECUTE_ON, ExecuteOn.LOCAL.name());
+        try {
+            job.setExecuteOn(ExecuteOn.valueOf(executeOn.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(PARAM_EXECUTE_ON + " must be 'local' or 'cluster', but is instead: " +
+                    executeOn);
+        }
+        job.setClusterRunId(RhinoUtils.getString(paramsMap, PARAM_CLUSTER_RUN_ID, null));
+        job.setFilter(NodeFilter.parse(RhinoUtils.getMap(paramsMap, PARAM_FILTER)));
+        job.setTraversal(FolderTraversal.parse(RhinoUtils.getMap(paramsMap, PARAM_TRAVERSAL),
+                RhinoUtils.getFunction(paramsMap, PARAM_ON_FOLDER)));
+        job.setFields(RhinoUtils.getStrings(paramsMap, PARAM_FIELDS));
+        job.setPartitioning(Partitioning.parse(paramsMap.get(PARAM_PARTITION_BY), PARAM_PARTITION_BY));
+        job.setPrefetchContent(RhinoUtils.getBoolean(paramsMap, PARAM_PREFETCH_CONTENT, false));
+        job.setDedupe(RhinoUtils.getBoolean(paramsMap, PARAM_DEDUPE, false));
+        job.setProfiler(ItemProfiler.parse(paramsMap.get(PARAM_PROFILE), PARAM_PROFILE));
+        job.setErrorBreaker(ErrorBreaker.parse(paramsMap, PARAM_MAX_ERROR_RATE, PARAM_MAX_CONSECUTIVE_FAILURES));
+        job.setCacheSize(RhinoUtils.getInteger(paramsMap, PARAM_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        if (job.getCacheSize() < 1) {
+            throw new IllegalArgumentException(PARAM_CACHE_SIZE + " must be positive");
+        }
+        job.setLoader(BatchLoader.parse(paramsMap.get(PARAM_LOADER), PARAM_LOADER));
+        job.setSampler(Sampler.parse(paramsMap.get(PARAM_SAMPLE), PARAM_SAMPLE));
+        job.setHeapMonitor(HeapMonitor.parse(paramsMap.get(PARAM_MAX_HEAP_USAGE), PARAM_MAX_HEAP_USAGE));
+        job.setStages(Stage.parse(RhinoUtils.getArray(paramsMap, PARAM_STAGES), PARAM_STAGES,
+                job.getThreads(), job.getBatchSize()));
+        parseCheckpoint(job, paramsMap);
+        if (job.getStages() != null && (job.getExecuteOn() == ExecuteOn.CLUSTER || job.getCheckpointInterval() >= 0)) {
+            throw new IllegalArgumentException(PARAM_STAGES + " cannot be used in cluster or with " +
+                    PARAM_CHECKPOINT);
+        }
+        if (job.getSampler() != null && (job.getExecuteOn() == ExecuteOn.CLUSTER || job.getCheckpointInterval() >= 0)) {
+            throw new IllegalArgumentException(PARAM_SAMPLE + " cannot be used in cluster or with " +
+                    PARAM_CHECKPOINT);
+        }
+        job.setRetryPolicy(RetryPolicy.parse(RhinoUtils.getMap(paramsMap, PARAM_RETRY), PARAM_RETRY));
+        if (job.getExecuteOn() == ExecuteOn.CLUSTER && job.getClusterRunId() == null) {
+            throw new IllegalArgumentException(PARAM_CLUSTER_RUN_ID + " must be specified when " +
+                    PARAM_EXECUTE_ON + " is 'cluster'");
+        }
+    }
 
-        final Function onNode = RhinoUtils.getFunction(paramsMap, PARAM_ON_NODE);
-        final Function onBatch = RhinoUtils.getFunction(paramsMap, PARAM_ON_BATCH);
-        if (onNode == null && onBatch == null) {
+    private static void parseFunctions(BatchJobParameters job, Map<String, Object> paramsMap) {
+        if (job.getStages() != null) {
+            // Each stage has its own function, and only the first one gets the nodes of the job
+            for (String param : new String[]{PARAM_ON_NODE, PARAM_ON_BATCH, PARAM_PARTITION_BY, PARAM_LOADER,
+                    PARAM_SAMPLE, PARAM_PREFETCH_CONTENT}) {
+                if (paramsMap.get(param) != null) {
+                    throw new IllegalArgumentException(param + " cannot be used with " + PARAM_STAGES);
+                }
+            }
+            return;
+        }
+        // A function can be given by the name of a Java processor bean instead
+        final String onNodeBean = getBeanName(paramsMap, PARAM_ON_NODE);
+        final String onBatchBean = getBeanName(paramsMap, PARAM_ON_BATCH);
+        final Function onNode = onNodeBean == null ? RhinoUtils.getFunction(paramsMap, PARAM_ON_NODE) : null;
+        final Function onBatch = onBatchBean == null ? RhinoUtils.getFunction(paramsMap, PARAM_ON_BATCH) : null;
+        boolean hasOnNode = onNode != null || onNodeBean != null;
+        boolean hasOnBatch = onBatch != null || onBatchBean != null;
+        if (!hasOnNode && !hasOnBatch) {
             throw new IllegalArgumentException("one of " + PARAM_ON_NODE + " or " + PARAM_ON_BATCH +
                     " function is required");
         }
-        if (onNode != null && onBatch != null) {
+        if (hasOnNode && hasOnBatch) {
             throw new IllegalArgumentException("only one of " + PARAM_ON_NODE + " or " + PARAM_ON_BATCH +
                     " function can be specified");
         }
+        if ((onNodeBean != null || onBatchBean != null) && !job.getFields().isEmpty()) {
+            throw new IllegalArgumentException(PARAM_FIELDS + " cannot be used with Java processor beans");
+        }
+        if ((onNodeBean != null || onBatchBean != null) && job.isPrefetchContent()) {
+            // Java processors are given node references only, the content would be read for nothing
+            throw new IllegalArgumentException(PARAM_PREFETCH_CONTENT + " cannot be used with Java processor beans");
+        }
+        if (job.getLoader() != null && onNode == null) {
+            throw new IllegalArgumentException(PARAM_LOADER + " can only be used with " + PARAM_ON_NODE + " function");
+        }
 
         job.setOnNode(onNode);
         job.setOnBatch(onBatch);
+        job.setOnNodeBean(onNodeBean);
+        job.setOnBatchBean(onBatchBean);
+    }
+
+    /**
+     * Parse JavaScript object with job parameters and return a job deleting a folder.
+     * Parameters must be for a folder and have no processing functions.
+     *
+     * @param params JavaScript object with parameters.
+     * @return Parsed job parameters object.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static ProcessDeleteJobParameters parseDeleteParameters(Object params) throws IllegalArgumentException {
+        Map<String, Object> paramsMap = getParametersMap(params);
+        final ScriptNode root = RhinoUtils.getScriptNode(paramsMap, PARAM_ROOT);
+        if (root == null) {
+            throw new IllegalArgumentException(PARAM_ROOT + " must be specified and be a node");
+        }
+
+        ProcessDeleteJobParameters job = new ProcessDeleteJobParameters();
+        generateJobNameAndId(job, root.getName() + "-delete");
+        job.setRoot(root);
+
+        parseCommonParameters(job, paramsMap);
+        job.setArchive(RhinoUtils.getBoolean(paramsMap, PARAM_ARCHIVE, true));
+        job.setKeepRoot(RhinoUtils.getBoolean(paramsMap, PARAM_KEEP_ROOT, false));
+        job.setRunBehaviours(RhinoUtils.getBoolean(paramsMap, PARAM_BEHAVIOURS, true));
+
+        // Parents are deleted with everything below them, so whole sub-trees must be traversed
+        for (String param : new String[]{PARAM_ON_NODE, PARAM_ON_BATCH, PARAM_ON_FOLDER, PARAM_PARTITION_BY,
+                PARAM_LOADER, PARAM_CHECKPOINT, PARAM_FIELDS, PARAM_PREFETCH_CONTENT, PARAM_SAMPLE,
+                PARAM_STAGES}) {
+            if (paramsMap.get(param) != null) {
+                throw new IllegalArgumentException(param + " cannot be used when deleting");
+            }
+        }
+        if (job.getExecuteOn() == ExecuteOn.CLUSTER) {
+            throw new IllegalArgumentException("deleting cannot be executed on cluster");
+        }
+        return job;
+    }
+
+    private static void parseCheckpoint(BatchJobParameters job, Map<String, Object> paramsMap) {
+        Object checkpoint = paramsMap.get(PARAM_CHECKPOINT);
+        if (checkpoint == null || Boolean.FALSE.equals(checkpoint)) {
+            return;
+        }
+        if (Boolean.TRUE.equals(checkpoint)) {
+            job.setCheckpointInterval(DEFAULT_CHECKPOINT_INTERVAL);
+        } else {
+            job.setCheckpointInterval(RhinoUtils.getInteger(paramsMap, PARAM_CHECKPOINT, DEFAULT_CHECKPOINT_INTERVAL));
+        }
+        if (job.getExecuteOn() == ExecuteOn.CLUSTER || job.getPartitioning() != null) {
+            throw new IllegalArgumentException(PARAM_CHECKPOINT + " cannot be used in cluster or with " +
+                    PARAM_PARTITION_BY);
+        }
+        // Items can be too many to keep, they are given again when the job is resumed
+        Map<String, Object> saved = new HashMap<>(paramsMap);
+        saved.remove(PARAM_ITEMS);
+        job.setParametersSource(RhinoUtils.toSource(saved));
+    }
+
+    private static String getBeanName(Map<String, Object> paramsMap, String key) {
+        Object value = paramsMap.get(key);
+        return value instanceof CharSequence ? value.toString() : null;
     }
 
     private static Map<String, Object> getParametersMap(Object params) {
@@ -171,6 +403,231 @@ public abstract class BatchJobParameters {
         this.disableRules = disableRules;
     }
 
+    /**
+     * @return names of classes which behaviours are disabled while processing, e.g. cm:auditable.
+     */
+    public List<String> getDisableBehaviours() {
+        return disableBehaviours;
+    }
+
+    public void setDisableBehaviours(List<String> disableBehaviours) {
+        this.disableBehaviours = disableBehaviours;
+    }
+
+    public ExecuteOn getExecuteOn() {
+        return executeOn;
+    }
+
+    public void setExecuteOn(ExecuteOn executeOn) {
+        this.executeOn = executeOn;
+    }
+
+    public String getClusterRunId() {
+        return clusterRunId;
+    }
+
+    public void setClusterRunId(String clusterRunId) {
+        this.clusterRunId = clusterRunId;
+    }
+
+    public NodeFilter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(NodeFilter filter) {
+        this.filter = filter;
+    }
+
+    public FolderTraversal getTraversal() {
+        return traversal;
+    }
+
+    public void setTraversal(FolderTraversal traversal) {
+        this.traversal = traversal;
+    }
+
+    /**
+     * @return names of properties to give with each node instead of a full ScriptNode,
+     * empty list to give ScriptNodes.
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @return how items are kept out of parallel batches, or null when they are not partitioned.
+     */
+    public Partitioning getPartitioning() {
+        return partitioning;
+    }
+
+    public void setPartitioning(Partitioning partitioning) {
+        this.partitioning = partitioning;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return true if content of nodes is read ahead of processing by separate threads.
+     */
+    public boolean isPrefetchContent() {
+        return prefetchContent;
+    }
+
+    public void setPrefetchContent(boolean prefetchContent) {
+        this.prefetchContent = prefetchContent;
+    }
+
+    public boolean isDedupe() {
+        return dedupe;
+    }
+
+    public void setDedupe(boolean dedupe) {
+        this.dedupe = dedupe;
+    }
+
+    /**
+     * @return profiler of item processing times, or null if the job is not profiled.
+     */
+    public ItemProfiler getProfiler() {
+        return profiler;
+    }
+
+    public void setProfiler(ItemProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * @return breaker canceling the job when its batches keep failing, or null.
+     */
+    public ErrorBreaker getErrorBreaker() {
+        return errorBreaker;
+    }
+
+    public void setErrorBreaker(ErrorBreaker errorBreaker) {
+        this.errorBreaker = errorBreaker;
+    }
+
+    /**
+     * @return items emitted by the processing functions, available while the job runs.
+     */
+    public EmittedWork getEmittedWork() {
+        return emittedWork;
+    }
+
+    protected void setEmittedWork(EmittedWork emittedWork) {
+        this.emittedWork = emittedWork;
+    }
+
+    /**
+     * @return number of entries kept at most by the job cache.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return cache shared by the threads of the job, available while the job runs.
+     */
+    public JobCache getCache() {
+        return cache;
+    }
+
+    protected void setCache(JobCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return loader of values for all items of a batch at once, or null.
+     */
+    public BatchLoader getLoader() {
+        return loader;
+    }
+
+    public void setLoader(BatchLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @return sampler of a dry run estimating the time of the job, or null for normal jobs.
+     */
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * @return stages processing the items one after another, or null for jobs with one function.
+     */
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    public void setStages(List<Stage> stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * @return monitor pausing work while the heap is nearly full, or null.
+     */
+    public HeapMonitor getHeapMonitor() {
+        return heapMonitor;
+    }
+
+    public void setHeapMonitor(HeapMonitor heapMonitor) {
+        this.heapMonitor = heapMonitor;
+    }
+
+    /**
+     * @return seconds between checkpoints, or -1 if the job does not save checkpoints.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @return JavaScript source of the job parameters without items, kept with checkpoints.
+     */
+    public String getParametersSource() {
+        return parametersSource;
+    }
+
+    public void setParametersSource(String parametersSource) {
+        this.parametersSource = parametersSource;
+    }
+
+    /**
+     * @return position of the work provider to start from when the job is resumed, or null.
+     */
+    public Serializable getResumePosition() {
+        return resumePosition;
+    }
+
+    public void setResumePosition(Serializable resumePosition) {
+        this.resumePosition = resumePosition;
+    }
+
     public String getOnNodeFunction() {
         return onNodeFunction;
     }
@@ -201,6 +658,36 @@ public abstract class BatchJobParameters {
         return onBatch;
     }
 
+    /**
+     * @return name of the Spring bean implementing
+     * {@link nl.ciber.alfresco.repo.jscript.batchexecuter.Processors.NodeProcessor}, or null.
+     */
+    public String getOnNodeBean() {
+        return onNodeBean;
+    }
+
+    public void setOnNodeBean(String onNodeBean) {
+        this.onNodeBean = onNodeBean;
+        if (onNodeBean != null) {
+            this.onNodeFunction = "bean " + onNodeBean;
+        }
+    }
+
+    /**
+     * @return name of the Spring bean implementing
+     * {@link nl.ciber.alfresco.repo.jscript.batchexecuter.Processors.NodeBatchProcessor}, or null.
+     */
+    public String getOnBatchBean() {
+        return onBatchBean;
+    }
+
+    public void setOnBatchBean(String onBatchBean) {
+        this.onBatchBean = onBatchBean;
+        if (onBatchBean != null) {
+            this.onBatchFunction = "bean " + onBatchBean;
+        }
+    }
+
     public String getId() {
         return id;
     }
@@ -217,6 +704,127 @@ public abstract class BatchJobParameters {
         this.status = status;
     }
 
+    /**
+     * @return why the job has the status it has, e.g. why it was canceled, or null.
+     */
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    protected void setStatusMessage(String statusMessage) {
+        this.statusMessage = statusMessage;
+    }
+
+    /**
+     * @return number of batches or nodes failed while processing, known once the job is done.
+     */
+    public int getTotalErrors() {
+        return totalErrors;
+    }
+
+    protected void setTotalErrors(int totalErrors) {
+        this.totalErrors = totalErrors;
+    }
+
+    /**
+     * Leases shared with other cluster members, only present while a job
+     * with {@code executeOn: 'cluster'} is running.
+     */
+    public ClusterLeases getClusterLeases() {
+        return clusterLeases;
+    }
+
+    protected void setClusterLeases(ClusterLeases clusterLeases) {
+        this.clusterLeases = clusterLeases;
+    }
+
+    /**
+     * @return counters of batches and retries, updated while the job is running.
+     */
+    public JobStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Estimator of the number of nodes to process, only present while a folder job
+     * with {@code estimateSize: true} is running.
+     */
+    public TreeSizeEstimator getSizeEstimator() {
+        return sizeEstimator;
+    }
+
+    protected void setSizeEstimator(TreeSizeEstimator sizeEstimator) {
+        this.sizeEstimator = sizeEstimator;
+    }
+
+    /**
+     * Reader of node content ahead of processing, only present while a job
+     * with {@code prefetchContent: true} is running.
+     */
+    public ContentPrefetcher getContentPrefetcher() {
+        return contentPrefetcher;
+    }
+
+    protected void setContentPrefetcher(ContentPrefetcher contentPrefetcher) {
+        this.contentPrefetcher = contentPrefetcher;
+    }
+
+    /**
+     * Nodes already given out for processing, only present while a job
+     * with {@code dedupe: true} is running.
+     */
+    public VisitedNodes getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    protected void setVisitedNodes(VisitedNodes visitedNodes) {
+        this.visitedNodes = visitedNodes;
+    }
+
+    /**
+     * Saver of the job position, only present while a job with {@code checkpoint} is running.
+     */
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    protected void setCheckpointer(Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * @return estimated number of items the job processes, or -1 if not known.
+     */
+    public long getEstimatedSize() {
+        return sizeEstimator == null ? -1 : sizeEstimator.getEstimate();
+    }
+
+    /**
+     * @return estimated seconds until the job finishes at the current rate, or -1 if not known.
+     */
+    public long getEstimatedSecondsLeft() {
+        long size = getEstimatedSize();
+        long done = stats.getItems();
+        if (size < 0 || done == 0) {
+            return -1;
+        }
+        double millisPerItem = 1.0d * stats.getElapsedMillis() / done;
+        return Math.round(Math.max(0, size - done) * millisPerItem / 1000);
+    }
+
+    /**
+     * Progress of this job across the cluster, as of the last time the current jobs were listed.
+     *
+     * @return items processed by all members of the run, or null for local jobs.
+     */
+    public ClusterLeases.Progress getClusterProgress() {
+        return clusterProgress;
+    }
+
+    protected void setClusterProgress(ClusterLeases.Progress clusterProgress) {
+        this.clusterProgress = clusterProgress;
+    }
+
 
     /* Subclasses */
 
@@ -236,9 +844,64 @@ public abstract class BatchJobParameters {
         }
     }
 
+    public static class ProcessDeleteJobParameters extends BatchJobParameters {
+
+        private ScriptNode root;
+        private boolean archive;
+        private boolean keepRoot;
+        private boolean runBehaviours;
+
+        /** New instance can only be created using static factory methods */
+        private ProcessDeleteJobParameters() {}
+
+        public void setRoot(ScriptNode root) {
+            this.root = root;
+        }
+
+        public ScriptNode getRoot() {
+            return root;
+        }
+
+        /**
+         * @return false if deleted nodes skip the archive store and cannot be restored.
+         */
+        public boolean isArchive() {
+            return archive;
+        }
+
+        public void setArchive(boolean archive) {
+            this.archive = archive;
+        }
+
+        /**
+         * @return true if only the nodes below the root are deleted.
+         */
+        public boolean isKeepRoot() {
+            return keepRoot;
+        }
+
+        public void setKeepRoot(boolean keepRoot) {
+            this.keepRoot = keepRoot;
+        }
+
+        /**
+         * @return false if all behaviours are disabled in the transactions deleting nodes.
+         */
+        public boolean isRunBehaviours() {
+            return runBehaviours;
+        }
+
+        public void setRunBehaviours(boolean runBehaviours) {
+            this.runBehaviours = runBehaviours;
+        }
+    }
+
     public static class ProcessFolderJobParameters extends BatchJobParameters {
 
         private ScriptNode root;
+        private Long sinceTxnId;
+        private String sinceWatermark;
+        private boolean estimateSize;
 
         /** New instance can only be created using static factory methods */
         private ProcessFolderJobParameters() {}
@@ -250,5 +913,44 @@ public abstract class BatchJobParameters {
         public ScriptNode getRoot() {
             return root;
         }
+
+        /**
+         * @return transaction ID after which changed nodes should be processed,
+         * or null when the whole folder is processed.
+         */
+        public Long getSinceTxnId() {
+            return sinceTxnId;
+        }
+
+        public void setSinceTxnId(Long sinceTxnId) {
+            this.sinceTxnId = sinceTxnId;
+        }
+
+        /**
+         * @return name of the stored watermark to process changes after,
+         * updated when the job succeeds.
+         */
+        public String getSinceWatermark() {
+            return sinceWatermark;
+        }
+
+        public void setSinceWatermark(String sinceWatermark) {
+            this.sinceWatermark = sinceWatermark;
+        }
+
+        public boolean isIncremental() {
+            return sinceTxnId != null || sinceWatermark != null;
+        }
+
+        /**
+         * @return true if the number of nodes in the folder is estimated while processing.
+         */
+        public boolean isEstimateSize() {
+            return estimateSize;
+        }
+
+        public void setEstimateSize(boolean estimateSize) {
+            this.estimateSize = estimateSize;
+        }
     }
 }
@@ -0,0 +1,195 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads values needed by {@code onNode} for all items of a batch at once, so that the function can
+ * get them one by one with {@code batchExecuter.loader.load(key)} while the repository is asked
+ * only once per batch, e.g. with one query joining all keys with {@code OR}.
+ *
+ * Before the items of a batch are processed, the {@code keys} function is called with each item
+ * and the {@code load} function is called once with all distinct keys. It returns either an array
+ * of values in the order of the keys, or an object with values by keys. Keys are compared as
+ * strings. A key which was not loaded up front is loaded alone when asked for.
+ *
+ * Jobs with a loader are split into batches before processing, the same as jobs with
+ * {@code onBatch}, and the loaded values are kept until the batch transaction ends.
+ *
+ * @author Bulat Yaminov
+ */
+public class BatchLoader {
+
+    private static final String PARAM_KEYS = "keys";
+    private static final String PARAM_LOAD = "load";
+
+    private Function keysFunction;
+    private Function loadFunction;
+    /** Values loaded for the batch of the current thread by keys */
+    private ThreadLocal<Map<String, Object>> loaded = new ThreadLocal<>();
+    private ThreadLocal<Scriptable> batchScope = new ThreadLocal<>();
+
+    private AtomicLong batchLoads = new AtomicLong();
+    private AtomicLong singleLoads = new AtomicLong();
+    private AtomicLong keys = new AtomicLong();
+    private AtomicLong calls = new AtomicLong();
+
+    /**
+     * Parse loader from JavaScript parameters.
+     *
+     * @param param object with {@code keys} and {@code load} functions, may be null.
+     * @param paramName name of the parameter for error messages.
+     * @return loader, or null if no parameter is given.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static BatchLoader parse(Object param, String paramName) throws IllegalArgumentException {
+        if (param == null) {
+            return null;
+        }
+        if (!(param instanceof ScriptableObject)) {
+            throw new IllegalArgumentException(paramName + " must be an object with " + PARAM_KEYS +
+                    " and " + PARAM_LOAD + " functions, but is instead: " + param);
+        }
+        Map<String, Object> params = RhinoUtils.convertToMap((ScriptableObject) param);
+        Object keysFunction = params.get(PARAM_KEYS);
+        Object loadFunction = params.get(PARAM_LOAD);
+        if (!(keysFunction instanceof Function) || !(loadFunction instanceof Function)) {
+            throw new IllegalArgumentException(paramName + "." + PARAM_KEYS + " and " + paramName + "." +
+                    PARAM_LOAD + " must be functions");
+        }
+        BatchLoader loader = new BatchLoader();
+        loader.keysFunction = (Function) keysFunction;
+        loader.loadFunction = (Function) loadFunction;
+        return loader;
+    }
+
+    /**
+     * Loads values of the keys of all items of a batch. Must be called in the batch transaction,
+     * in a thread with JavaScript context.
+     */
+    public void prepare(List<Object> items, Scriptable scope) {
+        Context cx = Context.getCurrentContext();
+        Map<String, Object> batchKeys = new LinkedHashMap<>();
+        for (Object item : items) {
+            Object result = keysFunction.call(cx, scope, scope, new Object[]{item});
+            if (result instanceof NativeArray) {
+                NativeArray array = (NativeArray) result;
+                for (int i = 0; i < array.getLength(); i++) {
+                    addKey(batchKeys, array.get(i, array));
+                }
+            } else {
+                addKey(batchKeys, result);
+            }
+        }
+        Map<String, Object> values = new HashMap<>();
+        loaded.set(values);
+        batchScope.set(scope);
+        if (!batchKeys.isEmpty()) {
+            batchLoads.incrementAndGet();
+            keys.addAndGet(batchKeys.size());
+            loadInto(values, new ArrayList<>(batchKeys.values()), scope);
+        }
+    }
+
+    private static void addKey(Map<String, Object> keys, Object key) {
+        if (key != null && !(key instanceof Undefined) && key != Scriptable.NOT_FOUND) {
+            String name = keyOf(key);
+            if (!keys.containsKey(name)) {
+                keys.put(name, key);
+            }
+        }
+    }
+
+    /**
+     * @return value loaded for the key, loading it now if it was not loaded for the batch.
+     */
+    public Object load(Object key) {
+        Map<String, Object> values = loaded.get();
+        if (values == null) {
+            throw new IllegalStateException("loader can only be used by onNode function of the job");
+        }
+        calls.incrementAndGet();
+        String name = keyOf(key);
+        if (!values.containsKey(name)) {
+            singleLoads.incrementAndGet();
+            List<Object> single = new ArrayList<>(1);
+            single.add(key);
+            loadInto(values, single, batchScope.get());
+        }
+        return values.get(name);
+    }
+
+    /**
+     * Frees values of the batch of the current thread.
+     */
+    public void clear() {
+        loaded.remove();
+        batchScope.remove();
+    }
+
+    private void loadInto(Map<String, Object> values, List<Object> batchKeys, Scriptable scope) {
+        Context cx = Context.getCurrentContext();
+        Scriptable keysArray = cx.newArray(scope, batchKeys.toArray());
+        Object result = loadFunction.call(cx, scope, scope, new Object[]{keysArray});
+        for (int i = 0; i < batchKeys.size(); i++) {
+            String name = keyOf(batchKeys.get(i));
+            Object value;
+            if (result instanceof NativeArray) {
+                value = ((NativeArray) result).get(i, (NativeArray) result);
+            } else if (result instanceof Scriptable) {
+                value = ScriptableObject.getProperty((Scriptable) result, name);
+            } else {
+                throw new IllegalArgumentException("load function must return an array or an object, " +
+                        "but returned instead: " + result);
+            }
+            // Keys without a value are not loaded again
+            values.put(name, value == Scriptable.NOT_FOUND || value instanceof Undefined ? null : value);
+        }
+    }
+
+    private static String keyOf(Object key) {
+        NodeRef node = WorkProviders.toNodeRef(key);
+        return node != null ? node.toString() : Context.toString(key);
+    }
+
+    /**
+     * @return number of batches for which values were loaded together.
+     */
+    public long getBatchLoads() {
+        return batchLoads.get();
+    }
+
+    /**
+     * @return number of distinct keys loaded together for batches.
+     */
+    public long getKeys() {
+        return keys.get();
+    }
+
+    /**
+     * @return number of keys which were not loaded for their batch and were loaded alone.
+     */
+    public long getSingleLoads() {
+        return singleLoads.get();
+    }
+
+    /**
+     * @return number of values asked for by the node function.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+}
@@ -0,0 +1,229 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Periodically saves the position of a job started with {@code checkpoint} parameter in the
+ * repository database, so that the job can be resumed from it after it was canceled or the
+ * server was restarted.
+ *
+ * Work is given out in chunks by the work provider, and chunks are committed by worker threads
+ * in any order. A position of the work provider is taken at most once per interval right after
+ * a chunk is given out, and is saved only when that chunk and all chunks before it are done,
+ * so resuming never skips work which was not committed. Work done after the last saved position
+ * is processed again on resume.
+ *
+ * @author Bulat Yaminov
+ */
+public class Checkpointer {
+
+    private static final String ATTR_CHECKPOINTS = ".batchExecuterCheckpoints";
+
+    public static final String TYPE_ARRAY = "array";
+    public static final String TYPE_FOLDER = "folder";
+
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_PARAMS = "params";
+    private static final String KEY_POSITION = "position";
+    private static final String KEY_SAVED = "saved";
+
+    /**
+     * Work provider which can tell where it is, and can be created again at that position.
+     */
+    public interface Checkpointable {
+        /**
+         * @return position right after the work given out so far.
+         */
+        Serializable getPosition();
+    }
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+    private Log logger;
+    private String jobId;
+    private HashMap<String, Serializable> checkpoint = new HashMap<>();
+    private long intervalMillis;
+
+    /** Sequence number of the next chunk to give out */
+    private long nextChunk = 0;
+    /** All chunks before this one are done */
+    private long doneBefore = 0;
+    /** Entries of the chunks being processed which are not done yet */
+    private Map<Long, Integer> pendingEntries = new HashMap<>();
+    private IdentityHashMap<Object, Long> entryChunks = new IdentityHashMap<>();
+    /** Positions taken, keyed by the chunk which must be done before they can be saved */
+    private TreeMap<Long, Serializable> positions = new TreeMap<>();
+    private long lastPositionMillis = System.currentTimeMillis();
+
+    private final Object saveLock = new Object();
+    private long savedBefore = -1;
+
+    public Checkpointer(AttributeService attributeService, TransactionService transactionService,
+                        BatchJobParameters job, String type, Log logger) {
+        this.attributeService = attributeService;
+        this.transactionService = transactionService;
+        this.logger = logger;
+        this.jobId = job.getId();
+        this.intervalMillis = job.getCheckpointInterval() * 1000L;
+        checkpoint.put(KEY_TYPE, type);
+        checkpoint.put(KEY_NAME, job.getName());
+        checkpoint.put(KEY_PARAMS, job.getParametersSource());
+        checkpoint.put(KEY_POSITION, job.getResumePosition());
+    }
+
+    /**
+     * Saves the checkpoint with the starting position, so that the job can be resumed even
+     * before its first position is taken.
+     */
+    public void start() {
+        save(0, checkpoint.get(KEY_POSITION));
+    }
+
+    /**
+     * Registers a chunk of work given out by the work provider, and takes the position
+     * of the provider when the interval has passed.
+     */
+    public synchronized void givenOut(Collection<?> entries, Checkpointable provider) {
+        long chunk = nextChunk++;
+        int count = 0;
+        for (Object entry : entries) {
+            // An entry repeated in the items is done with its first occurrence
+            if (!entryChunks.containsKey(entry)) {
+                entryChunks.put(entry, chunk);
+                count++;
+            }
+        }
+        pendingEntries.put(chunk, count);
+        long now = System.currentTimeMillis();
+        if (now - lastPositionMillis >= intervalMillis) {
+            positions.put(chunk + 1, provider.getPosition());
+            lastPositionMillis = now;
+        }
+        advance();
+    }
+
+    /**
+     * Marks entries as done, after their batch transaction is committed, and saves the latest
+     * position all work before which is done. Entries of batches which failed are never done,
+     * so a resumed job processes them again.
+     */
+    public void done(Collection<?> entries) {
+        Map.Entry<Long, Serializable> ready = null;
+        synchronized (this) {
+            for (Object entry : entries) {
+                Long chunk = entryChunks.remove(entry);
+                if (chunk != null) {
+                    pendingEntries.put(chunk, pendingEntries.get(chunk) - 1);
+                }
+            }
+            advance();
+            if (!positions.isEmpty() && positions.firstKey() <= doneBefore) {
+                ready = positions.floorEntry(doneBefore);
+                positions.headMap(ready.getKey(), true).clear();
+            }
+        }
+        if (ready != null) {
+            save(ready.getKey(), ready.getValue());
+        }
+    }
+
+    private void advance() {
+        Integer pending;
+        while ((pending = pendingEntries.get(doneBefore)) != null && pending == 0) {
+            pendingEntries.remove(doneBefore);
+            doneBefore++;
+        }
+    }
+
+    /**
+     * Removes the checkpoint of a job which has processed all its work without errors.
+     */
+    public void finish() {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+            @Override
+            public Void execute() throws Throwable {
+                attributeService.removeAttribute(ATTR_CHECKPOINTS, jobId);
+                return null;
+            }
+        }, false, true);
+    }
+
+    private void save(long chunk, Serializable position) {
+        synchronized (saveLock) {
+            // Positions saved by other threads meanwhile may be newer
+            if (chunk <= savedBefore) {
+                return;
+            }
+            final HashMap<String, Serializable> value = new HashMap<>(checkpoint);
+            value.put(KEY_POSITION, position);
+            value.put(KEY_SAVED, System.currentTimeMillis());
+            try {
+                transactionService.getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<Void>() {
+                    @Override
+                    public Void execute() throws Throwable {
+                        attributeService.setAttribute(value, ATTR_CHECKPOINTS, jobId);
+                        return null;
+                    }
+                }, false, true);
+                savedBefore = chunk;
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("checkpoint of job %s saved after %d chunks", jobId, chunk));
+                }
+            } catch (RuntimeException e) {
+                // The job goes on, the next checkpoint will be tried again
+                logger.warn("Failed to save checkpoint of job " + jobId, e);
+            }
+        }
+    }
+
+    /**
+     * Loads the last checkpoint of a job.
+     *
+     * @return the checkpoint, or null if the job has none.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Serializable> load(AttributeService attributeService, String jobId) {
+        return (Map<String, Serializable>) attributeService.getAttribute(ATTR_CHECKPOINTS, jobId);
+    }
+
+    /**
+     * @return names of jobs which have a checkpoint by their IDs.
+     */
+    public static Map<String, String> list(AttributeService attributeService) {
+        final Map<String, String> jobs = new TreeMap<>();
+        attributeService.getAttributes(new AttributeQueryCallback() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+                jobs.put(keys[1].toString(), getName((Map<String, Serializable>) value));
+                return true;
+            }
+        }, ATTR_CHECKPOINTS);
+        return jobs;
+    }
+
+    public static String getType(Map<String, Serializable> checkpoint) {
+        return (String) checkpoint.get(KEY_TYPE);
+    }
+
+    public static String getName(Map<String, Serializable> checkpoint) {
+        return (String) checkpoint.get(KEY_NAME);
+    }
+
+    public static String getParametersSource(Map<String, Serializable> checkpoint) {
+        return (String) checkpoint.get(KEY_PARAMS);
+    }
+
+    public static Serializable getPosition(Map<String, Serializable> checkpoint) {
+        return checkpoint.get(KEY_POSITION);
+    }
+}
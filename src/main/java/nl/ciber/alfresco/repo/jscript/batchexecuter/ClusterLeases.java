@@ -0,0 +1,574 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.attributes.DuplicateAttributeException;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Leases on parts of a job's work which are shared between all cluster members
+ * running a job with the same cluster run ID.
+ *
+ * A lease is claimed by creating an attribute with a unique key in the repository
+ * database, so only one member can hold a given part of the work. Each claim is committed
+ * in its own transaction, so that other members see it right away. A lease is marked done
+ * once all items given out under it are committed, and released if any of them failed, so that
+ * another member can process the part. Members publish a heartbeat with their progress, and
+ * a lease held by a member which is not heard of for {@link #EXPIRY_MS} can be taken over
+ * by another member, by claiming the next generation of the lease.
+ *
+ * A member which has no more work of its own waits for the parts held by other members until
+ * they are done, taking over those which are released or expired, each of them at most once.
+ * Once all members are finished, the attributes of the run are removed.
+ *
+ * @author Bulat Yaminov
+ */
+public class ClusterLeases implements Runnable {
+
+    private static final String ATTR_LEASES = ".batchExecuterLeases";
+    private static final String ATTR_MEMBERS = ".batchExecuterMembers";
+
+    /** How often a member publishes its heartbeat and progress */
+    public static final long HEARTBEAT_MS = 10 * 1000L;
+    /** Leases of a member not heard of for this long can be taken over by others */
+    public static final long EXPIRY_MS = 6 * HEARTBEAT_MS;
+    /** How often a member without work of its own checks the parts held by others */
+    private static final long POLL_MS = 1000L;
+
+    private static final String KEY_OWNER = "owner";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_HEARTBEAT = "heartbeat";
+    private static final String KEY_PROCESSED = "processed";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_FINISHED = "finished";
+
+    private static final String STATE_CLAIMED = "claimed";
+    private static final String STATE_DONE = "done";
+    private static final String STATE_RELEASED = "released";
+
+    /**
+     * Lease held by this member on one part of the work.
+     */
+    public static class Lease {
+        private final String id;
+        private final int generation;
+        /** Items given out under the lease which are not finished yet */
+        private int pending = 0;
+        private boolean givenOut = false;
+        private boolean failed = false;
+
+        private Lease(String id, int generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Progress of a run summed over its members.
+     */
+    public static class Progress {
+        private long processed = 0;
+        private long total = -1;
+        private Map<String, Long> members = new TreeMap<>();
+
+        /**
+         * @return number of items processed by all members.
+         */
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * Each member knows the size of the whole run, so the largest of their
+         * estimates is taken.
+         *
+         * @return number of items of the run, or -1 if not known.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return number of items processed by each member.
+         */
+        public Map<String, Long> getMembers() {
+            return members;
+        }
+    }
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+    private BatchJobParameters job;
+    private Log logger;
+    private String runId;
+    private String member;
+    private String userName;
+
+    /** Items given out under the leases which are not finished yet */
+    private IdentityHashMap<Object, Lease> leasedItems = new IdentityHashMap<>();
+    /** Parts claimed by this member, it never claims them again */
+    private Set<String> claimed = Collections.synchronizedSet(new HashSet<String>());
+    /** The job is canceled, so it waits no more for the parts held by others */
+    private volatile boolean canceled = false;
+    /** The job is finished, so it publishes no more heartbeats */
+    private volatile boolean stopped = false;
+    private final Object publishLock = new Object();
+
+    public ClusterLeases(AttributeService attributeService, TransactionService transactionService,
+                         String runId, BatchJobParameters job, Log logger) {
+        this.attributeService = attributeService;
+        this.transactionService = transactionService;
+        this.runId = runId;
+        this.job = job;
+        this.logger = logger;
+        // JVM name is "pid@host", job ID distinguishes executers within one JVM
+        this.member = ManagementFactory.getRuntimeMXBean().getName() + "/" + job.getId();
+    }
+
+    /**
+     * Publishes the first heartbeat of this member and starts publishing them in a new daemon thread.
+     *
+     * @param userName user to write the attributes as.
+     */
+    public void start(String userName) {
+        this.userName = userName;
+        publish(false);
+        Thread thread = new Thread(this, job.getName() + "-heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+            @Override
+            public Void doWork() throws Exception {
+                while (!stopped) {
+                    synchronized (ClusterLeases.this) {
+                        ClusterLeases.this.wait(HEARTBEAT_MS);
+                    }
+                    if (!stopped) {
+                        publish(false);
+                    }
+                }
+                return null;
+            }
+        }, userName);
+    }
+
+    /**
+     * Stops waiting for the parts held by other members, when the job is canceled.
+     * Heartbeats go on until the batches being processed are finished.
+     */
+    public synchronized void cancel() {
+        canceled = true;
+        notifyAll();
+    }
+
+    /**
+     * Publishes that this member is finished, and removes the attributes of the run
+     * if all its members are finished.
+     */
+    public void finish() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        publish(true);
+        try {
+            transactionService.getRetryingTransactionHelper().doInTransaction(
+                    new RetryingTransactionCallback<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    for (Map<String, Serializable> other : readMembers().values()) {
+                        if (isAlive(other)) {
+                            return null;
+                        }
+                    }
+                    attributeService.removeAttributes(ATTR_LEASES, runId);
+                    attributeService.removeAttributes(ATTR_MEMBERS, runId);
+                    logger.info(String.format("Cluster run '%s' is finished by all its members", runId));
+                    return null;
+                }
+            }, false, true);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to remove attributes of cluster run " + runId, e);
+        }
+    }
+
+    /**
+     * Tries to claim a part of the work for this member, which succeeds if no other member holds it,
+     * or if the member holding it has released it or is not heard of any more.
+     *
+     * @param leaseId ID of the work part, unique within the run.
+     * @return the lease if this member should process the part, or null if another member
+     * holds it, it is done, or this member has already claimed it.
+     */
+    public Lease claim(final String leaseId) {
+        if (claimed.contains(leaseId)) {
+            return null;
+        }
+        while (true) {
+            try {
+                Integer generation = transactionService.getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<Integer>() {
+                    @Override
+                    public Integer execute() throws Throwable {
+                        Pair<Integer, Map<String, Serializable>> latest = readLatest(leaseId);
+                        if (latest != null && !isAbandoned(latest.getSecond(),
+                                readMember(latest.getSecond().get(KEY_OWNER)))) {
+                            return null;
+                        }
+                        int generation = latest == null ? 0 : latest.getFirst() + 1;
+                        attributeService.createAttribute(newLease(STATE_CLAIMED), ATTR_LEASES, runId,
+                                key(leaseId, generation));
+                        return generation;
+                    }
+                }, false, true);
+                if (generation == null) {
+                    return null;
+                }
+                claimed.add(leaseId);
+                if (generation > 0) {
+                    logger.info(String.format("Cluster member %s has taken over part %s of run '%s'",
+                            member, leaseId, runId));
+                }
+                return new Lease(leaseId, generation);
+            } catch (DuplicateAttributeException e) {
+                // Another member has claimed the same generation first, see if it is still free
+            }
+        }
+    }
+
+    /**
+     * @return true if the part needs no more waiting for: it is done, or this member has already claimed it.
+     */
+    public boolean isDone(final String leaseId) {
+        if (claimed.contains(leaseId)) {
+            return true;
+        }
+        Pair<Integer, Map<String, Serializable>> latest = transactionService.getRetryingTransactionHelper()
+                .doInTransaction(new RetryingTransactionCallback<Pair<Integer, Map<String, Serializable>>>() {
+            @Override
+            public Pair<Integer, Map<String, Serializable>> execute() throws Throwable {
+                return readLatest(leaseId);
+            }
+        }, true, true);
+        return latest != null && STATE_DONE.equals(latest.getSecond().get(KEY_STATE));
+    }
+
+    /**
+     * Waits for the parts held by other members, which this member has skipped, until one of them
+     * can be taken over by this member, or all of them are done.
+     *
+     * @param deferred parts skipped by this member by their lease IDs, those done or taken over are removed.
+     * @return lease taken over with its part, or null if there is nothing left to take over.
+     */
+    public <P> Pair<Lease, P> takeOver(Map<String, P> deferred) {
+        while (!deferred.isEmpty() && !canceled) {
+            final Set<String> ids = new HashSet<>(deferred.keySet());
+            Map<String, String> states = transactionService.getRetryingTransactionHelper().doInTransaction(
+                    new RetryingTransactionCallback<Map<String, String>>() {
+                @Override
+                public Map<String, String> execute() throws Throwable {
+                    Map<String, Map<String, Serializable>> leases = readLeases();
+                    Map<String, Map<String, Serializable>> members = readMembers();
+                    Map<String, String> states = new HashMap<>();
+                    for (String id : ids) {
+                        Map<String, Serializable> latest = leases.get(id);
+                        if (latest == null || isAbandoned(latest, members.get(String.valueOf(latest.get(KEY_OWNER))))) {
+                            states.put(id, STATE_RELEASED);
+                        } else {
+                            states.put(id, String.valueOf(latest.get(KEY_STATE)));
+                        }
+                    }
+                    return states;
+                }
+            }, true, true);
+            Iterator<Map.Entry<String, P>> parts = deferred.entrySet().iterator();
+            while (parts.hasNext()) {
+                Map.Entry<String, P> part = parts.next();
+                String state = states.get(part.getKey());
+                if (STATE_DONE.equals(state)) {
+                    parts.remove();
+                } else if (STATE_RELEASED.equals(state)) {
+                    Lease lease = claim(part.getKey());
+                    if (lease != null || claimed.contains(part.getKey())) {
+                        parts.remove();
+                    }
+                    if (lease != null) {
+                        return new Pair<>(lease, part.getValue());
+                    }
+                }
+            }
+            if (!deferred.isEmpty()) {
+                await();
+            }
+        }
+        return null;
+    }
+
+    private synchronized void await() {
+        try {
+            if (!canceled) {
+                wait(POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            canceled = true;
+        }
+    }
+
+    /**
+     * Registers items given out under a lease, which is finished when all of them are.
+     * An item repeated in the work is tracked with its first occurrence.
+     */
+    public synchronized void givenOut(Lease lease, Collection<?> items) {
+        if (lease == null) {
+            return;
+        }
+        for (Object item : items) {
+            if (!leasedItems.containsKey(item)) {
+                leasedItems.put(item, lease);
+                lease.pending++;
+            }
+        }
+    }
+
+    /**
+     * Marks that all items of the part of a lease are given out, after {@link #givenOut}.
+     */
+    public void allGivenOut(Lease lease) {
+        if (lease == null) {
+            return;
+        }
+        synchronized (this) {
+            lease.givenOut = true;
+            if (lease.pending > 0) {
+                return;
+            }
+        }
+        settle(lease);
+    }
+
+    /**
+     * Marks entries as finished after their batch transaction, including its retries, is finished.
+     * Leases all items of which are finished are marked done, or released if any of them failed.
+     *
+     * @param entries items or batches of items.
+     * @param committed whether the batch was committed.
+     */
+    public void finished(Collection<?> entries, boolean committed) {
+        List<Lease> settled = new ArrayList<>();
+        synchronized (this) {
+            for (Object entry : entries) {
+                if (!leasedItems.containsKey(entry) && entry instanceof List) {
+                    for (Object item : (List<?>) entry) {
+                        finished(item, committed, settled);
+                    }
+                } else {
+                    finished(entry, committed, settled);
+                }
+            }
+        }
+        for (Lease lease : settled) {
+            settle(lease);
+        }
+    }
+
+    private void finished(Object item, boolean committed, List<Lease> settled) {
+        Lease lease = leasedItems.remove(item);
+        if (lease != null) {
+            lease.pending--;
+            lease.failed |= !committed;
+            if (lease.pending == 0 && lease.givenOut) {
+                settled.add(lease);
+            }
+        }
+    }
+
+    private void settle(final Lease lease) {
+        final String state = lease.failed ? STATE_RELEASED : STATE_DONE;
+        try {
+            transactionService.getRetryingTransactionHelper().doInTransaction(
+                    new RetryingTransactionCallback<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    attributeService.setAttribute(newLease(state), ATTR_LEASES, runId,
+                            key(lease.id, lease.generation));
+                    return null;
+                }
+            }, false, true);
+            if (lease.failed) {
+                logger.info(String.format("Cluster member %s has released failed part %s of run '%s'",
+                        member, lease.id, runId));
+            }
+        } catch (RuntimeException e) {
+            // The lease stays claimed and is taken over once this member is finished
+            logger.warn(String.format("Failed to mark part %s of cluster run %s %s", lease.id, runId, state), e);
+        }
+    }
+
+    /**
+     * Reads progress published by all members of the run.
+     *
+     * @return processed items summed over the members.
+     */
+    public Progress getProgress() {
+        Map<String, Map<String, Serializable>> members = transactionService.getRetryingTransactionHelper()
+                .doInTransaction(new RetryingTransactionCallback<Map<String, Map<String, Serializable>>>() {
+            @Override
+            public Map<String, Map<String, Serializable>> execute() throws Throwable {
+                return readMembers();
+            }
+        }, true, true);
+        Progress progress = new Progress();
+        for (Map.Entry<String, Map<String, Serializable>> entry : members.entrySet()) {
+            long processed = (Long) entry.getValue().get(KEY_PROCESSED);
+            progress.processed += processed;
+            progress.total = Math.max(progress.total, (Long) entry.getValue().get(KEY_TOTAL));
+            progress.members.put(entry.getKey(), processed);
+        }
+        return progress;
+    }
+
+    private void publish(boolean finished) {
+        final HashMap<String, Serializable> value = new HashMap<>();
+        value.put(KEY_HEARTBEAT, System.currentTimeMillis());
+        value.put(KEY_PROCESSED, job.getStats().getItems());
+        value.put(KEY_TOTAL, getTotal());
+        value.put(KEY_FINISHED, finished);
+        synchronized (publishLock) {
+            // A heartbeat late for the finish must not make this member alive again
+            if (stopped && !finished) {
+                return;
+            }
+            try {
+                transactionService.getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<Void>() {
+                    @Override
+                    public Void execute() throws Throwable {
+                        attributeService.setAttribute(value, ATTR_MEMBERS, runId, member);
+                        return null;
+                    }
+                }, false, true);
+            } catch (RuntimeException e) {
+                // The next heartbeat is tried again
+                logger.warn(String.format("Failed to publish heartbeat of %s in cluster run %s",
+                        member, runId), e);
+            }
+        }
+    }
+
+    private long getTotal() {
+        if (job instanceof BatchJobParameters.ProcessArrayJobParameters) {
+            return ((BatchJobParameters.ProcessArrayJobParameters) job).getItems().size();
+        }
+        return job.getEstimatedSize();
+    }
+
+    private HashMap<String, Serializable> newLease(String state) {
+        HashMap<String, Serializable> lease = new HashMap<>();
+        lease.put(KEY_OWNER, member);
+        lease.put(KEY_STATE, state);
+        return lease;
+    }
+
+    /**
+     * A lease is abandoned when its owner has released it, or has not been heard of
+     * for a while or is finished without marking it done.
+     */
+    private boolean isAbandoned(Map<String, Serializable> lease, Map<String, Serializable> owner) {
+        Serializable state = lease.get(KEY_STATE);
+        return STATE_RELEASED.equals(state) || STATE_CLAIMED.equals(state) && !isAlive(owner);
+    }
+
+    private boolean isAlive(Map<String, Serializable> member) {
+        return member != null && !Boolean.TRUE.equals(member.get(KEY_FINISHED)) &&
+                System.currentTimeMillis() - (Long) member.get(KEY_HEARTBEAT) < EXPIRY_MS;
+    }
+
+    private static String key(String leaseId, int generation) {
+        return leaseId + "#" + generation;
+    }
+
+    /**
+     * @return latest generation of a lease with its value, or null if it was never claimed.
+     */
+    @SuppressWarnings("unchecked")
+    private Pair<Integer, Map<String, Serializable>> readLatest(String leaseId) {
+        Pair<Integer, Map<String, Serializable>> latest = null;
+        Map<String, Serializable> lease;
+        for (int generation = 0; (lease = (Map<String, Serializable>) attributeService.getAttribute(
+                ATTR_LEASES, runId, key(leaseId, generation))) != null; generation++) {
+            latest = new Pair<>(generation, lease);
+        }
+        return latest;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Serializable> readMember(Serializable name) {
+        return (Map<String, Serializable>) attributeService.getAttribute(ATTR_MEMBERS, runId, name);
+    }
+
+    /**
+     * @return latest generation of each lease of the run by lease IDs.
+     */
+    private Map<String, Map<String, Serializable>> readLeases() {
+        final Map<String, Map<String, Serializable>> leases = new HashMap<>();
+        final Map<String, Integer> generations = new HashMap<>();
+        attributeService.getAttributes(new AttributeQueryCallback() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+                String key = String.valueOf(keys[2]);
+                int separator = key.lastIndexOf('#');
+                String leaseId = key.substring(0, separator);
+                int generation = Integer.parseInt(key.substring(separator + 1));
+                Integer latest = generations.get(leaseId);
+                if (latest == null || latest < generation) {
+                    generations.put(leaseId, generation);
+                    leases.put(leaseId, (Map<String, Serializable>) value);
+                }
+                return true;
+            }
+        }, ATTR_LEASES, runId);
+        return leases;
+    }
+
+    /**
+     * @return heartbeats of the members of the run by member names.
+     */
+    private Map<String, Map<String, Serializable>> readMembers() {
+        final Map<String, Map<String, Serializable>> members = new TreeMap<>();
+        attributeService.getAttributes(new AttributeQueryCallback() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+                members.put(String.valueOf(keys[2]), (Map<String, Serializable>) value);
+                return true;
+            }
+        }, ATTR_MEMBERS, runId);
+        return members;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public String getMember() {
+        return member;
+    }
+}
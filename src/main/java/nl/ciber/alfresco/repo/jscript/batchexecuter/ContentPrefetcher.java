@@ -0,0 +1,285 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.*;
+
+/**
+ * Reads content of nodes on a separate pool of I/O threads before their batch is processed,
+ * so that processing functions get content which is already in memory, and batch transactions
+ * do not wait for disk.
+ *
+ * Buffered content is limited in size: reading stops until read content is taken by workers
+ * or discarded. A worker waits for a read which already has its budget, and reads content itself
+ * when its read has not started yet or still waits for budget, which only the worker may free.
+ * Content larger than {@link #MAPPED_THRESHOLD} is never buffered: files are memory-mapped,
+ * other content and files too large to map are streamed from the store when they are read.
+ *
+ * @author Bulat Yaminov
+ */
+public class ContentPrefetcher {
+
+    private static final long MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+    private static final long MAPPED_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+    private static final int KB = 1024;
+    private static final long ACQUIRE_POLL_MS = 100;
+
+    private ServiceRegistry sr;
+    private String userName;
+    private Log logger;
+    private ExecutorService ioThreads;
+    /** Free budget of buffered content in kilobytes */
+    private Semaphore budget = new Semaphore((int) (MAX_BUFFERED_BYTES / KB));
+    private ConcurrentHashMap<NodeRef, Prefetch> prefetched = new ConcurrentHashMap<>();
+    private volatile boolean paused = false;
+
+    public ContentPrefetcher(ServiceRegistry sr, String userName, int threads, final String jobName, Log logger) {
+        this.sr = sr;
+        this.userName = userName;
+        this.logger = logger;
+        this.ioThreads = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, jobName + "-prefetch-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts reading content of a node, unless it is already being read.
+     */
+    public void prefetch(NodeRef node) {
+        if (paused) {
+            return;
+        }
+        Prefetch prefetch = new Prefetch(node);
+        if (prefetched.putIfAbsent(node, prefetch) == null) {
+            ioThreads.execute(prefetch.task);
+        }
+    }
+
+    /**
+     * Gives the content of a node, waiting for its read if it is in progress, and frees its budget
+     * right away. Content which was not prefetched, whose read has not started, or is waiting for
+     * budget which only the calling batch can free, is read in the calling thread.
+     *
+     * @return the content or null if the node has none.
+     */
+    public PrefetchedContent take(NodeRef node) throws IOException {
+        Prefetch prefetch = prefetched.remove(node);
+        if (prefetch != null) {
+            try {
+                if (prefetch.take()) {
+                    return prefetch.task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while taking content of " + node, e);
+            } catch (CancellationException | ExecutionException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("prefetch of " + node + " failed, reading it again", e);
+                }
+            } finally {
+                prefetch.discard();
+            }
+        }
+        return read(node, null);
+    }
+
+    /**
+     * Frees buffers of nodes which are processed.
+     */
+    public void discard(Collection<NodeRef> nodes) {
+        for (NodeRef node : nodes) {
+            Prefetch prefetch = prefetched.remove(node);
+            if (prefetch != null) {
+                prefetch.discard();
+            }
+        }
+    }
+
+    /**
+     * Stops or resumes reading ahead, e.g. while the heap is nearly full. Content of nodes
+     * given while paused is read when it is taken, without being buffered.
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public void shutdown() {
+        ioThreads.shutdownNow();
+        prefetched.clear();
+    }
+
+    /**
+     * Reads content of a node in new read-only transactions. A prefetch waits for the budget
+     * between finding the content and reading it, so that it holds no transaction while waiting.
+     * Content over the threshold is mapped or streamed, so no more than the threshold is ever
+     * allocated for one node, and a prefetch never allocates more than the budget it holds.
+     *
+     * @param prefetch the prefetch reading the content, or null when read by a worker.
+     */
+    private PrefetchedContent read(final NodeRef node, Prefetch prefetch) throws IOException {
+        try {
+            final ContentReader reader = sr.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                    new RetryingTransactionCallback<ContentReader>() {
+                @Override
+                public ContentReader execute() throws Throwable {
+                    ContentReader reader = sr.getContentService().getReader(node, ContentModel.PROP_CONTENT);
+                    return reader == null || !reader.exists() ? null : reader;
+                }
+            }, true, true);
+            if (reader == null) {
+                return null;
+            }
+            final long size = reader.getSize();
+            if (size > MAPPED_THRESHOLD) {
+                if (size <= MAX_MAPPED_BYTES && reader instanceof FileContentReader) {
+                    try (FileChannel channel = FileChannel.open(((FileContentReader) reader).getFile().toPath(),
+                            StandardOpenOption.READ)) {
+                        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                        return new PrefetchedContent(mapped, reader.getMimetype(), reader.getEncoding(), true);
+                    }
+                }
+                return new PrefetchedContent(reader);
+            }
+            if (prefetch != null && !acquire(prefetch, size)) {
+                throw new CancellationException("prefetch of " + node + " is discarded");
+            }
+            return sr.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                    new RetryingTransactionCallback<PrefetchedContent>() {
+                @Override
+                public PrefetchedContent execute() throws Throwable {
+                    ByteBuffer bytes = ByteBuffer.allocate((int) size);
+                    try (InputStream in = reader.getReader().getContentInputStream()) {
+                        byte[] chunk = new byte[8 * KB];
+                        int count;
+                        while ((count = in.read(chunk)) > 0 && bytes.hasRemaining()) {
+                            bytes.put(chunk, 0, Math.min(count, bytes.remaining()));
+                        }
+                    }
+                    bytes.flip();
+                    return new PrefetchedContent(bytes, reader.getMimetype(), reader.getEncoding(), false);
+                }
+            }, true, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for budget to read " + node, e);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to read content of " + node, e);
+        }
+    }
+
+    /**
+     * Waits for the budget of content once per read, giving up when the prefetch is discarded,
+     * e.g. because its node was taken and read by a worker in the meantime. A prefetch which a
+     * worker already waits for reads without budget, as the worker would read it anyway.
+     *
+     * @param size size of the content, not above the threshold and so within the budget.
+     * @return false if the prefetch was discarded.
+     */
+    private boolean acquire(Prefetch prefetch, long size) throws InterruptedException {
+        int permits = (int) ((size + KB - 1) / KB);
+        if (!prefetch.startWaiting()) {
+            return true;
+        }
+        while (!budget.tryAcquire(permits, ACQUIRE_POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (prefetch.isDiscarded()) {
+                return false;
+            }
+        }
+        if (!prefetch.hold(permits)) {
+            // Discarded while waiting
+            budget.release(permits);
+            return false;
+        }
+        return true;
+    }
+
+    /** Content of one node being read */
+    private class Prefetch {
+
+        private final FutureTask<PrefetchedContent> task;
+        private int permits = 0;
+        private boolean started = false;
+        private boolean waiting = false;
+        private boolean taken = false;
+        private boolean discarded = false;
+
+        private Prefetch(final NodeRef node) {
+            this.task = new FutureTask<>(new Callable<PrefetchedContent>() {
+                @Override
+                public PrefetchedContent call() throws Exception {
+                    start();
+                    return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<PrefetchedContent>() {
+                        @Override
+                        public PrefetchedContent doWork() throws Exception {
+                            return read(node, Prefetch.this);
+                        }
+                    }, userName);
+                }
+            });
+        }
+
+        private synchronized void start() {
+            started = true;
+        }
+
+        /** @return false if a worker waits for the read, so it must not wait for budget */
+        private synchronized boolean startWaiting() {
+            waiting = !taken;
+            return waiting;
+        }
+
+        /** @return false if the content is already discarded and permits must be returned */
+        private synchronized boolean hold(int permits) {
+            waiting = false;
+            if (discarded) {
+                return false;
+            }
+            this.permits = permits;
+            return true;
+        }
+
+        /**
+         * Marks the read as waited for by a worker.
+         *
+         * @return false if the read has not started or waits for budget, and is not worth waiting for.
+         */
+        private synchronized boolean take() {
+            taken = started && !waiting && !discarded;
+            return taken;
+        }
+
+        private synchronized boolean isDiscarded() {
+            return discarded;
+        }
+
+        private synchronized void discard() {
+            discarded = true;
+            task.cancel(false);
+            budget.release(permits);
+            permits = 0;
+        }
+    }
+}
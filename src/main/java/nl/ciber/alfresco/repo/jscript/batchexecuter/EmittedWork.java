@@ -0,0 +1,159 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.NodeConverter;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Items added to a running job by its processing functions with {@code batchExecuter.emit(item)},
+ * e.g. nodes found through associations of the node being processed.
+ *
+ * Each worker thread puts its items at the tail of its own deque, so emitting takes no shared
+ * lock. The work provider steals items from the heads of the deques, one deque after another,
+ * and gives them out before new work of the job source, so that fan-out work is spread over
+ * all threads while the deques stay short.
+ *
+ * Items emitted in a transaction are kept aside until it commits, so that a rolled back or
+ * retried batch does not add its items twice, or add items of work which was undone.
+ *
+ * Nodes emitted by folder jobs are kept as references and converted like the other nodes of
+ * the job when they are given out.
+ *
+ * @author Bulat Yaminov
+ */
+public class EmittedWork {
+
+    private NodeConverter converter;
+    private VisitedNodes visited;
+    private List<Deque<Object>> deques = new CopyOnWriteArrayList<>();
+    private ThreadLocal<Deque<Object>> ownDeque = new ThreadLocal<>();
+    /** Deque to steal from first next time, so that all threads get their items processed */
+    private int nextVictim = 0;
+    private AtomicLong emitted = new AtomicLong();
+
+    /**
+     * @param converter converter of emitted nodes, or null to give items as they are emitted.
+     * @param visited nodes already given out by a job with {@code dedupe}, or null.
+     */
+    public EmittedWork(NodeConverter converter, VisitedNodes visited) {
+        this.converter = converter;
+        this.visited = visited;
+    }
+
+    /**
+     * Adds an item to be processed by the job once the current transaction commits. Nodes already
+     * given out by a job with {@code dedupe} are not added again.
+     *
+     * @return true if the item is added, or will be added on commit; false if it was given out before.
+     * @throws IllegalArgumentException if the job processes nodes and the item is not a node.
+     */
+    public boolean emit(Object item) {
+        NodeRef node = WorkProviders.toNodeRef(item);
+        if (node == null && item instanceof CharSequence && NodeRef.isNodeRef(item.toString())) {
+            node = new NodeRef(item.toString());
+        }
+        if (converter != null) {
+            if (node == null) {
+                throw new IllegalArgumentException("Jobs processing folders can only emit nodes, but item is: " + item);
+            }
+            item = node;
+        }
+        // Looked up while the transaction is open, the node is marked as visited on commit
+        Long id = visited == null || node == null ? null : visited.getId(node);
+        if (id != null && visited.contains(id)) {
+            return false;
+        }
+        if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_NONE) {
+            return add(item, id);
+        }
+        PendingItems pending = (PendingItems) AlfrescoTransactionSupport.getResource(this);
+        if (pending == null) {
+            pending = new PendingItems();
+            AlfrescoTransactionSupport.bindResource(this, pending);
+            AlfrescoTransactionSupport.bindListener(pending);
+        }
+        pending.items.add(new Pair<>(item, id));
+        return true;
+    }
+
+    private boolean add(Object item, Long id) {
+        if (id != null && !visited.add(id)) {
+            return false;
+        }
+        Deque<Object> deque = ownDeque.get();
+        if (deque == null) {
+            deque = new ConcurrentLinkedDeque<>();
+            ownDeque.set(deque);
+            deques.add(deque);
+        }
+        deque.addLast(item);
+        emitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Takes the oldest emitted items, up to a batch.
+     *
+     * @return converted items, or empty list if nothing is emitted.
+     */
+    public synchronized List<Object> steal(int max) {
+        List<Object> items = new ArrayList<>();
+        int count = deques.size();
+        for (int i = 0; i < count && items.size() < max; i++) {
+            Deque<Object> victim = deques.get((nextVictim + i) % count);
+            Object item;
+            while (items.size() < max && (item = victim.pollFirst()) != null) {
+                items.add(item);
+            }
+        }
+        if (count > 0) {
+            nextVictim = (nextVictim + 1) % count;
+        }
+        if (converter == null || items.isEmpty()) {
+            return items;
+        }
+        List<NodeRef> nodes = new ArrayList<>(items.size());
+        for (Object item : items) {
+            nodes.add((NodeRef) item);
+        }
+        return converter.convert(nodes);
+    }
+
+    public boolean isEmpty() {
+        for (Deque<Object> deque : deques) {
+            if (!deque.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of items emitted so far.
+     */
+    public long getCount() {
+        return emitted.get();
+    }
+
+    /** Items emitted in one transaction, added to the job once it commits */
+    private class PendingItems extends TransactionListenerAdapter {
+        private List<Pair<Object, Long>> items = new ArrayList<>();
+
+        @Override
+        public void afterCommit() {
+            for (Pair<Object, Long> item : items) {
+                add(item.getFirst(), item.getSecond());
+            }
+        }
+    }
+}
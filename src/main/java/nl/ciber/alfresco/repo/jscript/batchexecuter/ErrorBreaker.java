@@ -0,0 +1,121 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+
+import java.util.Map;
+
+/**
+ * Cancels a job whose batches keep failing, e.g. because of a bug in the script, instead
+ * of letting it run through all the work only to log the same error for each batch.
+ *
+ * Trips when {@code maxConsecutiveFailures} batches in a row have failed, or when the share
+ * of failed batches among the last {@link #WINDOW} batches is over {@code maxErrorRate}.
+ * The rate is only checked once {@link #MIN_BATCHES} batches are done, so that one early
+ * failure does not stop the job.
+ *
+ * @author Bulat Yaminov
+ */
+public class ErrorBreaker {
+
+    private static final int WINDOW = 100;
+    private static final int MIN_BATCHES = 10;
+
+    private double maxErrorRate = -1;
+    private int maxConsecutiveFailures = -1;
+
+    /** Outcomes of the last batches, true for failed */
+    private boolean[] window = new boolean[WINDOW];
+    private int windowNext = 0;
+    private int windowSize = 0;
+    private int windowFailures = 0;
+    private int consecutiveFailures = 0;
+    private long failedBatches = 0;
+    private boolean tripped = false;
+
+    /**
+     * Parse breaker settings from JavaScript parameters.
+     *
+     * @param params job parameters.
+     * @param rateParam name of the maximum error rate parameter.
+     * @param consecutiveParam name of the maximum consecutive failures parameter.
+     * @return breaker, or null if neither parameter is given.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static ErrorBreaker parse(Map<String, Object> params, String rateParam, String consecutiveParam)
+            throws IllegalArgumentException {
+        Object rate = params.get(rateParam);
+        if (rate == null && params.get(consecutiveParam) == null) {
+            return null;
+        }
+        ErrorBreaker breaker = new ErrorBreaker();
+        if (rate != null) {
+            if (!(rate instanceof Number) || ((Number) rate).doubleValue() < 0 || ((Number) rate).doubleValue() > 1) {
+                throw new IllegalArgumentException(rateParam + " must be a number from 0 to 1, but is instead: " +
+                        rate);
+            }
+            breaker.maxErrorRate = ((Number) rate).doubleValue();
+        }
+        if (params.get(consecutiveParam) != null) {
+            breaker.maxConsecutiveFailures = RhinoUtils.getInteger(params, consecutiveParam, -1);
+            if (breaker.maxConsecutiveFailures < 1) {
+                throw new IllegalArgumentException(consecutiveParam + " must be at least 1");
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Records the outcome of a batch.
+     *
+     * @param failed true if the last transaction of the batch was rolled back.
+     * @return reason to cancel the job if the breaker has just tripped, null otherwise.
+     */
+    public synchronized String batchDone(boolean failed) {
+        if (window[windowNext]) {
+            windowFailures--;
+        }
+        window[windowNext] = failed;
+        windowNext = (windowNext + 1) % WINDOW;
+        windowSize = Math.min(WINDOW, windowSize + 1);
+        if (failed) {
+            windowFailures++;
+            consecutiveFailures++;
+            failedBatches++;
+        } else {
+            consecutiveFailures = 0;
+        }
+
+        if (tripped) {
+            return null;
+        }
+        if (maxConsecutiveFailures > 0 && consecutiveFailures >= maxConsecutiveFailures) {
+            tripped = true;
+            return String.format("%d batches in a row failed", consecutiveFailures);
+        }
+        double rate = 1.0d * windowFailures / windowSize;
+        if (maxErrorRate >= 0 && windowSize >= MIN_BATCHES && rate > maxErrorRate) {
+            tripped = true;
+            return String.format("%d of the last %d batches failed", windowFailures, windowSize);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the breaker has canceled the job.
+     */
+    public synchronized boolean isTripped() {
+        return tripped;
+    }
+
+    public synchronized long getFailedBatches() {
+        return failedBatches;
+    }
+
+    public double getMaxErrorRate() {
+        return maxErrorRate;
+    }
+
+    public int getMaxConsecutiveFailures() {
+        return maxConsecutiveFailures;
+    }
+}
@@ -0,0 +1,155 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Describes how a folder is traversed: which nodes are containers, which child associations
+ * lead to their children and how deep to go. An optional {@code onFolder} function is called
+ * for each container before its children are listed, returning {@code false} from it skips
+ * the container together with its whole sub-tree.
+ *
+ * @author Bulat Yaminov
+ */
+public class FolderTraversal {
+
+    private static final String PARAM_ASSOC_TYPES = "assocTypes";
+    private static final String PARAM_CONTAINER_TYPES = "containerTypes";
+    private static final String PARAM_MAX_DEPTH = "maxDepth";
+
+    private List<String> assocTypeNames = Collections.emptyList();
+    private List<String> containerTypeNames = Collections.emptyList();
+    private int maxDepth = -1;
+    private Function onFolder;
+
+    private NodeService ns;
+    private DictionaryService ds;
+    private List<QName> assocTypes;
+    private List<QName> containerTypes;
+    /** Node type to whether it is a container */
+    private ConcurrentHashMap<QName, Boolean> containers = new ConcurrentHashMap<>();
+
+    /**
+     * Parse traversal from JavaScript parameters.
+     *
+     * @param params parameters map of the traversal object, may be null.
+     * @param onFolder function deciding whether to enter a folder, may be null.
+     * @return traversal, following cm:contains associations of cm:folder subtypes by default.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static FolderTraversal parse(Map<String, Object> params, Function onFolder)
+            throws IllegalArgumentException {
+        FolderTraversal traversal = new FolderTraversal();
+        if (params != null) {
+            traversal.assocTypeNames = RhinoUtils.getStrings(params, PARAM_ASSOC_TYPES);
+            traversal.containerTypeNames = RhinoUtils.getStrings(params, PARAM_CONTAINER_TYPES);
+            traversal.maxDepth = RhinoUtils.getInteger(params, PARAM_MAX_DEPTH, -1);
+        }
+        traversal.onFolder = onFolder;
+        return traversal;
+    }
+
+    /**
+     * Resolves names used in the traversal. Must be called before the traversal is used.
+     */
+    public void bind(ServiceRegistry sr) {
+        ns = sr.getNodeService();
+        ds = sr.getDictionaryService();
+        NamespaceService namespaceService = sr.getNamespaceService();
+        assocTypes = new ArrayList<>();
+        for (String name : assocTypeNames) {
+            assocTypes.add(QName.resolveToQName(namespaceService, name));
+        }
+        if (assocTypes.isEmpty()) {
+            assocTypes.add(ContentModel.ASSOC_CONTAINS);
+        }
+        containerTypes = new ArrayList<>();
+        for (String name : containerTypeNames) {
+            containerTypes.add(QName.resolveToQName(namespaceService, name));
+        }
+        if (containerTypes.isEmpty()) {
+            containerTypes.add(ContentModel.TYPE_FOLDER);
+        }
+    }
+
+    /**
+     * @param depth depth of a container below the root.
+     * @return true if children of the container should be traversed.
+     */
+    public boolean canDescend(int depth) {
+        return maxDepth < 0 || depth < maxDepth;
+    }
+
+    public boolean isContainer(NodeRef node) {
+        QName type = ns.getType(node);
+        Boolean container = containers.get(type);
+        if (container == null) {
+            container = false;
+            for (QName containerType : containerTypes) {
+                if (ds.isSubClass(type, containerType)) {
+                    container = true;
+                    break;
+                }
+            }
+            containers.put(type, container);
+        }
+        return container;
+    }
+
+    /**
+     * Asks {@code onFolder} function whether a container should be entered.
+     * Must be called in a thread with JavaScript context.
+     *
+     * @param folder the container converted for JavaScript.
+     * @return false if the function returned false, true otherwise.
+     */
+    public boolean enter(Object folder, Scriptable scope) {
+        if (onFolder == null) {
+            return true;
+        }
+        Object result = onFolder.call(Context.getCurrentContext(), scope, scope, new Object[]{folder});
+        // Returning nothing means the folder is entered
+        return !Boolean.FALSE.equals(result);
+    }
+
+    public List<ChildAssociationRef> getChildren(NodeRef container) {
+        if (assocTypes.size() == 1) {
+            return ns.getChildAssocs(container, assocTypes.get(0), RegexQNamePattern.MATCH_ALL);
+        }
+        List<ChildAssociationRef> children = new ArrayList<>();
+        for (QName assocType : assocTypes) {
+            children.addAll(ns.getChildAssocs(container, assocType, RegexQNamePattern.MATCH_ALL));
+        }
+        return children;
+    }
+
+    public boolean hasOnFolder() {
+        return onFolder != null;
+    }
+
+    public List<String> getAssocTypes() {
+        return assocTypeNames;
+    }
+
+    public List<String> getContainerTypes() {
+        return containerTypeNames;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
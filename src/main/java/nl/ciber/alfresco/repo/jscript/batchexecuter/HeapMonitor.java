@@ -0,0 +1,188 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tells the work providers of a job started with {@code maxHeapUsage} when the heap is nearly full,
+ * so that they stop feeding work until it is freed again, instead of letting a traversal or a large
+ * array outrun the workers and push the repository into long garbage collection pauses.
+ *
+ * The old generation pool is watched through its collection usage threshold: the JVM notifies
+ * as soon as the memory still used after a garbage collection is over it, so the heap is not
+ * polled while the job runs normally. Once notified, the provider waits until usage drops a bit
+ * below the threshold, or at most {@link #MAX_PAUSE_MS}, so that a heap filled by something else
+ * cannot hang the job. The threshold is set for the whole JVM, to the lowest one of running jobs,
+ * and the threshold the pool had before is restored once no job with the monitor runs any more.
+ *
+ * @author Bulat Yaminov
+ */
+public class HeapMonitor implements NotificationListener {
+
+    /** Feeding resumes once usage is this much below the threshold */
+    private static final double HYSTERESIS = 0.05;
+    public static final long MAX_PAUSE_MS = 60 * 1000;
+
+    /** Monitors of running jobs, sharing the threshold of the pool */
+    private static final Set<HeapMonitor> running = new HashSet<>();
+    /** Threshold of the pool before the first of the running jobs started, guarded by running */
+    private static long savedThreshold = 0;
+
+    private double maxUsage;
+    private MemoryPoolMXBean pool;
+    private volatile boolean pressure = false;
+
+    /**
+     * Parse heap monitor settings from JavaScript parameters.
+     *
+     * @param param share of the old generation which may be used after a collection, may be null.
+     * @param paramName name of the parameter for error messages.
+     * @return monitor, or null if no parameter is given.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static HeapMonitor parse(Object param, String paramName) throws IllegalArgumentException {
+        if (param == null) {
+            return null;
+        }
+        if (!(param instanceof Number) || ((Number) param).doubleValue() <= HYSTERESIS ||
+                ((Number) param).doubleValue() >= 1) {
+            throw new IllegalArgumentException(paramName + " must be a number above " + HYSTERESIS +
+                    " and below 1, but is instead: " + param);
+        }
+        HeapMonitor monitor = new HeapMonitor();
+        monitor.maxUsage = ((Number) param).doubleValue();
+        return monitor;
+    }
+
+    /**
+     * Starts watching the heap.
+     *
+     * @return false if the JVM has no pool which can be watched, so the job runs without the monitor.
+     */
+    public boolean start() {
+        pool = findOldGeneration();
+        if (pool == null) {
+            return false;
+        }
+        synchronized (running) {
+            if (running.isEmpty()) {
+                savedThreshold = pool.getCollectionUsageThreshold();
+            }
+            running.add(this);
+            applyThreshold(pool);
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+        pressure = isOver(pool.getCollectionUsage(), maxUsage);
+        return true;
+    }
+
+    public void stop() {
+        if (pool == null) {
+            return;
+        }
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            // not started
+        }
+        synchronized (running) {
+            running.remove(this);
+            applyThreshold(pool);
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+            thresholdExceeded(info.getPoolName(), info.getUsage());
+        }
+    }
+
+    /**
+     * Handles the usage of a pool after a collection which is over the threshold set for the JVM.
+     */
+    void thresholdExceeded(String poolName, MemoryUsage usage) {
+        // The threshold may be set lower by another job
+        if (pool.getName().equals(poolName) && isOver(usage, maxUsage)) {
+            pressure = true;
+        }
+    }
+
+    /**
+     * @return true if feeding work must pause.
+     */
+    public boolean isUnderPressure() {
+        return pressure;
+    }
+
+    /**
+     * Checks whether the heap is freed enough for feeding to resume, either after a collection
+     * or right now.
+     */
+    public boolean isRelieved() {
+        double resumeUsage = maxUsage - HYSTERESIS;
+        if (!isOver(pool.getCollectionUsage(), resumeUsage) || !isOver(pool.getUsage(), resumeUsage)) {
+            pressure = false;
+        }
+        return !pressure;
+    }
+
+    /**
+     * @return share of the old generation used after the last collection.
+     */
+    public double getUsage() {
+        MemoryUsage usage = pool == null ? null : pool.getCollectionUsage();
+        return usage == null || usage.getMax() <= 0 ? 0 : 1.0d * usage.getUsed() / usage.getMax();
+    }
+
+    public double getMaxUsage() {
+        return maxUsage;
+    }
+
+    /**
+     * @return name of the watched pool, or null if the monitor is not started.
+     */
+    public String getPoolName() {
+        return pool == null ? null : pool.getName();
+    }
+
+    private static boolean isOver(MemoryUsage usage, double share) {
+        return usage != null && usage.getMax() > 0 && usage.getUsed() > usage.getMax() * share;
+    }
+
+    /**
+     * Young generation pools do not support usage thresholds, the old generation does.
+     */
+    private static MemoryPoolMXBean findOldGeneration() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() &&
+                    pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private static void applyThreshold(MemoryPoolMXBean pool) {
+        if (running.isEmpty()) {
+            pool.setCollectionUsageThreshold(savedThreshold);
+            return;
+        }
+        double lowest = 1;
+        for (HeapMonitor monitor : running) {
+            lowest = Math.min(lowest, monitor.maxUsage);
+        }
+        pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * lowest));
+    }
+}
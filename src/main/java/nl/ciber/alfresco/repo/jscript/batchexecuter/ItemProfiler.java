@@ -0,0 +1,277 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how long processing of each item takes in a job started with {@code profile}
+ * parameter, to find the few items which take most of the time.
+ *
+ * Keeps a histogram of times and the slowest items. Items faster than the slowest ones
+ * already kept are only counted in the histogram, without taking a lock. A background
+ * thread looks at calls running longer than {@code stackAfterMs} and takes one stack
+ * trace of each, which is shown with the item if it ends up among the slowest.
+ *
+ * Items of {@code onBatch} and of jobs with {@code partitionBy} are measured by batch.
+ *
+ * @author Bulat Yaminov
+ */
+public class ItemProfiler implements Runnable {
+
+    private static final String PARAM_TOP = "top";
+    private static final String PARAM_STACK_AFTER_MS = "stackAfterMs";
+
+    private static final int DEFAULT_TOP = 10;
+    private static final int DEFAULT_STACK_AFTER_MS = 1000;
+    /** Upper bounds of histogram buckets, the last bucket has no bound */
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    /** Frames kept from the top of a stack, before script frames */
+    private static final int TOP_FRAMES = 5;
+    private static final int MAX_SCRIPT_FRAMES = 15;
+
+    private int top = DEFAULT_TOP;
+    private int stackAfterMs = DEFAULT_STACK_AFTER_MS;
+
+    private AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+    /** The fastest of the slowest items is at the head */
+    private final PriorityQueue<SlowItem> slowest = new PriorityQueue<>();
+    /** Items faster than this cannot be among the slowest */
+    private volatile long slowestMinNanos = 0;
+    private Map<Thread, Call> running = new ConcurrentHashMap<>();
+    private volatile boolean stopped = false;
+
+    /**
+     * Parse profiler settings from JavaScript parameters.
+     *
+     * @param param {@code true} or an object with {@code top} and {@code stackAfterMs}, may be null.
+     * @param paramName name of the parameter for error messages.
+     * @return profiler, or null if items are not profiled.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static ItemProfiler parse(Object param, String paramName) throws IllegalArgumentException {
+        if (param == null || Boolean.FALSE.equals(param)) {
+            return null;
+        }
+        ItemProfiler profiler = new ItemProfiler();
+        if (param instanceof ScriptableObject) {
+            Map<String, Object> params = RhinoUtils.convertToMap((ScriptableObject) param);
+            profiler.top = RhinoUtils.getInteger(params, PARAM_TOP, DEFAULT_TOP);
+            profiler.stackAfterMs = RhinoUtils.getInteger(params, PARAM_STACK_AFTER_MS, DEFAULT_STACK_AFTER_MS);
+        } else if (!Boolean.TRUE.equals(param)) {
+            throw new IllegalArgumentException(paramName + " must be true or an object, but is instead: " + param);
+        }
+        if (profiler.top < 1 || profiler.stackAfterMs < 1) {
+            throw new IllegalArgumentException(paramName + " values must be positive");
+        }
+        return profiler;
+    }
+
+    /**
+     * Starts taking stacks of slow calls in a new daemon thread.
+     */
+    public void start(String jobName) {
+        Thread thread = new Thread(this, jobName + "-profiler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Marks the start of processing an item by the current thread.
+     */
+    public Call started(Object item) {
+        Call call = new Call(item);
+        running.put(Thread.currentThread(), call);
+        return call;
+    }
+
+    /**
+     * Records the time of an item whose processing has finished, successfully or not.
+     */
+    public void finished(Call call) {
+        running.remove(Thread.currentThread());
+        long nanos = System.nanoTime() - call.startedNanos;
+        histogram.incrementAndGet(bucketOf(nanos / 1000000));
+        if (nanos > slowestMinNanos) {
+            synchronized (slowest) {
+                slowest.add(new SlowItem(describe(call.item), nanos, call.stack));
+                if (slowest.size() > top) {
+                    slowest.poll();
+                }
+                if (slowest.size() == top) {
+                    slowestMinNanos = slowest.peek().nanos;
+                }
+            }
+        }
+    }
+
+    private static int bucketOf(long millis) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (millis < BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    private static String describe(Object item) {
+        if (item instanceof List) {
+            List<?> batch = (List<?>) item;
+            return String.format("batch of %d from %s", batch.size(), batch.isEmpty() ? "" : describe(batch.get(0)));
+        }
+        NodeRef node = WorkProviders.toNodeRef(item);
+        if (node != null) {
+            return node.toString();
+        }
+        // JavaScript numbers are doubles, written as the script would
+        return item instanceof Number ? Context.toString(item) : String.valueOf(item);
+    }
+
+    @Override
+    public void run() {
+        long stackAfterNanos = stackAfterMs * 1000000L;
+        while (!stopped) {
+            try {
+                Thread.sleep(Math.max(10, stackAfterMs / 2));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Map.Entry<Thread, Call> entry : running.entrySet()) {
+                Call call = entry.getValue();
+                if (call.stack == null && now - call.startedNanos > stackAfterNanos) {
+                    call.stack = scriptStack(entry.getKey().getStackTrace());
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the top frames, telling what the call is waiting for, and frames of the
+     * scripts, telling which line of the function it is on.
+     */
+    private static List<String> scriptStack(StackTraceElement[] frames) {
+        List<String> stack = new ArrayList<>();
+        int scriptFrames = 0;
+        for (int i = 0; i < frames.length && scriptFrames < MAX_SCRIPT_FRAMES; i++) {
+            StackTraceElement frame = frames[i];
+            boolean script = frame.getClassName().startsWith("org.mozilla.javascript.gen.") ||
+                    (frame.getFileName() != null && frame.getFileName().endsWith(".js"));
+            if (script) {
+                stack.add(String.format("%s:%d", frame.getFileName(), frame.getLineNumber()));
+                scriptFrames++;
+            } else if (i < TOP_FRAMES) {
+                stack.add(frame.toString());
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * @return the slowest items, the slowest first.
+     */
+    public List<SlowItem> getSlowestItems() {
+        List<SlowItem> items;
+        synchronized (slowest) {
+            items = new ArrayList<>(slowest);
+        }
+        Collections.sort(items, Collections.reverseOrder());
+        return items;
+    }
+
+    /**
+     * @return number of items in each time range.
+     */
+    public List<Bucket> getHistogram() {
+        List<Bucket> buckets = new ArrayList<>(histogram.length());
+        for (int i = 0; i < histogram.length(); i++) {
+            String label = i < BUCKET_BOUNDS_MS.length ?
+                    "< " + BUCKET_BOUNDS_MS[i] + " ms" : ">= " + BUCKET_BOUNDS_MS[i - 1] + " ms";
+            buckets.add(new Bucket(label, histogram.get(i)));
+        }
+        return buckets;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getStackAfterMs() {
+        return stackAfterMs;
+    }
+
+    /** Processing of one item by one thread */
+    public static class Call {
+        private final Object item;
+        private final long startedNanos = System.nanoTime();
+        private volatile List<String> stack;
+
+        private Call(Object item) {
+            this.item = item;
+        }
+    }
+
+    public static class SlowItem implements Comparable<SlowItem> {
+        private final String item;
+        private final long nanos;
+        private final List<String> stack;
+
+        private SlowItem(String item, long nanos, List<String> stack) {
+            this.item = item;
+            this.nanos = nanos;
+            this.stack = stack == null ? Collections.<String>emptyList() : stack;
+        }
+
+        public String getItem() {
+            return item;
+        }
+
+        public long getMillis() {
+            return nanos / 1000000;
+        }
+
+        /**
+         * @return stack taken while the item was processed, or empty if it was not slow enough.
+         */
+        public List<String> getStack() {
+            return stack;
+        }
+
+        @Override
+        public int compareTo(SlowItem o) {
+            return Long.compare(nanos, o.nanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d ms)", item, getMillis());
+        }
+    }
+
+    public static class Bucket {
+        private final String label;
+        private final long count;
+
+        private Bucket(String label, long count) {
+            this.label = label;
+            this.count = count;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Wrapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache shared by all threads of a job as {@code batchExecuter.cache}, for values which processing
+ * functions would otherwise look up again for each item, such as groups, categories or people.
+ *
+ * Entries are split into segments by their keys, each segment keeping its entries in access
+ * order and evicting the least recently used ones when it is full, so that threads rarely wait
+ * for each other. A value is computed once even when several threads ask for it at the same time:
+ * the others wait for it without holding the segment. Null values are cached as well, so that
+ * lookups of things which do not exist are not repeated either.
+ *
+ * A compute function must not ask the cache for other keys: two threads computing values which
+ * need each other's keys would wait for each other forever. A function asking for its own key is
+ * caught and fails, instead of waiting for itself.
+ *
+ * Values are kept for the whole job and are shared between transactions, so immutable values like
+ * node references or names are better cached than nodes read by another transaction.
+ *
+ * @author Bulat Yaminov
+ */
+public class JobCache {
+
+    private static final int SEGMENTS = 16;
+
+    private int maxSize;
+    private Segment[] segments = new Segment[SEGMENTS];
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize number of entries kept at most.
+     */
+    public JobCache(int maxSize) {
+        this.maxSize = maxSize;
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Gets a value, computing and caching it if it is not in the cache yet.
+     *
+     * @param key string, number or node.
+     * @param compute JavaScript function called with the key to compute the value.
+     * @return the cached or computed value, may be null.
+     */
+    public Object get(final Object key, final Function compute) {
+        Object cacheKey = toKey(key);
+        Segment segment = segmentOf(cacheKey);
+        Value value;
+        boolean computing = false;
+        synchronized (segment) {
+            value = segment.get(cacheKey);
+            if (value == null) {
+                final Scriptable scope = compute.getParentScope();
+                value = new Value(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return compute.call(Context.getCurrentContext(), scope, scope, new Object[]{key});
+                    }
+                });
+                segment.put(cacheKey, value);
+                computing = true;
+            }
+        }
+        if (computing) {
+            misses.incrementAndGet();
+            // Computed in the calling thread, so that the function runs in its context and transaction
+            value.compute();
+        } else {
+            hits.incrementAndGet();
+            checkNotComputing(value, cacheKey);
+        }
+        try {
+            return value.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for cached value of " + cacheKey, e);
+        } catch (ExecutionException e) {
+            // Failed values are computed again by the next call
+            synchronized (segment) {
+                if (segment.get(cacheKey) == value) {
+                    segment.remove(cacheKey);
+                }
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new JavaScriptException(e.getCause().toString(), null, 0);
+        }
+    }
+
+    /**
+     * @return the cached value, or null if there is none.
+     */
+    public Object get(Object key) {
+        Object cacheKey = toKey(key);
+        Segment segment = segmentOf(cacheKey);
+        Value value;
+        synchronized (segment) {
+            value = segment.get(cacheKey);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        checkNotComputing(value, cacheKey);
+        try {
+            return value.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Puts a value to the cache, replacing the cached one.
+     */
+    public void put(Object key, final Object value) {
+        Object cacheKey = toKey(key);
+        Value task = new Value(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return value;
+            }
+        });
+        task.run();
+        Segment segment = segmentOf(cacheKey);
+        synchronized (segment) {
+            segment.put(cacheKey, task);
+        }
+    }
+
+    /**
+     * JavaScript strings may come as other char sequences, numbers as any numbers, and nodes as
+     * different objects, so they are made equal to the same keys given before.
+     */
+    private static Object toKey(Object key) {
+        NodeRef node = WorkProviders.toNodeRef(key);
+        if (node != null) {
+            return node;
+        }
+        if (key instanceof Wrapper) {
+            key = ((Wrapper) key).unwrap();
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("cache key must not be null");
+        }
+        if (key instanceof CharSequence) {
+            return key.toString();
+        }
+        if (key instanceof Number) {
+            return ((Number) key).doubleValue();
+        }
+        return key;
+    }
+
+    /**
+     * @throws IllegalStateException if the value is being computed by the calling thread, which would
+     * wait for itself forever.
+     */
+    private static void checkNotComputing(Value value, Object cacheKey) {
+        if (value.computingThread == Thread.currentThread()) {
+            throw new IllegalStateException("Compute function of cache key " + cacheKey +
+                    " asks the cache for the same key");
+        }
+    }
+
+    private Segment segmentOf(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & Integer.MAX_VALUE) % SEGMENTS];
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Cached value, which knows the thread computing it */
+    private static class Value extends FutureTask<Object> {
+
+        private volatile Thread computingThread;
+
+        private Value(Callable<Object> callable) {
+            super(callable);
+        }
+
+        private void compute() {
+            computingThread = Thread.currentThread();
+            try {
+                run();
+            } finally {
+                computingThread = null;
+            }
+        }
+    }
+
+    /** Entries of some keys in access order, the least recently used first */
+    private static class Segment extends LinkedHashMap<Object, Value> {
+
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Value> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
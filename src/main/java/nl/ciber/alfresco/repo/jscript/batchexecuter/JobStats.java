@@ -0,0 +1,113 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a running job, updated by workers from all threads.
+ *
+ * @author Bulat Yaminov
+ */
+public class JobStats {
+
+    private volatile long startedMillis = System.currentTimeMillis();
+    private AtomicLong batches = new AtomicLong();
+    private AtomicLong items = new AtomicLong();
+    private AtomicLong retries = new AtomicLong();
+    private AtomicLong retriedBatches = new AtomicLong();
+    private AtomicInteger maxBatchRetries = new AtomicInteger();
+    private AtomicLong throttles = new AtomicLong();
+    private AtomicLong throttledMillis = new AtomicLong();
+
+    /**
+     * Marks the moment processing starts, for rates and estimates.
+     */
+    public void start() {
+        startedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a finished batch.
+     *
+     * @param items number of items in the batch.
+     * @param retries number of times the batch transaction was retried.
+     */
+    public void batchDone(int items, int retries) {
+        batches.incrementAndGet();
+        this.items.addAndGet(items);
+        if (retries > 0) {
+            this.retries.addAndGet(retries);
+            retriedBatches.incrementAndGet();
+            int max;
+            while ((max = maxBatchRetries.get()) < retries && !maxBatchRetries.compareAndSet(max, retries)) {
+                // another thread has changed the maximum, check again
+            }
+        }
+    }
+
+    /**
+     * @return number of batches processed, either committed or failed.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return number of items in processed batches.
+     */
+    public long getItems() {
+        return items.get();
+    }
+
+    /**
+     * @return milliseconds since processing started.
+     */
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startedMillis;
+    }
+
+    /**
+     * @return total number of transaction retries of all batches.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of batches which were retried at least once.
+     */
+    public long getRetriedBatches() {
+        return retriedBatches.get();
+    }
+
+    /**
+     * @return largest number of retries of a single batch.
+     */
+    public int getMaxBatchRetries() {
+        return maxBatchRetries.get();
+    }
+
+    /**
+     * Records a pause of feeding work while the heap was nearly full.
+     *
+     * @param millis how long feeding was paused.
+     */
+    public void throttled(long millis) {
+        throttles.incrementAndGet();
+        throttledMillis.addAndGet(millis);
+    }
+
+    /**
+     * @return number of times feeding work was paused because of heap usage.
+     */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * @return total milliseconds feeding work was paused because of heap usage.
+     */
+    public long getThrottledMillis() {
+        return throttledMillis.get();
+    }
+}
@@ -0,0 +1,208 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.jscript.ValueConverter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.cmr.repository.datatype.TypeConversionException;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.mozilla.javascript.NativeJavaObject;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Declarative node filter which is evaluated in Java by work providers, so that
+ * nodes not matching it are never wrapped into ScriptNode or passed to JavaScript.
+ *
+ * All given conditions must match: node type must be a subtype of one of
+ * {@code types} and of none of {@code excludeTypes}, the node must have all
+ * {@code aspects} and all {@code properties} must have the given values.
+ * {@code maxDepth} limits how deep a folder is traversed, 0 being the root itself.
+ *
+ * @author Bulat Yaminov
+ */
+public class NodeFilter {
+
+    private static final String PARAM_TYPES = "types";
+    private static final String PARAM_EXCLUDE_TYPES = "excludeTypes";
+    private static final String PARAM_ASPECTS = "aspects";
+    private static final String PARAM_PROPERTIES = "properties";
+    private static final String PARAM_MAX_DEPTH = "maxDepth";
+
+    private List<String> typeNames = Collections.emptyList();
+    private List<String> excludeTypeNames = Collections.emptyList();
+    private List<String> aspectNames = Collections.emptyList();
+    private Map<String, Object> propertyValues = Collections.emptyMap();
+    private int maxDepth = -1;
+
+    private NodeService ns;
+    private DictionaryService ds;
+    private List<QName> types;
+    private List<QName> excludeTypes;
+    private Set<QName> aspects;
+    private Map<QName, Serializable> properties;
+    /** Node type to the result of matching it, as the same types are met over and over */
+    private ConcurrentHashMap<QName, Boolean> typeMatches = new ConcurrentHashMap<>();
+
+    /**
+     * Parse filter from JavaScript parameters.
+     *
+     * @param params parameters map of the filter object, may be null.
+     * @return filter, accepting all nodes when params are null.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static NodeFilter parse(Map<String, Object> params) throws IllegalArgumentException {
+        NodeFilter filter = new NodeFilter();
+        if (params != null) {
+            filter.typeNames = RhinoUtils.getStrings(params, PARAM_TYPES);
+            filter.excludeTypeNames = RhinoUtils.getStrings(params, PARAM_EXCLUDE_TYPES);
+            filter.aspectNames = RhinoUtils.getStrings(params, PARAM_ASPECTS);
+            Map<String, Object> properties = RhinoUtils.getMap(params, PARAM_PROPERTIES);
+            if (properties != null) {
+                filter.propertyValues = properties;
+            }
+            filter.maxDepth = RhinoUtils.getInteger(params, PARAM_MAX_DEPTH, -1);
+        }
+        return filter;
+    }
+
+    /**
+     * Resolves names used in the filter. Must be called before the filter is used.
+     */
+    public void bind(ServiceRegistry sr) {
+        ns = sr.getNodeService();
+        ds = sr.getDictionaryService();
+        NamespaceService namespaceService = sr.getNamespaceService();
+        types = resolve(typeNames, namespaceService);
+        excludeTypes = resolve(excludeTypeNames, namespaceService);
+        aspects = new HashSet<>(resolve(aspectNames, namespaceService));
+        properties = new HashMap<>();
+        ValueConverter converter = new ValueConverter();
+        for (Map.Entry<String, Object> entry : propertyValues.entrySet()) {
+            Serializable value = entry.getValue() instanceof Serializable ?
+                    converter.convertValueForRepo((Serializable) entry.getValue()) : null;
+            properties.put(QName.resolveToQName(namespaceService, entry.getKey()), value);
+        }
+    }
+
+    private static List<QName> resolve(List<String> names, NamespaceService namespaceService) {
+        List<QName> qnames = new ArrayList<>(names.size());
+        for (String name : names) {
+            qnames.add(QName.resolveToQName(namespaceService, name));
+        }
+        return qnames;
+    }
+
+    /**
+     * @return true if any node would pass the filter.
+     */
+    public boolean isEmpty() {
+        return typeNames.isEmpty() && excludeTypeNames.isEmpty() && aspectNames.isEmpty() &&
+                propertyValues.isEmpty();
+    }
+
+    /**
+     * @param depth depth of a folder below the root.
+     * @return true if children of the folder should be traversed.
+     */
+    public boolean canDescend(int depth) {
+        return maxDepth < 0 || depth < maxDepth;
+    }
+
+    /**
+     * Checks an item given to the job. Items which are not nodes are always accepted.
+     */
+    public boolean accept(Object item) {
+        if (isEmpty()) {
+            return true;
+        }
+        if (item instanceof NativeJavaObject) {
+            item = ((NativeJavaObject) item).unwrap();
+        }
+        if (item instanceof ScriptNode) {
+            return accept(((ScriptNode) item).getNodeRef());
+        } else if (item instanceof NodeRef) {
+            return accept((NodeRef) item);
+        }
+        return true;
+    }
+
+    public boolean accept(NodeRef node) {
+        if (isEmpty()) {
+            return true;
+        }
+        if (!types.isEmpty() || !excludeTypes.isEmpty()) {
+            QName type = ns.getType(node);
+            Boolean matches = typeMatches.get(type);
+            if (matches == null) {
+                matches = matchesType(type);
+                typeMatches.put(type, matches);
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        if (!aspects.isEmpty() && !ns.getAspects(node).containsAll(aspects)) {
+            return false;
+        }
+        for (Map.Entry<QName, Serializable> property : properties.entrySet()) {
+            Serializable actual = ns.getProperty(node, property.getKey());
+            Serializable expected = property.getValue();
+            if (expected == null || actual == null) {
+                if (expected != actual) {
+                    return false;
+                }
+            } else if (!actual.equals(convert(actual.getClass(), expected))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object convert(Class<?> type, Serializable value) {
+        try {
+            return DefaultTypeConverter.INSTANCE.convert(type, value);
+        } catch (TypeConversionException e) {
+            return null;
+        }
+    }
+
+    private boolean matchesType(QName type) {
+        boolean included = types.isEmpty();
+        for (QName include : types) {
+            if (ds.isSubClass(type, include)) {
+                included = true;
+                break;
+            }
+        }
+        for (QName exclude : excludeTypes) {
+            if (ds.isSubClass(type, exclude)) {
+                return false;
+            }
+        }
+        return included;
+    }
+
+    public List<String> getTypes() {
+        return typeNames;
+    }
+
+    public List<String> getExcludeTypes() {
+        return excludeTypeNames;
+    }
+
+    public List<String> getAspects() {
+        return aspectNames;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
@@ -0,0 +1,97 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Computes partition keys of work items. Items with the same key are never in two batches
+ * processed at the same time, so that batches changing the same parent or the same shared
+ * node do not run into each other's locks.
+ *
+ * The key is either the primary parent of a node ({@code 'parent'}), a property value
+ * of a node (property name) or the result of a JavaScript function called with the item.
+ *
+ * @author Bulat Yaminov
+ */
+public class Partitioning {
+
+    private static final String BY_PARENT = "parent";
+
+    private String partitionBy;
+    private Function keyFunction;
+
+    private NodeService ns;
+    private QName property;
+
+    /**
+     * Parse partitioning from JavaScript parameter.
+     *
+     * @param param {@code 'parent'}, a property name or a function, may be null.
+     * @return partitioning or null when no parameter is given.
+     * @throws IllegalArgumentException when parameter is incorrect.
+     */
+    public static Partitioning parse(Object param, String paramName) throws IllegalArgumentException {
+        if (param == null) {
+            return null;
+        }
+        Partitioning partitioning = new Partitioning();
+        if (param instanceof Function) {
+            partitioning.keyFunction = (Function) param;
+            partitioning.partitionBy = Context.getCurrentContext().decompileFunction(partitioning.keyFunction, 2);
+        } else if (param instanceof CharSequence && param.toString().length() > 0) {
+            partitioning.partitionBy = param.toString();
+        } else {
+            throw new IllegalArgumentException(paramName +
+                    " must be 'parent', a property name or a function, but is instead: " + param);
+        }
+        return partitioning;
+    }
+
+    /**
+     * Resolves names used in the partitioning. Must be called before keys are computed.
+     */
+    public void bind(ServiceRegistry sr) {
+        ns = sr.getNodeService();
+        if (keyFunction == null && !BY_PARENT.equals(partitionBy)) {
+            property = QName.resolveToQName(sr.getNamespaceService(), partitionBy);
+        }
+    }
+
+    /**
+     * Computes the key of an item. Items which are not nodes are their own keys
+     * unless a key function is used. Must be called in a thread with JavaScript
+     * context when a key function is used.
+     *
+     * @return the key, may be null.
+     */
+    public Object keyOf(Object item, Scriptable scope) {
+        if (keyFunction != null) {
+            Object key = keyFunction.call(Context.getCurrentContext(), scope, scope, new Object[]{item});
+            // JavaScript numbers and strings come in different Java types, compare them as strings
+            return key == null || key instanceof Undefined ? null : Context.toString(key);
+        }
+        NodeRef node = WorkProviders.toNodeRef(item);
+        if (node == null) {
+            return item;
+        }
+        if (property == null) {
+            ChildAssociationRef parent = ns.getPrimaryParent(node);
+            return parent == null ? null : parent.getParentRef();
+        }
+        return ns.getProperty(node, property);
+    }
+
+    /**
+     * @return {@code 'parent'}, property name or the source of the key function.
+     */
+    public String getPartitionBy() {
+        return partitionBy;
+    }
+}
@@ -0,0 +1,119 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Content of a node read ahead by {@link ContentPrefetcher}, given to processing functions
+ * as the second parameter of {@code onNode} and by {@code batchExecuter.getContent(node)}.
+ * Small content is kept on the heap, large files are memory-mapped, and other large content
+ * is not read ahead but streamed from the store when it is read.
+ *
+ * @author Bulat Yaminov
+ */
+public class PrefetchedContent {
+
+    private ByteBuffer buffer;
+    private ContentReader reader;
+    private long size;
+    private String mimetype;
+    private String encoding;
+    private boolean mapped;
+
+    public PrefetchedContent(ByteBuffer buffer, String mimetype, String encoding, boolean mapped) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.size = buffer.capacity();
+        this.mimetype = mimetype;
+        this.encoding = encoding;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Content which is too large to be buffered, read from the store each time it is asked for.
+     */
+    public PrefetchedContent(ContentReader reader) {
+        this.reader = reader;
+        this.size = reader.getSize();
+        this.mimetype = reader.getMimetype();
+        this.encoding = reader.getEncoding();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMimetype() {
+        return mimetype;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return true if the content is a memory-mapped file rather than a copy on the heap.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return true if the content is not in memory, but read from the store by each call.
+     */
+    public boolean isStreamed() {
+        return reader != null;
+    }
+
+    /**
+     * @return the content decoded as text with its encoding, UTF-8 when not known.
+     */
+    public String getContent() {
+        if (reader != null) {
+            return reader.getReader().getContentString();
+        }
+        Charset charset = encoding != null && Charset.isSupported(encoding) ?
+                Charset.forName(encoding) : Charset.forName("UTF-8");
+        return charset.decode(buffer.duplicate()).toString();
+    }
+
+    /**
+     * @return new read-only view of the bytes, positioned at the start, or null for streamed content.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer == null ? null : buffer.duplicate();
+    }
+
+    /**
+     * @return new stream of the content, which the caller closes when it is streamed.
+     */
+    public InputStream getInputStream() {
+        if (reader != null) {
+            return reader.getReader().getContentInputStream();
+        }
+        final ByteBuffer bytes = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!bytes.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, bytes.remaining());
+                bytes.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return bytes.remaining();
+            }
+        };
+    }
+}
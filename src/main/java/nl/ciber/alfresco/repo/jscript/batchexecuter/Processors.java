@@ -0,0 +1,32 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.List;
+
+/**
+ * Container class for interfaces of Java processors. A Spring bean implementing one of them
+ * can be given by its name as {@code onNode} or {@code onBatch} instead of a JavaScript function,
+ * and is then called directly by worker threads, without entering a JavaScript context.
+ *
+ * Processors are called inside the batch transaction, and again when it is retried,
+ * so they must not keep state between calls.
+ *
+ * @author Bulat Yaminov
+ */
+public class Processors {
+
+    /**
+     * Processes nodes one by one, given as {@code onNode}.
+     */
+    public interface NodeProcessor {
+        void process(NodeRef node) throws Exception;
+    }
+
+    /**
+     * Processes a whole batch of nodes at once, given as {@code onBatch}.
+     */
+    public interface NodeBatchProcessor {
+        void process(List<NodeRef> nodes) throws Exception;
+    }
+}
@@ -0,0 +1,75 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.jscript.ScriptableHashMap;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.mozilla.javascript.Scriptable;
+
+import java.io.Serializable;
+
+/**
+ * Lightweight read-only node given to processing functions instead of a ScriptNode
+ * when a job is started with {@code fields} parameter. Holds only the node reference,
+ * its type and the requested properties, which are loaded for the whole batch at once.
+ *
+ * Use {@link #getScriptNode()} ({@code node.scriptNode} in JavaScript) to get
+ * a full ScriptNode when the node has to be changed.
+ *
+ * @author Bulat Yaminov
+ */
+public class ProjectedNode {
+
+    private NodeRef nodeRef;
+    private String typeShort;
+    private ScriptableHashMap<String, Serializable> properties;
+    private ServiceRegistry sr;
+    private Scriptable scope;
+    private ScriptNode scriptNode;
+
+    public ProjectedNode(NodeRef nodeRef, String typeShort, ScriptableHashMap<String, Serializable> properties,
+                         ServiceRegistry sr, Scriptable scope) {
+        this.nodeRef = nodeRef;
+        this.typeShort = typeShort;
+        this.properties = properties;
+        this.sr = sr;
+        this.scope = scope;
+    }
+
+    public NodeRef getNodeRef() {
+        return nodeRef;
+    }
+
+    public String getId() {
+        return nodeRef.getId();
+    }
+
+    /**
+     * @return node type in prefixed form, e.g. cm:content.
+     */
+    public String getTypeShort() {
+        return typeShort;
+    }
+
+    /**
+     * @return requested properties by the names given in {@code fields} parameter.
+     */
+    public ScriptableHashMap<String, Serializable> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return full ScriptNode for this node, created on first call.
+     */
+    public ScriptNode getScriptNode() {
+        if (scriptNode == null) {
+            scriptNode = new ScriptNode(nodeRef, sr, scope);
+        }
+        return scriptNode;
+    }
+
+    @Override
+    public String toString() {
+        return nodeRef.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Collects property changes of nodes within a transaction and applies them
+ * in one pass right before the transaction is committed.
+ *
+ * Several changes of the same node are merged, so each node gets only one
+ * {@link NodeService#addProperties} call per batch, instead of rewriting all
+ * its properties on each {@code ScriptNode.save()}.
+ *
+ * @author Bulat Yaminov
+ */
+public class PropertyUpdates extends TransactionListenerAdapter {
+
+    private static final String KEY_UPDATES = PropertyUpdates.class.getName() + ".updates";
+
+    private ServiceRegistry sr;
+    private Log logger;
+
+    public PropertyUpdates(ServiceRegistry sr, Log logger) {
+        this.sr = sr;
+        this.logger = logger;
+    }
+
+    /**
+     * Records property changes to be saved when the current transaction commits.
+     *
+     * @param node node to change.
+     * @param properties properties to add or replace, others are kept.
+     */
+    public void record(NodeRef node, Map<QName, Serializable> properties) {
+        Map<NodeRef, Map<QName, Serializable>> updates = AlfrescoTransactionSupport.getResource(KEY_UPDATES);
+        if (updates == null) {
+            updates = new HashMap<>();
+            AlfrescoTransactionSupport.bindResource(KEY_UPDATES, updates);
+            AlfrescoTransactionSupport.bindListener(this);
+        }
+        Map<QName, Serializable> nodeUpdates = updates.get(node);
+        if (nodeUpdates == null) {
+            nodeUpdates = new HashMap<>();
+            updates.put(node, nodeUpdates);
+        }
+        nodeUpdates.putAll(properties);
+    }
+
+    @Override
+    public void beforeCommit(boolean readOnly) {
+        Map<NodeRef, Map<QName, Serializable>> updates = AlfrescoTransactionSupport.getResource(KEY_UPDATES);
+        if (updates == null || updates.isEmpty()) {
+            return;
+        }
+        // The same order in all threads makes deadlocks between batches less likely
+        List<NodeRef> nodes = new ArrayList<>(updates.keySet());
+        Collections.sort(nodes, new Comparator<NodeRef>() {
+            @Override
+            public int compare(NodeRef n1, NodeRef n2) {
+                return n1.toString().compareTo(n2.toString());
+            }
+        });
+        NodeService ns = sr.getNodeService();
+        for (NodeRef node : nodes) {
+            ns.addProperties(node, updates.get(node));
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("updated properties of %d nodes", nodes.size()));
+        }
+        updates.clear();
+    }
+}
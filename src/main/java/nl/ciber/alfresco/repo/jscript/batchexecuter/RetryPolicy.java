@@ -0,0 +1,106 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.transaction.TransactionService;
+
+import java.util.Map;
+
+/**
+ * Retry settings of batch transactions of one job. When given, the job uses its own
+ * {@link RetryingTransactionHelper} instead of the one shared by the whole repository.
+ *
+ * Each retry waits a random time between {@code minRetryWaitMs} and a maximum which
+ * grows by {@code retryWaitIncrementMs} with each attempt up to {@code maxRetryWaitMs}.
+ * The randomness keeps threads failing on the same rows from colliding again.
+ *
+ * @author Bulat Yaminov
+ */
+public class RetryPolicy {
+
+    private static final String PARAM_MAX_RETRIES = "maxRetries";
+    private static final String PARAM_MIN_RETRY_WAIT_MS = "minRetryWaitMs";
+    private static final String PARAM_MAX_RETRY_WAIT_MS = "maxRetryWaitMs";
+    private static final String PARAM_RETRY_WAIT_INCREMENT_MS = "retryWaitIncrementMs";
+
+    /* Same as the repository defaults of server.transaction.* properties */
+    private static final int DEFAULT_MAX_RETRIES = 40;
+    private static final int DEFAULT_MIN_RETRY_WAIT_MS = 100;
+    private static final int DEFAULT_MAX_RETRY_WAIT_MS = 2000;
+    private static final int DEFAULT_RETRY_WAIT_INCREMENT_MS = 100;
+
+    private boolean empty = true;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private int minRetryWaitMs = DEFAULT_MIN_RETRY_WAIT_MS;
+    private int maxRetryWaitMs = DEFAULT_MAX_RETRY_WAIT_MS;
+    private int retryWaitIncrementMs = DEFAULT_RETRY_WAIT_INCREMENT_MS;
+
+    /**
+     * Parse retry policy from JavaScript parameters.
+     *
+     * @param params parameters map of the retry object, may be null.
+     * @param paramName name of the parameter for error messages.
+     * @return retry policy, using the repository helper when params are null.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static RetryPolicy parse(Map<String, Object> params, String paramName) throws IllegalArgumentException {
+        RetryPolicy policy = new RetryPolicy();
+        if (params != null) {
+            policy.empty = false;
+            policy.maxRetries = RhinoUtils.getInteger(params, PARAM_MAX_RETRIES, DEFAULT_MAX_RETRIES);
+            policy.minRetryWaitMs = RhinoUtils.getInteger(params, PARAM_MIN_RETRY_WAIT_MS,
+                    DEFAULT_MIN_RETRY_WAIT_MS);
+            policy.maxRetryWaitMs = RhinoUtils.getInteger(params, PARAM_MAX_RETRY_WAIT_MS,
+                    Math.max(DEFAULT_MAX_RETRY_WAIT_MS, policy.minRetryWaitMs));
+            policy.retryWaitIncrementMs = RhinoUtils.getInteger(params, PARAM_RETRY_WAIT_INCREMENT_MS,
+                    DEFAULT_RETRY_WAIT_INCREMENT_MS);
+            if (policy.maxRetries < 0 || policy.minRetryWaitMs < 0 || policy.retryWaitIncrementMs < 0) {
+                throw new IllegalArgumentException(paramName + " values must not be negative");
+            }
+            if (policy.maxRetryWaitMs < policy.minRetryWaitMs) {
+                throw new IllegalArgumentException(paramName + "." + PARAM_MAX_RETRY_WAIT_MS +
+                        " must not be less than " + PARAM_MIN_RETRY_WAIT_MS);
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * @return true if the repository retry settings are used.
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return helper to run batch transactions with, a new one unless the policy is empty.
+     */
+    public RetryingTransactionHelper getHelper(TransactionService transactionService) {
+        if (empty) {
+            return transactionService.getRetryingTransactionHelper();
+        }
+        RetryingTransactionHelper helper = new RetryingTransactionHelper();
+        helper.setTransactionService(transactionService);
+        helper.setMaxRetries(maxRetries);
+        helper.setMinRetryWaitMs(minRetryWaitMs);
+        helper.setMaxRetryWaitMs(maxRetryWaitMs);
+        helper.setRetryWaitIncrementMs(retryWaitIncrementMs);
+        return helper;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public int getMinRetryWaitMs() {
+        return minRetryWaitMs;
+    }
+
+    public int getMaxRetryWaitMs() {
+        return maxRetryWaitMs;
+    }
+
+    public int getRetryWaitIncrementMs() {
+        return retryWaitIncrementMs;
+    }
+}
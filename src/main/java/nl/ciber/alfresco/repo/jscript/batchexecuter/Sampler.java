@@ -0,0 +1,295 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Runs a job started with {@code sample} parameter as a dry run on a part of its work, to estimate
+ * how long the whole job would take with different {@code threads} and {@code batchSize} settings.
+ *
+ * The work given by the job source is split into strata of consecutive entries, and one random
+ * entry of each stratum is processed, so that the sample covers the whole source evenly. All other
+ * work is only counted. Batch transactions of the sample are rolled back, and time spent in them
+ * is split into the time of processing items and the overhead of a transaction, from which the
+ * time of the whole job is extrapolated. The estimates assume that threads scale linearly, except
+ * for the retries the sample has run into, so they are the best case for higher thread counts.
+ *
+ * @author Bulat Yaminov
+ */
+public class Sampler {
+
+    private static final String PARAM_FRACTION = "fraction";
+    private static final String PARAM_COUNT = "count";
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+    private static final int[] BATCH_SIZES = {10, 50, 200, 1000};
+
+    private double fraction = -1;
+    private int count = -1;
+    private int stride;
+    private Random random = new Random();
+
+    /* Selection of entries, by the work provider thread */
+    private long seenItems = 0;
+    private long seenEntries = 0;
+    private long pick = -1;
+
+    /* Measurements of batches, by worker threads */
+    private ThreadLocal<BatchSample> current = new ThreadLocal<>();
+    private long batches = 0;
+    private long items = 0;
+    private long itemAttempts = 0;
+    private long retries = 0;
+    private long failedBatches = 0;
+    private long batchNanos = 0;
+    private long processNanos = 0;
+
+    /**
+     * Parse sampling settings from JavaScript parameters.
+     *
+     * @param param object with either {@code fraction} or {@code count}, may be null.
+     * @param paramName name of the parameter for error messages.
+     * @return sampler, or null if the job is not a sample run.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static Sampler parse(Object param, String paramName) throws IllegalArgumentException {
+        if (param == null) {
+            return null;
+        }
+        if (!(param instanceof ScriptableObject)) {
+            throw new IllegalArgumentException(paramName + " must be an object with " + PARAM_FRACTION +
+                    " or " + PARAM_COUNT + ", but is instead: " + param);
+        }
+        Map<String, Object> params = RhinoUtils.convertToMap((ScriptableObject) param);
+        Sampler sampler = new Sampler();
+        Object fraction = params.get(PARAM_FRACTION);
+        sampler.count = RhinoUtils.getInteger(params, PARAM_COUNT, -1);
+        if ((fraction == null) == (sampler.count < 0)) {
+            throw new IllegalArgumentException(paramName + " must have either " + PARAM_FRACTION +
+                    " or " + PARAM_COUNT);
+        }
+        if (fraction != null) {
+            if (!(fraction instanceof Number) || ((Number) fraction).doubleValue() <= 0 ||
+                    ((Number) fraction).doubleValue() > 1) {
+                throw new IllegalArgumentException(paramName + "." + PARAM_FRACTION +
+                        " must be a number above 0 and up to 1, but is instead: " + fraction);
+            }
+            sampler.setFraction(((Number) fraction).doubleValue());
+        } else if (sampler.count < 1) {
+            throw new IllegalArgumentException(paramName + "." + PARAM_COUNT + " must be positive");
+        }
+        return sampler;
+    }
+
+    /**
+     * Turns the count of items to sample into a fraction of the work.
+     *
+     * @param total number of items of the job.
+     */
+    public void setTotal(int total) {
+        if (count > 0) {
+            setFraction(Math.min(1.0d, 1.0d * count / Math.max(1, total)));
+        }
+    }
+
+    private void setFraction(double fraction) {
+        this.fraction = fraction;
+        this.stride = (int) Math.max(1, Math.round(1 / fraction));
+    }
+
+    /**
+     * Decides whether an entry given by the job source is processed by the sample.
+     *
+     * @param entry item or batch of items.
+     * @return true if the entry is in the sample.
+     */
+    public synchronized boolean select(Object entry) {
+        seenItems += entry instanceof List ? ((List) entry).size() : 1;
+        long index = seenEntries++;
+        if (index % stride == 0) {
+            pick = index + random.nextInt(stride);
+        }
+        return index == pick;
+    }
+
+    /**
+     * Marks the start of a batch in the current thread.
+     */
+    public void batchStarted() {
+        current.set(new BatchSample());
+    }
+
+    /**
+     * Marks the start of a new transaction of the batch of the current thread.
+     */
+    public void attemptStarted() {
+        BatchSample sample = current.get();
+        if (sample != null) {
+            sample.failed = false;
+        }
+    }
+
+    /**
+     * Records processing of one entry of the batch of the current thread.
+     *
+     * @param nanos time the processing took.
+     * @param failed true if the processing threw an error.
+     */
+    public void processed(long nanos, boolean failed) {
+        BatchSample sample = current.get();
+        if (sample != null) {
+            sample.processNanos += nanos;
+            sample.failed |= failed;
+        }
+    }
+
+    /**
+     * Records a finished batch of the current thread.
+     *
+     * @param batchItems number of items given to the last transaction of the batch.
+     * @param batchRetries number of times the batch transaction was retried.
+     * @return true if the last transaction of the batch failed.
+     */
+    public boolean batchDone(int batchItems, int batchRetries) {
+        BatchSample sample = current.get();
+        current.remove();
+        if (sample == null) {
+            return false;
+        }
+        long nanos = System.nanoTime() - sample.startedNanos;
+        synchronized (this) {
+            batches++;
+            items += batchItems;
+            itemAttempts += batchItems * (1L + batchRetries);
+            retries += batchRetries;
+            batchNanos += nanos;
+            processNanos += sample.processNanos;
+            if (sample.failed) {
+                failedBatches++;
+            }
+        }
+        return sample.failed;
+    }
+
+    /**
+     * @return estimated times of the whole job, for each combination of threads and batch sizes
+     * including the batch size of the sample.
+     */
+    public synchronized List<Estimate> getEstimates(int sampleBatchSize) {
+        List<Estimate> estimates = new ArrayList<>();
+        if (batches == 0 || itemAttempts == 0) {
+            return estimates;
+        }
+        double itemMillis = processNanos / 1e6 / itemAttempts;
+        double transactionMillis = Math.max(0, (batchNanos - processNanos) / 1e6 / (batches + retries));
+        double retryFactor = 1 + 1.0d * retries / batches;
+        TreeSet<Integer> batchSizes = new TreeSet<>();
+        for (int batchSize : BATCH_SIZES) {
+            batchSizes.add(batchSize);
+        }
+        batchSizes.add(sampleBatchSize);
+        for (int threads : THREADS) {
+            for (int batchSize : batchSizes) {
+                double transactions = Math.ceil(1.0d * seenItems / batchSize);
+                double millis = retryFactor * (seenItems * itemMillis + transactions * transactionMillis) / threads;
+                estimates.add(new Estimate(threads, batchSize, Math.round(millis / 1000)));
+            }
+        }
+        return estimates;
+    }
+
+    /**
+     * @return one line describing what the sample has measured.
+     */
+    public synchronized String getSummary() {
+        if (batches == 0 || itemAttempts == 0) {
+            return String.format("nothing sampled of %d items", seenItems);
+        }
+        return String.format("sampled %d of %d items in %d batches: %.1f ms per item, %.1f ms per transaction, " +
+                        "%.2f retries per batch, %.1f%% batches failed",
+                items, seenItems, batches, processNanos / 1e6 / itemAttempts,
+                Math.max(0, (batchNanos - processNanos) / 1e6 / (batches + retries)),
+                1.0d * retries / batches, 100.0d * failedBatches / batches);
+    }
+
+    /**
+     * @return the summary and estimates as text for the log.
+     */
+    public String getReport(int sampleBatchSize) {
+        StringBuilder report = new StringBuilder(getSummary());
+        int threads = -1;
+        for (Estimate estimate : getEstimates(sampleBatchSize)) {
+            if (estimate.getThreads() != threads) {
+                threads = estimate.getThreads();
+                report.append(String.format("%n  threads %2d:", threads));
+            }
+            report.append(String.format("  batchSize %d: %s", estimate.getBatchSize(), estimate.getTime()));
+        }
+        return report.toString();
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public synchronized long getSeenItems() {
+        return seenItems;
+    }
+
+    public synchronized long getSampledItems() {
+        return items;
+    }
+
+    public synchronized long getFailedBatches() {
+        return failedBatches;
+    }
+
+    /** Measurements of the batch of one thread */
+    private static class BatchSample {
+        private final long startedNanos = System.nanoTime();
+        private long processNanos = 0;
+        private boolean failed = false;
+    }
+
+    /** Estimated time of the whole job with one setting */
+    public static class Estimate {
+        private final int threads;
+        private final int batchSize;
+        private final long seconds;
+
+        private Estimate(int threads, int batchSize, long seconds) {
+            this.threads = threads;
+            this.batchSize = batchSize;
+            this.seconds = seconds;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public long getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * @return the time as hours, minutes and seconds.
+         */
+        public String getTime() {
+            return String.format("%dh %02dm %02ds", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+    }
+}
@@ -1,28 +1,64 @@
 package nl.ciber.alfresco.repo.jscript.batchexecuter;
 
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.CancellableWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.ChangedNodesWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.CheckpointingWorkProvider;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.CollectionWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.DeletingWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.EmittingWorkProvider;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.FolderBrowsingWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.NodeConverter;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.NodeOrBatchWorkProviderFactory;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.NodeRefConverter;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.PartitioningWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.PrefetchingWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.SamplingWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.ProjectingNodeConverter;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.ScriptNodeConverter;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.StageWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.ThrottlingWorkProvider;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.CancellableWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.DeleteNodeWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.JavaBatchWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.JavaNodeListWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.JavaNodeWorker;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.ProcessBatchWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.ProcessNodeListWorker;
 import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.ProcessNodeWorker;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.StageWorker;
 import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.jscript.BaseScopableProcessorExtension;
+import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.jscript.ValueConverter;
+import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.solr.SOLRTrackingComponent;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * JavaScript object which helps execute big data changes in Alfresco.
@@ -38,10 +74,18 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
 
     private static final Log logger = LogFactory.getLog(ScriptBatchExecuter.class);
 
+    private static final String ATTR_WATERMARKS = ".batchExecuterWatermarks";
+
     private ServiceRegistry sr;
+    private SOLRTrackingComponent solrTrackingComponent;
+    private NodeDAO nodeDAO;
+    private BehaviourFilter behaviourFilter;
+    private PropertyUpdates propertyUpdates;
     private ApplicationContext applicationContext;
 
     private static ConcurrentHashMap<String, BatchJobParameters> runningJobs = new ConcurrentHashMap<>(10);
+    /** Job which batch is being processed by the current worker thread */
+    private static ThreadLocal<BatchJobParameters> currentJob = new ThreadLocal<>();
     private static ConcurrentHashMap<String, Pair<CancellableWorkProvider, CancellableWorker>>
             runningWorkProviders = new ConcurrentHashMap<>(10);
 
@@ -56,7 +100,10 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
      * @return job ID.
      */
     public String processArray(Object params) {
-        BatchJobParameters.ProcessArrayJobParameters job = BatchJobParameters.parseArrayParameters(params);
+        return processArray(BatchJobParameters.parseArrayParameters(params));
+    }
+
+    private String processArray(BatchJobParameters.ProcessArrayJobParameters job) {
         return doProcess(job, CollectionWorkProviderFactory.getInstance(), job.getItems());
     }
 
@@ -71,18 +118,299 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
      * @return job ID.
      */
     public String processFolderRecursively(Object params) {
-        BatchJobParameters.ProcessFolderJobParameters job = BatchJobParameters.parseFolderParameters(params);
+        return processFolderRecursively(BatchJobParameters.parseFolderParameters(params));
+    }
+
+    private String processFolderRecursively(BatchJobParameters.ProcessFolderJobParameters job) {
+        if (job.isIncremental()) {
+            return processChanges(job);
+        }
+        return processWholeFolder(job);
+    }
+
+    private String processWholeFolder(BatchJobParameters.ProcessFolderJobParameters job) {
+        if (job.isEstimateSize()) {
+            job.setSizeEstimator(new TreeSizeEstimator(sr, job.getRoot().getNodeRef(), job.getTraversal(), logger));
+        }
         return doProcess(job,
-                new FolderBrowsingWorkProviderFactory(sr, getScope(), logger),
+                new FolderBrowsingWorkProviderFactory(sr, newNodeConverter(job), getScope(), logger),
                 job.getRoot().getNodeRef());
     }
 
     /**
-     * Get the list of currently executing jobs.
+     * Deletes a folder with everything below it, many times faster than removing the folder or
+     * its nodes one by one. Nodes are deleted in batches from the leaves up, so that no transaction
+     * has to delete a whole sub-tree, and optionally without moving them to the archive store
+     * and without running behaviours.
+     *
+     * This is a blocking call.
+     *
+     * @param params processing params, with the folder ScriptNode stored as 'root' property. See
+     * {@link nl.ciber.alfresco.repo.jscript.batchexecuter.BatchJobParameters} for all parameters.
+     * @return job name.
+     */
+    public String processDelete(Object params) {
+        BatchJobParameters.ProcessDeleteJobParameters job = BatchJobParameters.parseDeleteParameters(params);
+        return doProcess(job, new DeletingWorkProviderFactory(sr, logger), job.getRoot().getNodeRef());
+    }
+
+    /**
+     * Resumes a job started with {@code checkpoint} parameter from its last checkpoint, after
+     * it was canceled or the server was restarted. The job keeps its ID and name, and work
+     * committed before the checkpoint is not processed again.
+     *
+     * Functions are restored from their source, so they cannot use variables of the script
+     * which started the job, only the root objects such as {@code search} or {@code companyhome}.
+     *
+     * This is a blocking call.
+     *
+     * @param jobId ID of the interrupted job.
+     * @param params object with parameters replacing the saved ones. Jobs processing an array
+     *               need the same {@code items} again, as items are not saved.
+     * @return job name.
+     */
+    public String resumeJob(String jobId, Object params) {
+        if (runningJobs.containsKey(jobId)) {
+            throw new IllegalStateException("Job " + jobId + " is still running");
+        }
+        Map<String, Serializable> checkpoint = Checkpointer.load(sr.getAttributeService(), jobId);
+        if (checkpoint == null) {
+            throw new IllegalArgumentException("Job " + jobId + " has no checkpoint to resume from");
+        }
+        Scriptable scope = getScope();
+        Object saved = Context.getCurrentContext().evaluateString(scope,
+                "(" + Checkpointer.getParametersSource(checkpoint) + ")", "checkpoint of " + jobId, 1, null);
+        ScriptableObject resumeParams = (ScriptableObject) saved;
+        if (params instanceof ScriptableObject) {
+            for (Map.Entry<String, Object> entry : RhinoUtils.convertToMap((ScriptableObject) params).entrySet()) {
+                ScriptableObject.putProperty(resumeParams, entry.getKey(), entry.getValue());
+            }
+        }
+
+        BatchJobParameters job;
+        if (Checkpointer.TYPE_ARRAY.equals(Checkpointer.getType(checkpoint))) {
+            job = BatchJobParameters.parseArrayParameters(resumeParams);
+        } else {
+            job = BatchJobParameters.parseFolderParameters(resumeParams);
+        }
+        job.setId(jobId);
+        job.setName(Checkpointer.getName(checkpoint));
+        job.setResumePosition(Checkpointer.getPosition(checkpoint));
+        logger.info(String.format("Resuming job '%s' from its checkpoint", job.getName()));
+        if (job instanceof BatchJobParameters.ProcessArrayJobParameters) {
+            return processArray((BatchJobParameters.ProcessArrayJobParameters) job);
+        } else {
+            return processFolderRecursively((BatchJobParameters.ProcessFolderJobParameters) job);
+        }
+    }
+
+    /**
+     * Resumes a job from its last checkpoint with the saved parameters.
+     *
+     * @see #resumeJob(String, Object)
+     */
+    public String resumeJob(String jobId) {
+        return resumeJob(jobId, null);
+    }
+
+    /**
+     * Get jobs which can be resumed from a checkpoint.
+     *
+     * @return job names by job IDs.
+     */
+    public Map<String, String> getCheckpoints() {
+        return Checkpointer.list(sr.getAttributeService());
+    }
+
+    /**
+     * Get the watermark stored by jobs processing changes since given watermark name.
+     *
+     * @param name watermark name as given in 'since' parameter.
+     * @return the last transaction ID processed by a successful job, or null if none was.
+     */
+    public Long getWatermark(String name) {
+        return (Long) sr.getAttributeService().getAttribute(ATTR_WATERMARKS, name);
+    }
+
+    private String processChanges(BatchJobParameters.ProcessFolderJobParameters job) {
+        Long since = job.getSinceTxnId();
+        if (since == null) {
+            since = getWatermark(job.getSinceWatermark());
+            if (since == null) {
+                return startWatermark(job);
+            }
+        }
+        ChangedNodesWorkProviderFactory workFactory = new ChangedNodesWorkProviderFactory(sr,
+                solrTrackingComponent, since, newNodeConverter(job), logger);
+        String name = doProcess(job, workFactory, job.getRoot().getNodeRef());
+
+        if (job.getSinceWatermark() != null) {
+            moveWatermark(job, name, workFactory.getNextWatermark(), since);
+        }
+        return name;
+    }
+
+    /**
+     * A watermark which is not stored yet has no changes to go by, so the whole folder is processed
+     * instead, and the watermark starts at the last transaction committed before the folder is read.
+     * Changes committed while the folder is read are processed again by the next job.
+     */
+    private String startWatermark(BatchJobParameters.ProcessFolderJobParameters job) {
+        Long lastTxnId = sr.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Long>() {
+            @Override
+            public Long execute() throws Throwable {
+                return nodeDAO.getMaxTxnId();
+            }
+        }, true, true);
+        logger.info(String.format("Watermark '%s' not found, processing the whole folder",
+                job.getSinceWatermark()));
+        String name = processWholeFolder(job);
+        moveWatermark(job, name, lastTxnId == null ? 0L : lastTxnId, null);
+        return name;
+    }
+
+    /**
+     * Stores the watermark of a job which has processed all its work without errors.
+     *
+     * @param previous the watermark the job started from, or null if it was not stored.
+     */
+    private void moveWatermark(BatchJobParameters.ProcessFolderJobParameters job, String name,
+                               long next, Long previous) {
+        if (job.getStatus() == BatchJobParameters.Status.FINISHED && job.getTotalErrors() == 0) {
+            sr.getAttributeService().setAttribute(next, ATTR_WATERMARKS, job.getSinceWatermark());
+            logger.info(String.format("Watermark '%s' moved to transaction %d", job.getSinceWatermark(), next));
+        } else if (previous == null) {
+            logger.warn(String.format("Job '%s' did not succeed, watermark '%s' is not stored",
+                    name, job.getSinceWatermark()));
+        } else {
+            logger.warn(String.format("Job '%s' did not succeed, watermark '%s' stays at transaction %d",
+                    name, job.getSinceWatermark(), previous));
+        }
+    }
+
+    /**
+     * Records property changes of a node, which are saved all together for the batch
+     * right before its transaction is committed. This is much cheaper than changing
+     * node properties and calling {@code node.save()} for each node, as the whole
+     * property map of a node is rewritten on each save.
+     *
+     * Note that the node object given to the function does not see the changes.
+     *
+     * @param node ScriptNode, node of a job with {@code fields}, NodeRef or node reference string.
+     * @param properties JavaScript object with property names as keys, e.g. {'cm:title': 'Title'}.
+     */
+    public void update(Object node, Object properties) {
+        NodeRef nodeRef = WorkProviders.toNodeRef(node);
+        if (nodeRef == null && node instanceof CharSequence && NodeRef.isNodeRef(node.toString())) {
+            nodeRef = new NodeRef(node.toString());
+        }
+        if (nodeRef == null) {
+            throw new IllegalArgumentException("node must be a ScriptNode, projected node or node reference, " +
+                    "but is instead: " + node);
+        }
+        if (!(properties instanceof ScriptableObject)) {
+            throw new IllegalArgumentException("properties must be an object, but are instead: " + properties);
+        }
+
+        ValueConverter converter = new ValueConverter();
+        Map<QName, Serializable> values = new HashMap<>();
+        for (Map.Entry<String, Object> entry : RhinoUtils.convertToMap((ScriptableObject) properties).entrySet()) {
+            Serializable value = entry.getValue() instanceof Serializable ?
+                    converter.convertValueForRepo((Serializable) entry.getValue()) : null;
+            values.put(QName.resolveToQName(sr.getNamespaceService(), entry.getKey()), value);
+        }
+        propertyUpdates.record(nodeRef, values);
+    }
+
+    /**
+     * Gives content of a node read ahead by a job started with {@code prefetchContent: true}.
+     * The same content is also given to {@code onNode} function as the second parameter.
+     *
+     * @param node node being processed by the job.
+     * @return the content, or null if the node has no content.
+     * @throws IOException when the content cannot be read.
+     */
+    public PrefetchedContent getContent(Object node) throws IOException {
+        NodeRef nodeRef = WorkProviders.toNodeRef(node);
+        if (nodeRef == null) {
+            throw new IllegalArgumentException("node must be a node being processed, but is instead: " + node);
+        }
+        BatchJobParameters job = currentJob.get();
+        if (job == null || job.getContentPrefetcher() == null) {
+            throw new IllegalStateException("getContent can only be called by jobs with prefetchContent enabled");
+        }
+        return job.getContentPrefetcher().take(nodeRef);
+    }
+
+    /**
+     * Adds an item to the job being processed, e.g. a node found through an association of the
+     * node given to {@code onNode}. Emitted items are processed like the items of the job itself,
+     * by the same function and in parallel with them. Jobs processing folders can emit nodes
+     * only, and jobs with {@code dedupe: true} skip nodes they have already given out.
+     *
+     * Emitted items are added once the transaction of the batch commits, so items emitted by a
+     * batch which is rolled back are dropped. They are not saved in checkpoints, so a resumed job
+     * does not process the ones which were not processed before it was interrupted.
+     *
+     * @param item node or, for jobs processing an array, any item.
+     * @return true if the item is added on commit, false if it was skipped as given out before.
+     */
+    public boolean emit(Object item) {
+        BatchJobParameters job = currentJob.get();
+        if (job == null || job.getEmittedWork() == null) {
+            throw new IllegalStateException("emit can only be called by processing functions of a job");
+        }
+        if (job.getStages() != null) {
+            throw new IllegalStateException("emit cannot be used by jobs with stages, " +
+                    "return the item to pass it to the next stage");
+        }
+        return job.getEmittedWork().emit(item instanceof ScriptNode ? Context.javaToJS(item, getScope()) : item);
+    }
+
+    /**
+     * Gives the cache of the job being processed, shared by all its threads for the whole job,
+     * e.g. to look up a group once instead of for each node:
+     * {@code batchExecuter.cache.get(name, function(name) { return groups.getGroup(name); })}.
+     *
+     * @return cache of the current job.
+     * @see JobCache
+     */
+    public JobCache getCache() {
+        BatchJobParameters job = currentJob.get();
+        if (job == null || job.getCache() == null) {
+            throw new IllegalStateException("cache can only be used by processing functions of a job");
+        }
+        return job.getCache();
+    }
+
+    /**
+     * Gives the loader of the job being processed, whose {@code load(key)} returns values loaded
+     * for all items of the batch at once.
+     *
+     * @return loader of the current job.
+     * @see BatchLoader
+     */
+    public BatchLoader getLoader() {
+        BatchJobParameters job = currentJob.get();
+        if (job == null || job.getLoader() == null) {
+            throw new IllegalStateException("loader can only be used by onNode function of a job with loader");
+        }
+        return job.getLoader();
+    }
+
+    /**
+     * Get the list of currently executing jobs. Jobs running in cluster have the progress
+     * published by all members of their run summed up.
      *
      * @return collection of jobs being executed.
      */
     public Collection<BatchJobParameters> getCurrentJobs() {
+        for (BatchJobParameters job : runningJobs.values()) {
+            if (job.getClusterLeases() != null) {
+                job.setClusterProgress(job.getClusterLeases().getProgress());
+            }
+        }
         return runningJobs.values();
     }
 
@@ -94,7 +422,16 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
      * @return true if job existed by given ID and was cancelled.
      * False if job was already finished or never existed.
      */
-    public synchronized boolean cancelJob(String jobId) {
+    public boolean cancelJob(String jobId) {
+        return cancel(jobId);
+    }
+
+    /**
+     * Cancels a job from within, e.g. when its error breaker trips.
+     *
+     * @see #cancelJob(String)
+     */
+    static synchronized boolean cancel(String jobId) {
         if (jobId == null) {
             return false;
         }
@@ -103,10 +440,19 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
         // so the only way to cancel is stop giving new work packages
         BatchJobParameters job = runningJobs.get(jobId);
         Pair<CancellableWorkProvider, CancellableWorker> pair = runningWorkProviders.get(jobId);
+        if (job != null && job.getClusterLeases() != null) {
+            // Work provider may be waiting for the parts held by other cluster members
+            job.getClusterLeases().cancel();
+        }
         if (pair != null) {
             boolean workProviderCanceled = pair.getFirst().cancel();
             boolean workerCanceled = pair.getSecond().cancel();
             boolean canceled = workProviderCanceled || workerCanceled; // either cancellation is a change
+            if (job != null && job.getStages() != null) {
+                for (Stage stage : job.getStages()) {
+                    canceled |= stage.cancel();
+                }
+            }
             if (canceled && job != null) {
                 job.setStatus(BatchJobParameters.Status.CANCELED);
             }
@@ -115,6 +461,16 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
         return false;
     }
 
+    private NodeConverter newNodeConverter(BatchJobParameters job) {
+        if (job.getOnNodeBean() != null || job.getOnBatchBean() != null) {
+            return new NodeRefConverter();
+        }
+        if (!job.getFields().isEmpty()) {
+            return new ProjectingNodeConverter(sr, nodeDAO, job.getFields(), getScope());
+        }
+        return new ScriptNodeConverter(sr, getScope());
+    }
+
     private <T> String doProcess(BatchJobParameters job,
                                  NodeOrBatchWorkProviderFactory<T> workFactory,
                                  T data) {
@@ -125,17 +481,96 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
             final Scriptable cachedScope = getScope();
             final String user = AuthenticationUtil.getFullyAuthenticatedUser();
 
-            RetryingTransactionHelper rth = sr.getTransactionService().getRetryingTransactionHelper();
+            RetryingTransactionHelper rth = job.getRetryPolicy().getHelper(sr.getTransactionService());
 
             job.setStatus(BatchJobParameters.Status.RUNNING);
+            job.getFilter().bind(sr);
+            job.getTraversal().bind(sr);
+            job.getStats().start();
+            if (job.getProfiler() != null) {
+                job.getProfiler().start(job.getName());
+            }
+            if (job.getSizeEstimator() != null) {
+                job.getSizeEstimator().start(user, job.getName());
+            }
+            if (job.isPrefetchContent()) {
+                job.setContentPrefetcher(new ContentPrefetcher(sr, user, job.getThreads(), job.getName(), logger));
+            }
+            if (job.isDedupe()) {
+                job.setVisitedNodes(new VisitedNodes(sr.getNodeService()));
+            }
+            if (job.getHeapMonitor() != null && !job.getHeapMonitor().start()) {
+                logger.warn(String.format("Job '%s' runs without maxHeapUsage, no heap pool of this JVM " +
+                        "supports usage thresholds", job.getName()));
+                job.setHeapMonitor(null);
+            }
+            job.setCache(new JobCache(job.getCacheSize()));
+            job.setEmittedWork(new EmittedWork(job instanceof BatchJobParameters.ProcessFolderJobParameters ?
+                    newNodeConverter(job) : null, job.getVisitedNodes()));
+            if (job.getCheckpointInterval() >= 0) {
+                job.setCheckpointer(new Checkpointer(sr.getAttributeService(), sr.getTransactionService(), job,
+                        job instanceof BatchJobParameters.ProcessArrayJobParameters ?
+                                Checkpointer.TYPE_ARRAY : Checkpointer.TYPE_FOLDER, logger));
+                job.getCheckpointer().start();
+                logger.info(String.format("Job '%s' saves checkpoints, it can be resumed with " +
+                        "batchExecuter.resumeJob('%s')", job.getName(), job.getId()));
+            }
+
+            if (job.getSampler() != null) {
+                logger.info(String.format("Job '%s' is a sample run of %.1f%% of its work, nothing it does is kept",
+                        job.getName(), job.getSampler().getFraction() * 100));
+            }
+
+            if (job.getExecuteOn() == BatchJobParameters.ExecuteOn.CLUSTER) {
+                // Members running the same cluster run share work through leases
+                ClusterLeases leases = new ClusterLeases(sr.getAttributeService(), sr.getTransactionService(),
+                        job.getClusterRunId(), job, logger);
+                leases.start(user);
+                job.setClusterLeases(leases);
+                logger.info(String.format("Job '%s' takes part in cluster run '%s' as %s",
+                        job.getName(), job.getClusterRunId(), job.getClusterLeases().getMember()));
+            }
+
+            if (job.getPartitioning() != null) {
+                job.getPartitioning().bind(sr);
+            }
+
+            Processors.NodeProcessor nodeProcessor = job.getOnNodeBean() == null ? null :
+                    getProcessorBean(job.getOnNodeBean(), Processors.NodeProcessor.class);
+            Processors.NodeBatchProcessor batchProcessor = job.getOnBatchBean() == null ? null :
+                    getProcessorBean(job.getOnBatchBean(), Processors.NodeBatchProcessor.class);
+            boolean deleting = job instanceof BatchJobParameters.ProcessDeleteJobParameters;
+            // Deleting is done in batches, so that a folder waits for the batches below it
+            boolean perNode = job.getOnNode() != null || nodeProcessor != null;
+
+            if (job.getStages() != null) {
 
-            if (job.getOnNode() != null) {
+                job.setTotalErrors(processStages(job, workFactory, data, rth, user, cachedScope));
+
+            } else if (perNode && job.getPartitioning() == null && job.getLoader() == null) {
 
                 // Let the BatchProcessor do the batching
                 CancellableWorkProvider<Object> workProvider =
-                        workFactory.newNodesWorkProvider(data, job.getBatchSize());
-                ProcessNodeWorker worker = new ProcessNodeWorker(job.getOnNode(), cachedScope,
-                        user, job.getDisableRules(), sr.getRuleService(), logger, this);
+                        workFactory.newNodesWorkProvider(data, job);
+                if (job.getCheckpointer() != null) {
+                    workProvider = new CheckpointingWorkProvider<>(workProvider, job.getCheckpointer());
+                }
+                workProvider = new EmittingWorkProvider<>(workProvider, job.getEmittedWork(),
+                        job.getBatchSize(), false);
+                if (job.getSampler() != null) {
+                    workProvider = new SamplingWorkProvider<>(workProvider, job.getSampler());
+                }
+                if (job.getContentPrefetcher() != null) {
+                    workProvider = new PrefetchingWorkProvider<>(workProvider, job.getContentPrefetcher());
+                }
+                workProvider = withHeapMonitor(job, workProvider);
+                CancellableWorker<Object> worker;
+                if (nodeProcessor != null) {
+                    worker = new JavaNodeWorker(nodeProcessor, user, job, sr, behaviourFilter, logger, this);
+                } else {
+                    worker = new ProcessNodeWorker(job.getOnNode(), cachedScope,
+                            user, job, sr, behaviourFilter, logger, this);
+                }
 
                 runningWorkProviders.put(job.getId(), new Pair<CancellableWorkProvider,
                         CancellableWorker>(workProvider, worker));
@@ -146,14 +581,54 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
                 logger.info(String.format("Starting batch processor '%s' to process %s",
                         job.getName(), workFactory.describe(data)));
                 processor.process(worker, true);
+                job.setTotalErrors(processor.getTotalErrors() + processEmitted(job, rth, worker, false));
 
             } else {
 
-                // Split into batches here so that onBatch function can process them
-                CancellableWorkProvider<List<Object>> workProvider =
-                        workFactory.newBatchesWorkProvider(data, job.getBatchSize());
-                ProcessBatchWorker worker = new ProcessBatchWorker(job.getOnBatch(), cachedScope,
-                        user, job.getDisableRules(), sr.getRuleService(), logger, this);
+                // Split into batches here so that onBatch function can process them, so that
+                // items with the same partition key are never in parallel batches, or so that
+                // values of all items of a batch are loaded together
+                CancellableWorkProvider<List<Object>> workProvider;
+                if (job.getPartitioning() != null) {
+                    // Emitted items are partitioned as well, and items are sampled before partitioning
+                    CancellableWorkProvider<Object> nodesProvider = new EmittingWorkProvider<>(
+                            workFactory.newNodesWorkProvider(data, job), job.getEmittedWork(),
+                            job.getBatchSize(), false);
+                    if (job.getSampler() != null) {
+                        nodesProvider = new SamplingWorkProvider<>(nodesProvider, job.getSampler());
+                    }
+                    workProvider = new PartitioningWorkProvider(nodesProvider,
+                            job.getPartitioning(), job.getThreads(), job.getBatchSize(), cachedScope, logger);
+                } else {
+                    workProvider = workFactory.newBatchesWorkProvider(data, job);
+                    if (job.getCheckpointer() != null) {
+                        workProvider = new CheckpointingWorkProvider<>(workProvider, job.getCheckpointer());
+                    }
+                    workProvider = new EmittingWorkProvider<>(workProvider, job.getEmittedWork(),
+                            job.getBatchSize(), true);
+                    if (job.getSampler() != null) {
+                        workProvider = new SamplingWorkProvider<>(workProvider, job.getSampler());
+                    }
+                }
+                if (job.getContentPrefetcher() != null) {
+                    workProvider = new PrefetchingWorkProvider<>(workProvider, job.getContentPrefetcher());
+                }
+                workProvider = withHeapMonitor(job, workProvider);
+                CancellableWorker<List<Object>> worker;
+                if (deleting) {
+                    worker = new DeleteNodeWorker(user, (BatchJobParameters.ProcessDeleteJobParameters) job,
+                            sr, behaviourFilter, logger, this);
+                } else if (nodeProcessor != null) {
+                    worker = new JavaNodeListWorker(nodeProcessor, user, job, sr, behaviourFilter, logger, this);
+                } else if (batchProcessor != null) {
+                    worker = new JavaBatchWorker(batchProcessor, user, job, sr, behaviourFilter, logger, this);
+                } else if (job.getOnNode() != null) {
+                    worker = new ProcessNodeListWorker(job.getOnNode(), cachedScope,
+                            user, job, sr, behaviourFilter, logger, this);
+                } else {
+                    worker = new ProcessBatchWorker(job.getOnBatch(), cachedScope,
+                            user, job, sr, behaviourFilter, logger, this);
+                }
 
                 runningWorkProviders.put(job.getId(), new Pair<CancellableWorkProvider,
                         CancellableWorker>(workProvider, worker));
@@ -161,25 +636,220 @@ public class ScriptBatchExecuter extends BaseScopableProcessorExtension implemen
                 BatchProcessor<List<Object>> processor = new BatchProcessor<>(job.getName(), rth,
                         workProvider,
                         job.getThreads(), 1, applicationContext, logger, 1);
-                logger.info(String.format("Starting batch processor '%s' to process %s with batch function",
-                        job.getName(), workFactory.describe(data)));
+                logger.info(String.format("Starting batch processor '%s' to process %s %s",
+                        job.getName(), workFactory.describe(data), job.getPartitioning() != null ?
+                                "partitioned by " + job.getPartitioning().getPartitionBy() :
+                                deleting ? "from the leaves up" :
+                                job.getLoader() != null ? "with batch loader" : "with batch function"));
                 processor.process(worker, true);
+                job.setTotalErrors(processor.getTotalErrors() + processEmitted(job, rth, worker, true));
             }
 
             if (job.getStatus() != BatchJobParameters.Status.CANCELED) {
                 job.setStatus(BatchJobParameters.Status.FINISHED);
+                if (job.getCheckpointer() != null && job.getTotalErrors() == 0) {
+                    // Nothing is left to resume
+                    job.getCheckpointer().finish();
+                } else if (job.getCheckpointer() != null) {
+                    logger.info(String.format("Job '%s' had errors, its checkpoint is kept to process " +
+                            "the failed work again with batchExecuter.resumeJob('%s')", job.getName(), job.getId()));
+                }
+            }
+            if (job.getSampler() != null) {
+                logger.info(String.format("Sample run of job '%s' %s", job.getName(),
+                        job.getSampler().getReport(job.getBatchSize())));
+            }
+            if (job.getProfiler() != null) {
+                logger.info(String.format("Slowest items of job '%s': %s",
+                        job.getName(), job.getProfiler().getSlowestItems()));
+            }
+            if (job.getVisitedNodes() != null && logger.isDebugEnabled()) {
+                logger.debug(String.format("Job '%s' visited %d distinct nodes, kept in %d KB",
+                        job.getName(), job.getVisitedNodes().size(), job.getVisitedNodes().getSizeInBytes() / 1024));
             }
 
             return job.getName();
 
         } finally {
+            if (job.getSizeEstimator() != null) {
+                job.getSizeEstimator().stop();
+            }
+            if (job.getContentPrefetcher() != null) {
+                job.getContentPrefetcher().shutdown();
+            }
+            if (job.getProfiler() != null) {
+                job.getProfiler().stop();
+            }
+            if (job.getHeapMonitor() != null) {
+                job.getHeapMonitor().stop();
+            }
+            if (job.getClusterLeases() != null) {
+                job.getClusterLeases().finish();
+            }
             runningJobs.remove(job.getId());
             runningWorkProviders.remove(job.getId());
         }
     }
 
+    /**
+     * Processes items emitted by the last batches of a job, after its work provider has
+     * given out all its work, in as many rounds as the batches of each round emit more.
+     *
+     * @param inBatches true if the worker processes batches, false if it processes items.
+     * @return number of errors.
+     */
+    @SuppressWarnings("unchecked")
+    private <E> int processEmitted(BatchJobParameters job, RetryingTransactionHelper rth,
+                                   CancellableWorker<E> worker, boolean inBatches) {
+        int errors = 0;
+        // A sample run has sampled the items emitted while its source was read, the rest are left out
+        while (job.getStatus() != BatchJobParameters.Status.CANCELED && job.getSampler() == null &&
+                !job.getEmittedWork().isEmpty()) {
+            CancellableWorkProvider<E> workProvider;
+            if (inBatches && job.getPartitioning() != null) {
+                workProvider = (CancellableWorkProvider<E>) (CancellableWorkProvider<?>) new PartitioningWorkProvider(
+                        new EmittingWorkProvider<>(null, job.getEmittedWork(), job.getBatchSize(), false),
+                        job.getPartitioning(), job.getThreads(), job.getBatchSize(), getScope(), logger);
+            } else {
+                workProvider = new EmittingWorkProvider<>(null, job.getEmittedWork(), job.getBatchSize(), inBatches);
+            }
+            if (job.getContentPrefetcher() != null) {
+                workProvider = new PrefetchingWorkProvider<>(workProvider, job.getContentPrefetcher());
+            }
+            workProvider = withHeapMonitor(job, workProvider);
+            runningWorkProviders.put(job.getId(), new Pair<CancellableWorkProvider,
+                    CancellableWorker>(workProvider, worker));
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Job '%s' processes items emitted by its last batches", job.getName()));
+            }
+            BatchProcessor<E> processor = new BatchProcessor<>(job.getName(), rth, workProvider,
+                    job.getThreads(), inBatches ? 1 : job.getBatchSize(), applicationContext, logger,
+                    inBatches ? 1 : 1000);
+            processor.process(worker, true);
+            errors += processor.getTotalErrors();
+        }
+        return errors;
+    }
+
+    /**
+     * Runs a batch processor for each stage of a job at the same time: the first one processes
+     * the work of the job, each next one the values passed by the stage before it. A stage
+     * finishes once the stage before it has finished and all passed values are processed.
+     *
+     * @return number of errors of all stages.
+     */
+    private <T> int processStages(final BatchJobParameters job, NodeOrBatchWorkProviderFactory<T> workFactory, T data,
+                                  RetryingTransactionHelper rth, String user, Scriptable scope) {
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> stageThreads = new ArrayList<>();
+        Runnable firstStage = null;
+        for (final Stage stage : job.getStages()) {
+            CancellableWorkProvider<Object> workProvider;
+            final StageWorker worker = new StageWorker(stage, scope, user, job, sr, behaviourFilter, logger, this);
+            if (stage.getNumber() == 1) {
+                // Later stages are held back by their queues
+                workProvider = withHeapMonitor(job, workFactory.newNodesWorkProvider(data, job));
+                runningWorkProviders.put(job.getId(), new Pair<CancellableWorkProvider,
+                        CancellableWorker>(workProvider, worker));
+            } else {
+                workProvider = new StageWorkProvider(stage);
+            }
+            final BatchProcessor<Object> processor = new BatchProcessor<>(
+                    job.getName() + " stage " + stage.getNumber(), rth, workProvider,
+                    stage.getThreads(), stage.getBatchSize(), applicationContext, logger, 1000);
+            Runnable run = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processor.process(worker, true);
+                        errors.addAndGet(processor.getTotalErrors());
+                    } catch (RuntimeException | Error e) {
+                        // Other stages would wait for this one forever
+                        cancel(job.getId());
+                        throw e;
+                    } finally {
+                        if (stage.getNext() != null) {
+                            stage.getNext().closeInput();
+                        }
+                    }
+                }
+            };
+            if (stage.getNumber() == 1) {
+                firstStage = run;
+            } else {
+                Thread thread = new Thread(run, job.getName() + " stage " + stage.getNumber());
+                thread.setDaemon(true);
+                stageThreads.add(thread);
+            }
+        }
+
+        logger.info(String.format("Starting %d stages of job '%s' to process %s",
+                job.getStages().size(), job.getName(), workFactory.describe(data)));
+        for (Thread thread : stageThreads) {
+            thread.start();
+        }
+        firstStage.run();
+        try {
+            for (Thread thread : stageThreads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(job.getId());
+        }
+        return errors.get();
+    }
+
+    /**
+     * Pauses feeding of a job with {@code maxHeapUsage} while the heap is nearly full.
+     */
+    private <E> CancellableWorkProvider<E> withHeapMonitor(BatchJobParameters job,
+                                                           CancellableWorkProvider<E> workProvider) {
+        if (job.getHeapMonitor() == null) {
+            return workProvider;
+        }
+        return new ThrottlingWorkProvider<>(workProvider, job.getHeapMonitor(), job.getContentPrefetcher(),
+                job.getStats(), job.getName(), logger);
+    }
+
+    private <P> P getProcessorBean(String name, Class<P> type) {
+        try {
+            return applicationContext.getBean(name, type);
+        } catch (BeansException e) {
+            throw new IllegalArgumentException(String.format("bean '%s' must exist and implement %s",
+                    name, type.getName()), e);
+        }
+    }
+
+    /**
+     * Binds a job to the current worker thread, so that functions of this object called
+     * from the processing functions know which job they belong to.
+     *
+     * @param job job being processed, or null when the batch is done.
+     */
+    static void setCurrentJob(BatchJobParameters job) {
+        if (job == null) {
+            currentJob.remove();
+        } else {
+            currentJob.set(job);
+        }
+    }
+
     public void setServiceRegistry(ServiceRegistry serviceRegistry) {
         this.sr = serviceRegistry;
+        this.propertyUpdates = new PropertyUpdates(serviceRegistry, logger);
+    }
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    public void setNodeDAO(NodeDAO nodeDAO) {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setSolrTrackingComponent(SOLRTrackingComponent solrTrackingComponent) {
+        this.solrTrackingComponent = solrTrackingComponent;
     }
 
     @Override
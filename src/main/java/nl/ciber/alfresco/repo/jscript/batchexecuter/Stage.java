@@ -0,0 +1,240 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import nl.ciber.alfresco.repo.jscript.RhinoUtils;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Workers.CancellableWorker;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a job given as {@code stages}, e.g. a read-only analysis running with many threads
+ * followed by a stage writing the results with a few threads, so that the analysis can use all
+ * processors while the database only sees as many concurrent writers as the write stage has.
+ *
+ * Each stage has its own function, threads, batch size and transaction mode, and runs its own
+ * batch processor at the same time as the other stages. The first stage processes the items of
+ * the job, each next stage processes the values returned by the function of the stage before it,
+ * once the transaction which returned them is done. Stages are connected by bounded queues: a
+ * stage waits while the queue of the next one is full, so a fast stage cannot run far ahead.
+ *
+ * Transactions of a read-only stage are rolled back instead of committed, so they end quickly
+ * and nothing written by its function is kept.
+ *
+ * @author Bulat Yaminov
+ */
+public class Stage {
+
+    private static final String PARAM_ON_NODE = "onNode";
+    private static final String PARAM_THREADS = "threads";
+    private static final String PARAM_BATCH_SIZE = "batchSize";
+    private static final String PARAM_READ_ONLY = "readOnly";
+    private static final String PARAM_QUEUE_SIZE = "queueSize";
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    /** Longest wait for a batch to fill up once its first item is there */
+    private static final long FILL_WAIT_MS = 1000;
+    private static final long POLL_MS = 100;
+
+    private int number;
+    private Function onNode;
+    private int threads;
+    private int batchSize;
+    private boolean readOnly;
+    private int queueSize;
+
+    private Stage next;
+    /** Items given by the stage before, null for the first stage */
+    private BlockingQueue<Object> input;
+    private volatile boolean inputClosed = false;
+    private volatile boolean canceled = false;
+    private volatile CancellableWorker<?> worker;
+    private AtomicLong passed = new AtomicLong();
+
+    /**
+     * Parse stages from JavaScript parameters.
+     *
+     * @param params array of objects with {@code onNode} function, and optionally {@code threads},
+     *               {@code batchSize}, {@code readOnly} and {@code queueSize}; may be null.
+     * @param paramName name of the parameter for error messages.
+     * @param threads threads of a stage which does not give them.
+     * @param batchSize batch size of a stage which does not give it.
+     * @return stages connected to each other, or null if no parameter is given.
+     * @throws IllegalArgumentException when parameters are incorrect.
+     */
+    public static List<Stage> parse(List<Object> params, String paramName, int threads, int batchSize)
+            throws IllegalArgumentException {
+        if (params == null) {
+            return null;
+        }
+        if (params.isEmpty()) {
+            throw new IllegalArgumentException(paramName + " must have at least one stage");
+        }
+        List<Stage> stages = new ArrayList<>(params.size());
+        for (Object param : params) {
+            String name = paramName + "[" + stages.size() + "]";
+            if (!(param instanceof ScriptableObject)) {
+                throw new IllegalArgumentException(name + " must be an object with " + PARAM_ON_NODE +
+                        " function, but is instead: " + param);
+            }
+            Map<String, Object> map = RhinoUtils.convertToMap((ScriptableObject) param);
+            Stage stage = new Stage();
+            stage.number = stages.size() + 1;
+            stage.onNode = RhinoUtils.getFunction(map, PARAM_ON_NODE);
+            if (stage.onNode == null) {
+                throw new IllegalArgumentException(name + "." + PARAM_ON_NODE + " function is required");
+            }
+            stage.threads = RhinoUtils.getInteger(map, PARAM_THREADS, threads);
+            stage.batchSize = RhinoUtils.getInteger(map, PARAM_BATCH_SIZE, batchSize);
+            stage.readOnly = RhinoUtils.getBoolean(map, PARAM_READ_ONLY, false);
+            stage.queueSize = RhinoUtils.getInteger(map, PARAM_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+            if (stage.threads < 1 || stage.batchSize < 1 || stage.queueSize < 1) {
+                throw new IllegalArgumentException(name + " must have positive " + PARAM_THREADS + ", " +
+                        PARAM_BATCH_SIZE + " and " + PARAM_QUEUE_SIZE);
+            }
+            if (!stages.isEmpty()) {
+                Stage previous = stages.get(stages.size() - 1);
+                previous.next = stage;
+                stage.input = new ArrayBlockingQueue<>(stage.queueSize);
+            }
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    /**
+     * Gives an item to this stage, waiting while its queue is full.
+     *
+     * @return false if the item was dropped because the job is canceled.
+     */
+    public boolean give(Object item) throws InterruptedException {
+        while (!canceled) {
+            if (input.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes items given by the stage before, waiting for the first one, and then for the batch to
+     * fill up for a short while, so that batches are not made of single items.
+     *
+     * @return up to {@code max} items, or empty list if the stage before has finished and all its
+     * items are taken, or the job is canceled.
+     */
+    public List<Object> take(int max) throws InterruptedException {
+        List<Object> items = new ArrayList<>();
+        long fillUntil = -1;
+        while (!canceled && items.size() < max) {
+            input.drainTo(items, max - items.size());
+            if (items.size() >= max) {
+                break;
+            }
+            if (!items.isEmpty()) {
+                if (fillUntil < 0) {
+                    fillUntil = System.currentTimeMillis() + FILL_WAIT_MS;
+                } else if (System.currentTimeMillis() >= fillUntil) {
+                    break;
+                }
+            }
+            if (inputClosed && input.isEmpty()) {
+                break;
+            }
+            Object item = input.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return canceled ? Collections.<Object>emptyList() : items;
+    }
+
+    /**
+     * Marks that the stage before has finished, so no more items will come.
+     */
+    public void closeInput() {
+        inputClosed = true;
+    }
+
+    /**
+     * Stops the stage: its worker skips its items, and items given to it are dropped.
+     *
+     * @return true if the stage was not canceled before.
+     */
+    public synchronized boolean cancel() {
+        if (canceled) {
+            return false;
+        }
+        canceled = true;
+        if (worker != null) {
+            worker.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Counts an item passed by this stage to the next one.
+     */
+    public void passed() {
+        passed.incrementAndGet();
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public Function getOnNode() {
+        return onNode;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return stage which processes values returned by this stage, or null for the last stage.
+     */
+    public Stage getNext() {
+        return next;
+    }
+
+    protected void setWorker(CancellableWorker<?> worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * @return capacity of the queue of items given by the stage before, or -1 for the first stage.
+     */
+    public int getQueueSize() {
+        return input == null ? -1 : queueSize;
+    }
+
+    /**
+     * @return number of items waiting in the queue of this stage.
+     */
+    public int getQueued() {
+        return input == null ? 0 : input.size();
+    }
+
+    /**
+     * @return number of items passed by this stage to the next one.
+     */
+    public long getPassed() {
+        return passed.get();
+    }
+}
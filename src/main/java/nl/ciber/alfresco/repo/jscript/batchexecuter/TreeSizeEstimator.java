@@ -0,0 +1,158 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+
+import java.util.*;
+
+/**
+ * Estimates how many nodes a folder job will visit, in a background thread while the job
+ * is already running, so that progress can be shown with an ETA.
+ *
+ * Uses random probes (Knuth's estimator): each probe walks from the root down a random
+ * path, and the sum of products of fan-outs met on the way is an unbiased estimate of the
+ * tree size. The mean of the probes is refined until it is precise enough or the job ends.
+ * Filters and {@code onFolder} are not considered, so the estimate is an upper bound.
+ *
+ * @author Bulat Yaminov
+ */
+public class TreeSizeEstimator implements Runnable {
+
+    private static final int PROBES_PER_TXN = 20;
+    private static final int MIN_PROBES = 30;
+    private static final int MAX_PROBES = 5000;
+    /** Stop when the 95% confidence interval is within this share of the mean */
+    private static final double PRECISION = 0.05;
+    private static final int CHILDREN_CACHE_SIZE = 100;
+
+    private ServiceRegistry sr;
+    private NodeRef root;
+    private FolderTraversal traversal;
+    private Log logger;
+    private Random random = new Random();
+
+    private String userName;
+    private volatile boolean stopped = false;
+    private volatile long estimate = -1;
+    private long probes = 0;
+    private double sum = 0;
+    private double sumOfSquares = 0;
+
+    /** Children of containers met by recent probes, as the upper levels are walked by each probe */
+    private Map<NodeRef, List<ChildAssociationRef>> childrenCache =
+            new LinkedHashMap<NodeRef, List<ChildAssociationRef>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NodeRef, List<ChildAssociationRef>> eldest) {
+            return size() > CHILDREN_CACHE_SIZE;
+        }
+    };
+
+    public TreeSizeEstimator(ServiceRegistry sr, NodeRef root, FolderTraversal traversal, Log logger) {
+        this.sr = sr;
+        this.root = root;
+        this.traversal = traversal;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts estimating in a new daemon thread.
+     *
+     * @param userName user to read the nodes as.
+     * @param jobName name of the job for the thread name.
+     */
+    public void start(String userName, String jobName) {
+        this.userName = userName;
+        Thread thread = new Thread(this, jobName + "-estimator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+                @Override
+                public Void doWork() throws Exception {
+                    while (!stopped && !isPreciseEnough()) {
+                        sr.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                                new RetryingTransactionCallback<Void>() {
+                            @Override
+                            public Void execute() throws Throwable {
+                                for (int i = 0; i < PROBES_PER_TXN && !stopped; i++) {
+                                    addProbe(probe());
+                                }
+                                return null;
+                            }
+                        }, true, true);
+                    }
+                    return null;
+                }
+            }, userName);
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("estimated %d nodes in %s after %d probes", estimate, root, probes));
+            }
+        } catch (RuntimeException e) {
+            // The job goes on without an estimate
+            logger.warn("Failed to estimate size of " + root, e);
+        }
+    }
+
+    private long probe() {
+        NodeRef node = root;
+        int depth = 0;
+        long weight = 1;
+        long total = 1;
+        while (traversal.canDescend(depth) && traversal.isContainer(node)) {
+            List<ChildAssociationRef> children = childrenCache.get(node);
+            if (children == null) {
+                children = traversal.getChildren(node);
+                childrenCache.put(node, children);
+            }
+            if (children.isEmpty()) {
+                break;
+            }
+            weight *= children.size();
+            total += weight;
+            node = children.get(random.nextInt(children.size())).getChildRef();
+            depth++;
+        }
+        return total;
+    }
+
+    private synchronized void addProbe(long size) {
+        probes++;
+        sum += size;
+        sumOfSquares += (double) size * size;
+        if (probes >= MIN_PROBES) {
+            estimate = Math.round(sum / probes);
+        }
+    }
+
+    private synchronized boolean isPreciseEnough() {
+        if (probes >= MAX_PROBES) {
+            return true;
+        }
+        if (probes < MIN_PROBES) {
+            return false;
+        }
+        double mean = sum / probes;
+        double variance = Math.max(0, sumOfSquares / probes - mean * mean);
+        double halfWidth = 1.96 * Math.sqrt(variance / probes);
+        return halfWidth <= PRECISION * mean;
+    }
+
+    /**
+     * @return estimated number of nodes, or -1 until there are enough probes.
+     */
+    public long getEstimate() {
+        return estimate;
+    }
+}
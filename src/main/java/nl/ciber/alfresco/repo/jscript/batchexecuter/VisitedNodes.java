@@ -0,0 +1,215 @@
+package nl.ciber.alfresco.repo.jscript.batchexecuter;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of nodes already given out by a job started with {@code dedupe: true}, so that each
+ * node is processed once even when it is found through several parents or is repeated in
+ * the items array.
+ *
+ * Nodes are kept by their DB IDs in a compressed bitmap in the style of Roaring bitmaps:
+ * IDs are split into chunks of 65536 by their high bits, and each chunk keeps its low bits
+ * either in a sorted array while it is sparse, or in a plain bitmap of 8 KB once it has more
+ * than {@link #ARRAY_MAX} of them. As DB IDs of a repository are mostly dense, 50 million
+ * nodes take about 6 MB.
+ *
+ * @author Bulat Yaminov
+ */
+public class VisitedNodes {
+
+    /** Largest array container, which takes as much memory as a bitmap container */
+    private static final int ARRAY_MAX = 4096;
+    private static final int CHUNK_BITS = 16;
+    private static final int LOW_MASK = (1 << CHUNK_BITS) - 1;
+
+    private NodeService ns;
+    private Map<Long, Container> chunks = new HashMap<>();
+    private long size = 0;
+
+    public VisitedNodes(NodeService ns) {
+        this.ns = ns;
+    }
+
+    /**
+     * Marks a node as visited.
+     *
+     * @return true if the node is visited for the first time, or no longer exists.
+     */
+    public boolean add(NodeRef node) {
+        Long id = getId(node);
+        return id == null || add(id);
+    }
+
+    /**
+     * @return DB ID of a node, or null if it no longer exists.
+     */
+    public Long getId(NodeRef node) {
+        Serializable dbId;
+        try {
+            dbId = ns.getProperty(node, ContentModel.PROP_NODE_DBID);
+        } catch (InvalidNodeRefException e) {
+            // Let processing deal with it as usual
+            return null;
+        }
+        return dbId instanceof Long ? (Long) dbId : null;
+    }
+
+    /**
+     * Marks a node DB ID as visited.
+     *
+     * @return true if the ID was not visited before.
+     */
+    public synchronized boolean add(long id) {
+        long key = id >>> CHUNK_BITS;
+        Container chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new ArrayContainer();
+            chunks.put(key, chunk);
+        } else if (chunk instanceof ArrayContainer && ((ArrayContainer) chunk).isFull()) {
+            chunk = ((ArrayContainer) chunk).toBitmap();
+            chunks.put(key, chunk);
+        }
+        if (chunk.add((int) (id & LOW_MASK))) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the ID was visited before.
+     */
+    public synchronized boolean contains(long id) {
+        Container chunk = chunks.get(id >>> CHUNK_BITS);
+        return chunk != null && chunk.contains((int) (id & LOW_MASK));
+    }
+
+    /**
+     * @return number of visited nodes.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return approximate memory taken by the visited IDs.
+     */
+    public synchronized long getSizeInBytes() {
+        long bytes = 0;
+        for (Container chunk : chunks.values()) {
+            // Map entry and key take about 64 bytes more
+            bytes += chunk.getSizeInBytes() + 64;
+        }
+        return bytes;
+    }
+
+    private interface Container {
+        /**
+         * @param low low 16 bits of an ID.
+         * @return true if the value was added, false if it was already there.
+         */
+        boolean add(int low);
+
+        boolean contains(int low);
+
+        long getSizeInBytes();
+    }
+
+    /** Sorted unsigned 16-bit values of a sparse chunk */
+    private static class ArrayContainer implements Container {
+
+        private short[] values = new short[4];
+        private int count = 0;
+
+        @Override
+        public boolean add(int low) {
+            int index = indexOf(low);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, count + (count >> 1) + 1));
+            }
+            System.arraycopy(values, index, values, index + 1, count - index);
+            values[index] = (short) low;
+            count++;
+            return true;
+        }
+
+        @Override
+        public boolean contains(int low) {
+            return indexOf(low) >= 0;
+        }
+
+        /** Binary search comparing values as unsigned */
+        private int indexOf(int low) {
+            int from = 0;
+            int to = count - 1;
+            while (from <= to) {
+                int middle = (from + to) >>> 1;
+                int value = values[middle] & LOW_MASK;
+                if (value < low) {
+                    from = middle + 1;
+                } else if (value > low) {
+                    to = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(from + 1);
+        }
+
+        private boolean isFull() {
+            return count >= ARRAY_MAX;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < count; i++) {
+                bitmap.add(values[i] & LOW_MASK);
+            }
+            return bitmap;
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return 2L * values.length + 16;
+        }
+    }
+
+    /** One bit for each of 65536 values of a dense chunk */
+    private static class BitmapContainer implements Container {
+
+        private long[] bits = new long[(LOW_MASK + 1) / 64];
+
+        @Override
+        public boolean add(int low) {
+            long mask = 1L << (low & 63);
+            int word = low >>> 6;
+            if ((bits[word] & mask) != 0) {
+                return false;
+            }
+            bits[word] |= mask;
+            return true;
+        }
+
+        @Override
+        public boolean contains(int low) {
+            return (bits[low >>> 6] & (1L << (low & 63))) != 0;
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return 8L * bits.length + 16;
+        }
+    }
+}
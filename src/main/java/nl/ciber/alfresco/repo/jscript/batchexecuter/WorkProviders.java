@@ -1,18 +1,30 @@
 package nl.ciber.alfresco.repo.jscript.batchexecuter;
 
+import nl.ciber.alfresco.repo.jscript.batchexecuter.Checkpointer.Checkpointable;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.ClusterLeases.Lease;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.domain.node.Node;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.jscript.ScriptableHashMap;
+import org.alfresco.repo.jscript.ValueConverter;
+import org.alfresco.repo.solr.NodeParameters;
+import org.alfresco.repo.solr.SOLRTrackingComponent;
+import org.alfresco.repo.solr.SOLRTrackingComponent.NodeQueryCallback;
+import org.alfresco.repo.solr.Transaction;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.Scriptable;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -26,8 +38,8 @@ public class WorkProviders {
 //    private static final Log logger = LogFactory.getLog(WorkProviders.class);
 
     public interface NodeOrBatchWorkProviderFactory<T> {
-        CancellableWorkProvider<Object> newNodesWorkProvider(T data, int batchSize);
-        CancellableWorkProvider<List<Object>> newBatchesWorkProvider(T data, int batchSize);
+        CancellableWorkProvider<Object> newNodesWorkProvider(T data, BatchJobParameters job);
+        CancellableWorkProvider<List<Object>> newBatchesWorkProvider(T data, BatchJobParameters job);
         String describe(T data);
     }
 
@@ -44,6 +56,131 @@ public class WorkProviders {
         boolean cancel();
     }
 
+    /**
+     * Converts nodes found by work providers into items given to processing functions.
+     */
+    public interface NodeConverter {
+        /**
+         * @param nodes nodes of one batch.
+         * @return new list of items, one for each node.
+         */
+        List<Object> convert(List<NodeRef> nodes);
+    }
+
+    /**
+     * @return node reference of an item given to processing functions, or null if the item is not a node.
+     */
+    public static NodeRef toNodeRef(Object item) {
+        if (item instanceof NativeJavaObject) {
+            item = ((NativeJavaObject) item).unwrap();
+        }
+        if (item instanceof ScriptNode) {
+            return ((ScriptNode) item).getNodeRef();
+        } else if (item instanceof ProjectedNode) {
+            return ((ProjectedNode) item).getNodeRef();
+        } else if (item instanceof NodeRef) {
+            return (NodeRef) item;
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the job deduplicates nodes and the item is a node given out before.
+     */
+    static boolean firstVisit(VisitedNodes visited, Object item) {
+        if (visited == null) {
+            return true;
+        }
+        NodeRef node = toNodeRef(item);
+        if (node == null && item instanceof CharSequence && NodeRef.isNodeRef(item.toString())) {
+            node = new NodeRef(item.toString());
+        }
+        return node == null || visited.add(node);
+    }
+
+    private static NativeJavaObject convertToJS(NodeRef node, ServiceRegistry sr, Scriptable scope) {
+        ScriptNode scriptNode = new ScriptNode(node, sr, scope);
+        return new NativeJavaObject(scope, scriptNode, ScriptNode.class);
+    }
+
+    /** Gives node references as they are, for Java processors */
+    public static class NodeRefConverter implements NodeConverter {
+
+        @Override
+        public List<Object> convert(List<NodeRef> nodes) {
+            return new ArrayList<Object>(nodes);
+        }
+    }
+
+    /** Gives a full ScriptNode for each node */
+    public static class ScriptNodeConverter implements NodeConverter {
+
+        private ServiceRegistry sr;
+        private Scriptable scope;
+
+        public ScriptNodeConverter(ServiceRegistry sr, Scriptable scope) {
+            this.sr = sr;
+            this.scope = scope;
+        }
+
+        @Override
+        public List<Object> convert(List<NodeRef> nodes) {
+            List<Object> items = new ArrayList<>(nodes.size());
+            for (NodeRef node : nodes) {
+                items.add(convertToJS(node, sr, scope));
+            }
+            return items;
+        }
+    }
+
+    /**
+     * Gives a {@link ProjectedNode} with only requested properties for each node.
+     * Nodes of a batch are loaded into cache all at once before reading properties.
+     */
+    public static class ProjectingNodeConverter implements NodeConverter {
+
+        private ServiceRegistry sr;
+        private NodeService ns;
+        private NodeDAO nodeDAO;
+        private Scriptable scope;
+        private List<String> fields;
+        private List<QName> fieldQNames = new ArrayList<>();
+        private ValueConverter valueConverter = new ValueConverter();
+
+        public ProjectingNodeConverter(ServiceRegistry sr, NodeDAO nodeDAO, List<String> fields, Scriptable scope) {
+            this.sr = sr;
+            this.ns = sr.getNodeService();
+            this.nodeDAO = nodeDAO;
+            this.fields = fields;
+            this.scope = scope;
+            for (String field : fields) {
+                fieldQNames.add(QName.resolveToQName(sr.getNamespaceService(), field));
+            }
+        }
+
+        @Override
+        public List<Object> convert(List<NodeRef> nodes) {
+            if (nodeDAO != null && nodes.size() > 1) {
+                nodeDAO.cacheNodes(nodes);
+            }
+            List<Object> items = new ArrayList<>(nodes.size());
+            for (NodeRef node : nodes) {
+                Map<QName, Serializable> allProperties = ns.getProperties(node);
+                ScriptableHashMap<String, Serializable> properties = new ScriptableHashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    QName qname = fieldQNames.get(i);
+                    Serializable value = allProperties.get(qname);
+                    properties.put(fields.get(i), value == null ? null :
+                            valueConverter.convertValueForScript(sr, scope, qname, value));
+                }
+                String type = ns.getType(node).toPrefixString(sr.getNamespaceService());
+                ProjectedNode projected = new ProjectedNode(node, type, properties, sr, scope);
+                items.add(new NativeJavaObject(scope, projected, ProjectedNode.class));
+            }
+            return items;
+        }
+    }
+
     private static abstract class AbstractCancellableWorkProvider<T> implements CancellableWorkProvider<T> {
         private boolean canceled = false;
 
@@ -78,13 +215,17 @@ public class WorkProviders {
         }
 
         @Override
-        public CancellableWorkProvider<Object> newNodesWorkProvider(Collection<Object> items, int batchSize) {
-            return new CollectionWorkProvider(items, batchSize);
+        public CancellableWorkProvider<Object> newNodesWorkProvider(Collection<Object> items,
+                                                                    BatchJobParameters job) {
+            return new CollectionWorkProvider(items, job.getBatchSize(), job.getClusterLeases(), job.getFilter(),
+                    job.getVisitedNodes(), job.getResumePosition());
         }
 
         @Override
-        public CancellableWorkProvider<List<Object>> newBatchesWorkProvider(Collection<Object> items, int batchSize) {
-            return new CollectionOfBatchesWorkProvider(items, batchSize);
+        public CancellableWorkProvider<List<Object>> newBatchesWorkProvider(Collection<Object> items,
+                                                                           BatchJobParameters job) {
+            return new CollectionOfBatchesWorkProvider(items, job.getBatchSize(), job.getClusterLeases(),
+                    job.getFilter(), job.getVisitedNodes(), job.getResumePosition());
         }
 
         @Override
@@ -92,16 +233,70 @@ public class WorkProviders {
             return String.format("collection of %d nodes", data.size());
         }
 
-        private class CollectionWorkProvider extends AbstractCancellableWorkProvider<Object> {
+        /**
+         * Claims a batch of items in cluster. A batch held by another member is cleared and kept
+         * to be taken over if that member releases it or stops.
+         */
+        private static void leaseBatch(ClusterLeases leases, String leaseId, List<Object> batch,
+                                       Map<String, List<Object>> deferred) {
+            Lease lease = leases.claim(leaseId);
+            if (lease != null) {
+                leases.givenOut(lease, batch);
+                leases.allGivenOut(lease);
+            } else {
+                if (!leases.isDone(leaseId)) {
+                    deferred.put(leaseId, new ArrayList<>(batch));
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Waits for the batches held by other members once all items are read, taking over
+         * the first one which they give up.
+         */
+        private static void takeOverBatch(ClusterLeases leases, List<Object> batch,
+                                          Map<String, List<Object>> deferred) {
+            Pair<Lease, List<Object>> part;
+            while (batch.isEmpty() && (part = leases.takeOver(deferred)) != null) {
+                batch.addAll(part.getSecond());
+                leases.givenOut(part.getFirst(), batch);
+                leases.allGivenOut(part.getFirst());
+            }
+        }
+
+        private class CollectionWorkProvider extends AbstractCancellableWorkProvider<Object>
+                implements Checkpointable {
 
             private int itemsSize;
             private Iterator<Object> iterator;
             private int batchSize;
+            private ClusterLeases leases;
+            private NodeFilter filter;
+            private VisitedNodes visited;
+            private int batchIndex = 0;
+            private int taken = 0;
+            /** Batches held by other cluster members, by their lease IDs */
+            private Map<String, List<Object>> deferred = new LinkedHashMap<>();
 
-            public CollectionWorkProvider(Collection<Object> items, int batchSize) {
+            public CollectionWorkProvider(Collection<Object> items, int batchSize, ClusterLeases leases,
+                                          NodeFilter filter, VisitedNodes visited, Serializable position) {
                 this.itemsSize = items.size();
                 this.batchSize = batchSize;
                 this.iterator = items.iterator();
+                this.leases = leases;
+                this.filter = filter;
+                this.visited = visited;
+                // Items before the position of a resumed job are done
+                while (position != null && taken < (Integer) position && iterator.hasNext()) {
+                    iterator.next();
+                    taken++;
+                }
+            }
+
+            @Override
+            public Serializable getPosition() {
+                return taken;
             }
 
             @Override
@@ -111,31 +306,66 @@ public class WorkProviders {
 
             @Override
             protected boolean hasMoreWork() {
-                return iterator.hasNext();
+                return iterator.hasNext() || !deferred.isEmpty();
             }
 
             @Override
             public Collection<Object> doGetNextWork() {
                 /* Actually it is not needed to give work packages of fixed size here,
-                 * but it is better for cancellation behavior */
+                 * but it is better for cancellation behavior and for leasing batches in cluster */
                 List<Object> batch = new ArrayList<>(batchSize);
-                while (iterator.hasNext() && batch.size() < batchSize) {
-                    batch.add(iterator.next());
+                while (iterator.hasNext() && batch.isEmpty()) {
+                    while (iterator.hasNext() && batch.size() < batchSize) {
+                        Object item = iterator.next();
+                        taken++;
+                        if (filter.accept(item) && firstVisit(visited, item)) {
+                            batch.add(item);
+                        }
+                    }
+                    if (leases != null) {
+                        leaseBatch(leases, "batch-" + batchIndex, batch, deferred);
+                    }
+                    batchIndex++;
+                }
+                if (batch.isEmpty() && leases != null) {
+                    takeOverBatch(leases, batch, deferred);
                 }
                 return batch;
             }
         }
 
-        private class CollectionOfBatchesWorkProvider extends AbstractCancellableWorkProvider<List<Object>> {
+        private class CollectionOfBatchesWorkProvider extends AbstractCancellableWorkProvider<List<Object>>
+                implements Checkpointable {
 
             private Iterator<Object> iterator;
             private int batchSize;
             private int fullSize;
+            private ClusterLeases leases;
+            private NodeFilter filter;
+            private VisitedNodes visited;
+            private int batchIndex = 0;
+            private int taken = 0;
+            /** Batches held by other cluster members, by their lease IDs */
+            private Map<String, List<Object>> deferred = new LinkedHashMap<>();
 
-            public CollectionOfBatchesWorkProvider(Collection<Object> items, int batchSize) {
+            public CollectionOfBatchesWorkProvider(Collection<Object> items, int batchSize, ClusterLeases leases,
+                                                   NodeFilter filter, VisitedNodes visited, Serializable position) {
                 this.iterator = items.iterator();
                 this.batchSize = batchSize;
                 this.fullSize = new Double(Math.ceil(1.0d * items.size() / batchSize)).intValue();
+                this.leases = leases;
+                this.filter = filter;
+                this.visited = visited;
+                // Items before the position of a resumed job are done
+                while (position != null && taken < (Integer) position && iterator.hasNext()) {
+                    iterator.next();
+                    taken++;
+                }
+            }
+
+            @Override
+            public Serializable getPosition() {
+                return taken;
             }
 
             @Override
@@ -145,15 +375,28 @@ public class WorkProviders {
 
             @Override
             protected boolean hasMoreWork() {
-                return iterator.hasNext();
+                return iterator.hasNext() || !deferred.isEmpty();
             }
 
             @Override
             public Collection<List<Object>> doGetNextWork() {
                 // Return just one batch wrapped in a singleton collection
                 List<Object> batch = new ArrayList<>();
-                while (iterator.hasNext() && batch.size() < batchSize) {
-                    batch.add(iterator.next());
+                while (iterator.hasNext() && batch.isEmpty()) {
+                    while (iterator.hasNext() && batch.size() < batchSize) {
+                        Object item = iterator.next();
+                        taken++;
+                        if (filter.accept(item) && firstVisit(visited, item)) {
+                            batch.add(item);
+                        }
+                    }
+                    if (leases != null) {
+                        leaseBatch(leases, "batch-" + batchIndex, batch, deferred);
+                    }
+                    batchIndex++;
+                }
+                if (batch.isEmpty() && leases != null) {
+                    takeOverBatch(leases, batch, deferred);
                 }
                 if (!batch.isEmpty()) {
                     return Collections.singletonList(batch);
@@ -168,26 +411,27 @@ public class WorkProviders {
 
         private ServiceRegistry sr;
         private NodeService ns;
-        private DictionaryService ds;
         private Log logger;
         private Scriptable scope;
+        private NodeConverter converter;
 
-        public FolderBrowsingWorkProviderFactory(ServiceRegistry sr, Scriptable scope, Log logger) {
+        public FolderBrowsingWorkProviderFactory(ServiceRegistry sr, NodeConverter converter,
+                                                 Scriptable scope, Log logger) {
             this.sr = sr;
             this.ns = sr.getNodeService();
-            this.ds = sr.getDictionaryService();
+            this.converter = converter;
             this.scope = scope;
             this.logger = logger;
         }
 
         @Override
-        public CancellableWorkProvider<Object> newNodesWorkProvider(NodeRef root, int batchSize) {
-            return new FolderBrowsingWorkProvider(root);
+        public CancellableWorkProvider<Object> newNodesWorkProvider(NodeRef root, BatchJobParameters job) {
+            return new FolderBrowsingWorkProvider(root, job);
         }
 
         @Override
-        public CancellableWorkProvider<List<Object>> newBatchesWorkProvider(NodeRef root, int batchSize) {
-            return new FolderBrowsingInBatchesWorkProvider(root, batchSize);
+        public CancellableWorkProvider<List<Object>> newBatchesWorkProvider(NodeRef root, BatchJobParameters job) {
+            return new FolderBrowsingInBatchesWorkProvider(root, job);
         }
 
         @Override
@@ -198,74 +442,233 @@ public class WorkProviders {
             return String.format("folder %s recursively", name);
         }
 
-        private class FolderBrowsingWorkProvider extends AbstractCancellableWorkProvider<Object> {
+        private class FolderBrowsingWorkProvider extends AbstractCancellableWorkProvider<Object>
+                implements Checkpointable {
+
+            /** Nodes to visit paired with their depth below the root */
+            private Stack<Pair<NodeRef, Integer>> stack = new Stack<>();
+            private int batchSize;
+            private ClusterLeases leases;
+            private NodeFilter filter;
+            private FolderTraversal traversal;
+            private TreeSizeEstimator estimator;
+            private VisitedNodes visitedNodes;
+            private int visited = 0;
+            /** Lease of the part the nodes being given out belong to */
+            private Lease lease;
+            /** Leases all nodes of which are given out, to be told so once the nodes are registered */
+            private List<Lease> givenOutLeases = new ArrayList<>();
+            /** Root and sub-trees held by other cluster members, by their lease IDs */
+            private Map<String, Pair<NodeRef, Integer>> deferred = new LinkedHashMap<>();
+            /** Root or sub-tree taken over from another member, which is claimed already */
+            private Pair<NodeRef, Integer> takenOver;
+
+            private FolderBrowsingWorkProvider(NodeRef root, BatchJobParameters job) {
+                this.batchSize = job.getBatchSize();
+                this.estimator = job.getSizeEstimator();
+                this.visitedNodes = job.getVisitedNodes();
+                this.leases = job.getClusterLeases();
+                this.filter = job.getFilter();
+                this.traversal = job.getTraversal();
+                if (job.getResumePosition() != null) {
+                    // A resumed job continues from the nodes which were left to visit
+                    stack.addAll(toStack(job.getResumePosition()));
+                } else {
+                    stack.push(new Pair<>(root, 0));
+                }
+            }
 
-            private Stack<NodeRef> stack = new Stack<>();
+            /**
+             * @return nodes left to visit, from the bottom to the top of the stack.
+             */
+            @Override
+            public synchronized Serializable getPosition() {
+                return new ArrayList<>(stack);
+            }
 
-            private FolderBrowsingWorkProvider(NodeRef root) {
-                stack.push(root);
+            @SuppressWarnings("unchecked")
+            private List<Pair<NodeRef, Integer>> toStack(Serializable position) {
+                return (List<Pair<NodeRef, Integer>>) position;
             }
 
+            /**
+             * A folder is not counted up front, the estimate is refined in the background
+             * when {@code estimateSize} is on, and is -1 otherwise.
+             */
             @Override
             public int getTotalEstimatedWorkSize() {
-                // we cannot quickly estimate how many recursive children a folder has
-                return -1;
+                long estimate = estimator == null ? -1 : estimator.getEstimate();
+                if (estimate < 0) {
+                    return -1;
+                }
+                // Nodes already found are known for sure
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(estimate, visited + stack.size()));
             }
 
             @Override
             protected boolean hasMoreWork() {
-                return !stack.isEmpty();
+                return !stack.isEmpty() || !deferred.isEmpty();
             }
 
-            /** Returns just one node at a time */
+            /** Returns nodes of one batch, so that they are converted all together */
             @Override
             public Collection<Object> doGetNextWork() {
-                NodeRef node = pop();
-                if (node == null) {
-                    return Collections.emptyList();
-                } else {
-                    return Collections.<Object>singletonList(convertToJS(node));
+                return nextBatch();
+            }
+
+            /**
+             * @return items of the next batch, registered under the leases of their parts in cluster.
+             */
+            protected List<Object> nextBatch() {
+                List<NodeRef> nodes = new ArrayList<>(batchSize);
+                List<Lease> nodeLeases = new ArrayList<>(batchSize);
+                while (nodes.size() < batchSize) {
+                    NodeRef node = pop();
+                    if (node != null) {
+                        nodes.add(node);
+                        nodeLeases.add(lease);
+                        continue;
+                    }
+                    partGivenOut();
+                    // Nodes found so far are given out before waiting for the parts of other members,
+                    // as those may be waiting for the parts of this member as well
+                    if (!nodes.isEmpty() || !takeOver()) {
+                        break;
+                    }
+                }
+                List<Object> items = converter.convert(nodes);
+                if (leases != null) {
+                    for (int i = 0; i < items.size(); i++) {
+                        leases.givenOut(nodeLeases.get(i), Collections.singletonList(items.get(i)));
+                    }
+                    allGivenOut();
                 }
+                return items;
             }
 
-            protected NativeJavaObject convertToJS(NodeRef node) {
-                ScriptNode scriptNode = new ScriptNode(node, sr, scope);
-                return new NativeJavaObject(scope, scriptNode, ScriptNode.class);
+            private void allGivenOut() {
+                for (Lease givenOut : givenOutLeases) {
+                    leases.allGivenOut(givenOut);
+                }
+                givenOutLeases.clear();
             }
 
-            protected NodeRef pop() {
-                if (stack.isEmpty()) {
-                    return null;
+            /**
+             * Waits for the root and sub-trees held by other cluster members, once the own ones are
+             * all given out, and puts the first one taken over on the stack.
+             *
+             * @return false if there is nothing left to take over.
+             */
+            private boolean takeOver() {
+                if (leases == null) {
+                    return false;
+                }
+                allGivenOut();
+                Pair<Lease, Pair<NodeRef, Integer>> part = leases.takeOver(deferred);
+                if (part == null) {
+                    return false;
+                }
+                lease = part.getFirst();
+                takenOver = part.getSecond();
+                stack.push(takenOver);
+                return true;
+            }
+
+            /**
+             * Nodes are given out in depth-first order, so a part is all given out when the next
+             * part is started or there are no more nodes.
+             */
+            private void partGivenOut() {
+                if (lease != null) {
+                    givenOutLeases.add(lease);
+                    lease = null;
                 }
-                NodeRef head = stack.pop();
-                if (ds.isSubClass(ns.getType(head), ContentModel.TYPE_FOLDER)) {
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("fetching children of " + head);
+            }
+
+            /**
+             * Takes the next node to process from the stack, adding its children to the stack.
+             *
+             * @return next node to process or null if there are no more nodes to process.
+             */
+            protected NodeRef pop() {
+                while (!stack.isEmpty()) {
+                    Pair<NodeRef, Integer> head = stack.pop();
+                    boolean takenOver = head == this.takenOver;
+                    if (takenOver) {
+                        this.takenOver = null;
+                    }
+                    visited++;
+                    NodeRef node = head.getFirst();
+                    int depth = head.getSecond();
+                    // In cluster each sub-tree of the root is leased to one member, the root itself
+                    // is processed by one member but expanded by all of them
+                    if (leases != null && depth <= 1 && !takenOver) {
+                        partGivenOut();
+                        String leaseId = depth == 0 ? "root" : node.getId();
+                        lease = leases.claim(leaseId);
+                        if (lease == null && !leases.isDone(leaseId)) {
+                            deferred.put(leaseId, head);
+                        }
+                        if (lease == null && depth == 1) {
+                            if (logger.isTraceEnabled()) {
+                                logger.trace("skipping " + node + " processed by another cluster member");
+                            }
+                            continue;
+                        }
+                    }
+                    // Nodes reached again through another parent are neither processed nor descended
+                    if (!takenOver && !firstVisit(visitedNodes, node)) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("skipping " + node + " visited before");
+                        }
+                        continue;
+                    }
+                    boolean leased = leases == null || depth > 1 || lease != null;
+                    // The root taken over from another member has been expanded already
+                    boolean expand = !(takenOver && depth == 0);
+                    if (expand && filter.canDescend(depth) && traversal.canDescend(depth) &&
+                            traversal.isContainer(node)) {
+                        if (traversal.hasOnFolder() && !traversal.enter(convertToJS(node, sr, scope), scope)) {
+                            if (logger.isTraceEnabled()) {
+                                logger.trace("pruning sub-tree of " + node);
+                            }
+                            continue;
+                        }
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("fetching children of " + node);
+                        }
+                        List<ChildAssociationRef> children = traversal.getChildren(node);
+                        // Add to stack so that first child would appear as the head
+                        for (int i = children.size() - 1; i >= 0; i--) {
+                            stack.push(new Pair<>(children.get(i).getChildRef(), depth + 1));
+                        }
                     }
-                    List<ChildAssociationRef> children = ns.getChildAssocs(
-                            head, ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL);
-                    // Add to stack so that first child would appear as the head
-                    for (int i = children.size() - 1; i >= 0; i--) {
-                        stack.push(children.get(i).getChildRef());
+                    if (leased && filter.accept(node)) {
+                        return node;
                     }
                 }
-                return head;
+                return null;
             }
         }
 
-        private class FolderBrowsingInBatchesWorkProvider extends AbstractCancellableWorkProvider<List<Object>> {
+        private class FolderBrowsingInBatchesWorkProvider extends AbstractCancellableWorkProvider<List<Object>>
+                implements Checkpointable {
 
             private FolderBrowsingWorkProvider browser;
-            private int batchSize;
 
-            private FolderBrowsingInBatchesWorkProvider(NodeRef root, int batchSize) {
-                this.browser = new FolderBrowsingWorkProvider(root);
-                this.batchSize = batchSize;
+            private FolderBrowsingInBatchesWorkProvider(NodeRef root, BatchJobParameters job) {
+                this.browser = new FolderBrowsingWorkProvider(root, job);
+            }
+
+            @Override
+            public Serializable getPosition() {
+                return browser.getPosition();
             }
 
             @Override
             public int getTotalEstimatedWorkSize() {
-                return browser.getTotalEstimatedWorkSize();
+                int nodes = browser.getTotalEstimatedWorkSize();
+                return nodes < 0 ? -1 : new Double(Math.ceil(1.0d * nodes / browser.batchSize)).intValue();
             }
 
             @Override
@@ -276,10 +679,7 @@ public class WorkProviders {
             /** Returns just one batch wrapped in a collection */
             @Override
             public Collection<List<Object>> doGetNextWork() {
-                List<Object> batch = new ArrayList<>();
-                while (!browser.stack.isEmpty() && batch.size() < batchSize) {
-                    batch.add(browser.convertToJS(browser.pop()));
-                }
+                List<Object> batch = browser.nextBatch();
                 if (!batch.isEmpty()) {
                     return Collections.singletonList(batch);
                 } else {
@@ -288,4 +688,944 @@ public class WorkProviders {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Provides nodes under a root folder which were changed in transactions committed
+     * after a given transaction ID (the watermark). Uses the same transaction tracking
+     * as SOLR index does, so only the changed nodes are ever loaded.
+     *
+     * Transaction IDs are given when transactions start, not when they commit, so a transaction
+     * with a lower ID than the watermark may commit after it. Like the SOLR tracker with its hole
+     * retention, transactions are read by commit time, starting {@link #HOLE_RETENTION_MS} before
+     * the commit of the watermark transaction, and each transaction and node is taken once per job.
+     * Changes committed shortly before the watermark are therefore processed again by the next job.
+     */
+    public static class ChangedNodesWorkProviderFactory implements NodeOrBatchWorkProviderFactory<NodeRef> {
+
+        public static final long HOLE_RETENTION_MS = 60 * 60 * 1000L;
+        private static final int TXNS_PAGE_SIZE = 100;
+        private static final int ANCESTORS_CACHE_SIZE = 10000;
+
+        private ServiceRegistry sr;
+        private NodeService ns;
+        private SOLRTrackingComponent tracking;
+        private Log logger;
+        private NodeConverter converter;
+        private long sinceTxnId;
+        private volatile long nextWatermark;
+
+        public ChangedNodesWorkProviderFactory(ServiceRegistry sr, SOLRTrackingComponent tracking,
+                                               long sinceTxnId, NodeConverter converter, Log logger) {
+            this.sr = sr;
+            this.ns = sr.getNodeService();
+            this.tracking = tracking;
+            this.sinceTxnId = sinceTxnId;
+            this.nextWatermark = sinceTxnId;
+            this.converter = converter;
+            this.logger = logger;
+        }
+
+        @Override
+        public CancellableWorkProvider<Object> newNodesWorkProvider(NodeRef root, BatchJobParameters job) {
+            return new ChangedNodesWorkProvider(root, job.getBatchSize(), job.getFilter());
+        }
+
+        @Override
+        public CancellableWorkProvider<List<Object>> newBatchesWorkProvider(NodeRef root, BatchJobParameters job) {
+            return new ChangedNodesInBatchesWorkProvider(root, job.getBatchSize(), job.getFilter());
+        }
+
+        @Override
+        public String describe(NodeRef nodeRef) {
+            String name = ns.exists(nodeRef) ?
+                    (String) ns.getProperty(nodeRef, ContentModel.PROP_NAME) :
+                    "deleted";
+            return String.format("nodes in folder %s changed after transaction %d", name, sinceTxnId);
+        }
+
+        /**
+         * @return highest ID of the transactions which changes were fed to the processing.
+         */
+        public long getNextWatermark() {
+            return nextWatermark;
+        }
+
+        private class ChangedNodesWorkProvider extends AbstractCancellableWorkProvider<Object> {
+
+            private NodeRef root;
+            private int batchSize;
+            private NodeFilter filter;
+            /* Changes made by the job itself are not picked up by the job, only by the next one */
+            private long toCommitTime = System.currentTimeMillis();
+            private boolean started = false;
+            /* Transactions are read in pages by commit time, from either time or ID of the watermark */
+            private Long fromCommitTime = null;
+            private Long minTxnId = null;
+            /** Transactions read already which committed at fromCommitTime */
+            private Set<Long> boundaryTxns = new HashSet<>();
+            private Set<NodeRef> seenNodes = new HashSet<>();
+            private boolean noMoreTxns = false;
+            private Deque<NodeRef> changed = new ArrayDeque<>();
+            private Set<NodeRef> insideRoot = new HashSet<>();
+            private Set<NodeRef> outsideRoot = new HashSet<>();
+
+            private ChangedNodesWorkProvider(NodeRef root, int batchSize, NodeFilter filter) {
+                this.root = root;
+                this.batchSize = batchSize;
+                this.filter = filter;
+            }
+
+            @Override
+            public int getTotalEstimatedWorkSize() {
+                return -1;
+            }
+
+            @Override
+            protected boolean hasMoreWork() {
+                return !changed.isEmpty() || !noMoreTxns;
+            }
+
+            @Override
+            public Collection<Object> doGetNextWork() {
+                return converter.convert(pollBatch());
+            }
+
+            protected List<NodeRef> pollBatch() {
+                while (changed.isEmpty() && !noMoreTxns) {
+                    fetchNextTransactions();
+                }
+                List<NodeRef> batch = new ArrayList<>(batchSize);
+                while (!changed.isEmpty() && batch.size() < batchSize) {
+                    batch.add(changed.poll());
+                }
+                return batch;
+            }
+
+            private void fetchNextTransactions() {
+                sr.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<Void>() {
+                    @Override
+                    public Void execute() throws Throwable {
+                        if (!started) {
+                            started = true;
+                            startFromWatermark();
+                        }
+                        List<Transaction> txns = tracking.getTransactions(
+                                minTxnId, fromCommitTime, null, toCommitTime, TXNS_PAGE_SIZE);
+                        List<Long> txnIds = new ArrayList<>(txns.size());
+                        long maxTxnId = nextWatermark;
+                        long lastCommitTime = fromCommitTime == null ? 0 : fromCommitTime;
+                        for (Transaction txn : txns) {
+                            if (txn.getCommitTimeMs() > lastCommitTime) {
+                                lastCommitTime = txn.getCommitTimeMs();
+                                boundaryTxns.clear();
+                            }
+                            // The next page starts at the commit time of the last one, inclusive
+                            if (boundaryTxns.add(txn.getId())) {
+                                txnIds.add(txn.getId());
+                                maxTxnId = Math.max(maxTxnId, txn.getId());
+                            }
+                        }
+                        if (txns.size() < TXNS_PAGE_SIZE) {
+                            noMoreTxns = true;
+                        } else if (txnIds.isEmpty()) {
+                            // A whole page committed within the same millisecond was read already
+                            lastCommitTime++;
+                            boundaryTxns.clear();
+                        }
+                        fromCommitTime = lastCommitTime;
+                        if (txnIds.isEmpty()) {
+                            return null;
+                        }
+
+                        NodeParameters nodeParameters = new NodeParameters();
+                        nodeParameters.setTransactionIds(txnIds);
+                        nodeParameters.setStoreProtocol(root.getStoreRef().getProtocol());
+                        nodeParameters.setStoreIdentifier(root.getStoreRef().getIdentifier());
+                        final Set<NodeRef> nodes = new LinkedHashSet<>();
+                        tracking.getNodes(nodeParameters, new NodeQueryCallback() {
+                            @Override
+                            public boolean handleNode(Node node) {
+                                nodes.add(node.getNodeRef());
+                                return true;
+                            }
+                        });
+                        for (NodeRef node : nodes) {
+                            // Deleted nodes are also tracked, nodes changed again are processed once
+                            if (seenNodes.add(node) && ns.exists(node) && isUnderRoot(node) && filter.accept(node)) {
+                                changed.add(node);
+                            }
+                        }
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(String.format("%d transactions up to commit time %d changed %d nodes, " +
+                                    "%d of them in root", txnIds.size(), lastCommitTime, nodes.size(), changed.size()));
+                        }
+                        nextWatermark = maxTxnId;
+                        return null;
+                    }
+                }, true, false);
+            }
+
+            /**
+             * Reads transactions from the retention window before the commit of the watermark
+             * transaction. When it is not found, e.g. because old transactions were purged, only
+             * transactions with higher IDs are read.
+             */
+            private void startFromWatermark() {
+                if (sinceTxnId > 0) {
+                    List<Transaction> since = tracking.getTransactions(sinceTxnId, null, sinceTxnId + 1, null, 1);
+                    if (!since.isEmpty() && since.get(0).getId() == sinceTxnId) {
+                        fromCommitTime = since.get(0).getCommitTimeMs() - HOLE_RETENTION_MS;
+                        return;
+                    }
+                    logger.warn(String.format("Transaction %d is not found, changes are read from the next one " +
+                            "without retention", sinceTxnId));
+                }
+                minTxnId = sinceTxnId + 1;
+            }
+
+            private boolean isUnderRoot(NodeRef node) {
+                List<NodeRef> path = new ArrayList<>();
+                Boolean result = null;
+                NodeRef current = node;
+                while (result == null) {
+                    if (current == null) {
+                        result = false;
+                    } else if (current.equals(root) || insideRoot.contains(current)) {
+                        result = true;
+                    } else if (outsideRoot.contains(current)) {
+                        result = false;
+                    } else {
+                        path.add(current);
+                        ChildAssociationRef parent = ns.getPrimaryParent(current);
+                        current = parent == null ? null : parent.getParentRef();
+                    }
+                }
+                if (insideRoot.size() + outsideRoot.size() > ANCESTORS_CACHE_SIZE) {
+                    insideRoot.clear();
+                    outsideRoot.clear();
+                }
+                (result ? insideRoot : outsideRoot).addAll(path);
+                return result;
+            }
+        }
+
+        private class ChangedNodesInBatchesWorkProvider extends AbstractCancellableWorkProvider<List<Object>> {
+
+            private ChangedNodesWorkProvider changes;
+
+            private ChangedNodesInBatchesWorkProvider(NodeRef root, int batchSize, NodeFilter filter) {
+                this.changes = new ChangedNodesWorkProvider(root, batchSize, filter);
+            }
+
+            @Override
+            public int getTotalEstimatedWorkSize() {
+                return -1;
+            }
+
+            @Override
+            protected boolean hasMoreWork() {
+                return changes.hasMoreWork();
+            }
+
+            /** Returns just one batch wrapped in a collection */
+            @Override
+            public Collection<List<Object>> doGetNextWork() {
+                Collection<Object> batch = changes.doGetNextWork();
+                if (!batch.isEmpty()) {
+                    return Collections.singletonList((List<Object>) new ArrayList<>(batch));
+                } else {
+                    return Collections.emptyList();
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides nodes of a folder to delete in post-order: each node comes after all nodes below
+     * it, so that deleting a parent does not cascade into its whole sub-tree in one transaction.
+     * Only primary children are followed, as nodes linked into the folder as secondary children
+     * belong elsewhere. A batch with a folder is only given out once all batches with nodes below
+     * the folder are finished, so that the folder is not deleted while they still run.
+     */
+    public static class DeletingWorkProviderFactory implements NodeOrBatchWorkProviderFactory<NodeRef> {
+
+        private NodeService ns;
+        private Log logger;
+
+        public DeletingWorkProviderFactory(ServiceRegistry sr, Log logger) {
+            this.ns = sr.getNodeService();
+            this.logger = logger;
+        }
+
+        @Override
+        public CancellableWorkProvider<Object> newNodesWorkProvider(NodeRef root, BatchJobParameters job) {
+            return new PostOrderWorkProvider(root, job);
+        }
+
+        @Override
+        public CancellableWorkProvider<List<Object>> newBatchesWorkProvider(NodeRef root, BatchJobParameters job) {
+            return new PostOrderInBatchesWorkProvider(root, job);
+        }
+
+        @Override
+        public String describe(NodeRef nodeRef) {
+            String name = ns.exists(nodeRef) ?
+                    (String) ns.getProperty(nodeRef, ContentModel.PROP_NAME) :
+                    "deleted";
+            return String.format("folder %s to delete", name);
+        }
+
+        private class PostOrderWorkProvider extends AbstractCancellableWorkProvider<Object> {
+
+            /** Nodes to visit, a node stays under its children until they are all given out */
+            private Deque<Visit> stack = new ArrayDeque<>();
+            /** Number of batches given out so far, which is the number of the batch being filled */
+            private long batches = 0;
+            /** First batch which may hold nodes below a folder of the last batch, or -1 */
+            private long dependsFrom = -1;
+            private int batchSize;
+            private boolean keepRoot;
+            private NodeFilter filter;
+            private FolderTraversal traversal;
+            private VisitedNodes visitedNodes;
+
+            private PostOrderWorkProvider(NodeRef root, BatchJobParameters job) {
+                this.batchSize = job.getBatchSize();
+                this.keepRoot = ((BatchJobParameters.ProcessDeleteJobParameters) job).isKeepRoot();
+                this.filter = job.getFilter();
+                this.traversal = job.getTraversal();
+                this.visitedNodes = job.getVisitedNodes();
+                stack.push(new Visit(root, 0));
+            }
+
+            @Override
+            public int getTotalEstimatedWorkSize() {
+                return -1;
+            }
+
+            @Override
+            protected boolean hasMoreWork() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public Collection<Object> doGetNextWork() {
+                List<Object> nodes = new ArrayList<>(batchSize);
+                dependsFrom = -1;
+                while (nodes.size() < batchSize && !stack.isEmpty()) {
+                    Visit head = stack.peek();
+                    if (!head.expanded) {
+                        head.expanded = true;
+                        // Nodes below come in this batch or the batches after it
+                        head.firstBatch = batches;
+                        if (filter.canDescend(head.depth) && traversal.canDescend(head.depth) &&
+                                traversal.isContainer(head.node)) {
+                            if (logger.isTraceEnabled()) {
+                                logger.trace("fetching children of " + head.node);
+                            }
+                            for (ChildAssociationRef child : traversal.getChildren(head.node)) {
+                                if (child.isPrimary()) {
+                                    stack.push(new Visit(child.getChildRef(), head.depth + 1));
+                                }
+                            }
+                        }
+                        continue;
+                    }
+                    stack.pop();
+                    if ((head.depth > 0 || !keepRoot) && filter.accept(head.node) &&
+                            firstVisit(visitedNodes, head.node)) {
+                        nodes.add(head.node);
+                        if (head.firstBatch < batches && (dependsFrom < 0 || head.firstBatch < dependsFrom)) {
+                            dependsFrom = head.firstBatch;
+                        }
+                    }
+                }
+                if (!nodes.isEmpty()) {
+                    batches++;
+                }
+                return nodes;
+            }
+        }
+
+        private class PostOrderInBatchesWorkProvider extends AbstractCancellableWorkProvider<List<Object>> {
+
+            private PostOrderWorkProvider nodes;
+            /** Numbers of batches given out and not finished yet */
+            private TreeSet<Long> running = new TreeSet<>();
+            private boolean stopped = false;
+
+            private PostOrderInBatchesWorkProvider(NodeRef root, BatchJobParameters job) {
+                this.nodes = new PostOrderWorkProvider(root, job);
+            }
+
+            @Override
+            public int getTotalEstimatedWorkSize() {
+                return -1;
+            }
+
+            @Override
+            protected boolean hasMoreWork() {
+                return nodes.hasMoreWork();
+            }
+
+            @Override
+            public synchronized boolean cancel() {
+                stopped = true;
+                notifyAll();
+                return super.cancel();
+            }
+
+            /**
+             * Returns just one batch wrapped in a collection, waiting while batches with nodes
+             * below its folders still run.
+             */
+            @Override
+            public Collection<List<Object>> doGetNextWork() {
+                Collection<Object> items = nodes.doGetNextWork();
+                if (items.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                long number = nodes.batches - 1;
+                long dependsFrom = nodes.dependsFrom;
+                try {
+                    while (!stopped && dependsFrom >= 0 && running.ceiling(dependsFrom) != null) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace(String.format("batch %d waits for batch %d below its folders",
+                                    number, running.ceiling(dependsFrom)));
+                        }
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Collections.emptyList();
+                }
+                if (stopped) {
+                    return Collections.emptyList();
+                }
+                DeleteBatch batch = new DeleteBatch(this, number);
+                batch.addAll(items);
+                running.add(number);
+                return Collections.singletonList((List<Object>) batch);
+            }
+
+            private synchronized void finished(long number) {
+                running.remove(number);
+                notifyAll();
+            }
+        }
+
+        /** Batch of nodes to delete, which folders given out later may wait for */
+        private static class DeleteBatch extends TrackedBatch {
+
+            private final PostOrderInBatchesWorkProvider provider;
+            private final long number;
+
+            private DeleteBatch(PostOrderInBatchesWorkProvider provider, long number) {
+                this.provider = provider;
+                this.number = number;
+            }
+
+            @Override
+            public void done() {
+                provider.finished(number);
+            }
+        }
+
+        private static class Visit {
+            private final NodeRef node;
+            private final int depth;
+            private boolean expanded = false;
+            private long firstBatch;
+
+            private Visit(NodeRef node, int depth) {
+                this.node = node;
+                this.depth = depth;
+            }
+        }
+    }
+
+    /**
+     * Batch whose provider holds back other work until it is finished. The worker tells it is done
+     * once its transaction is finished, including retries, whether it was committed or not.
+     */
+    public abstract static class TrackedBatch extends ArrayList<Object> {
+
+        protected TrackedBatch() {
+        }
+
+        protected TrackedBatch(int batchSize) {
+            super(batchSize);
+        }
+
+        public abstract void done();
+    }
+
+    /**
+     * Batch of items whose partition keys are not in any other batch being processed. Its keys
+     * stay busy until the batch is done.
+     */
+    public static class PartitionBatch extends TrackedBatch {
+
+        private final PartitioningWorkProvider provider;
+        private final Set<Object> keys = new HashSet<>();
+
+        private PartitionBatch(PartitioningWorkProvider provider, int batchSize) {
+            super(batchSize);
+            this.provider = provider;
+        }
+
+        /**
+         * Frees the keys of the batch, so that the next items with them can be given out.
+         */
+        @Override
+        public void done() {
+            provider.release(this);
+        }
+    }
+
+    /**
+     * Gives batches of items of another provider such that items with the same partition key
+     * are never in two batches being processed at the same time. A batch is only given out when
+     * none of its keys is busy, and its keys are freed when the batch is done, so workers never
+     * wait for each other inside open transactions. Items of busy keys are held back, reading
+     * ahead of the source up to a limit; once it is reached the provider waits for a batch to be
+     * done. Items with the same key keep their order.
+     */
+    public static class PartitioningWorkProvider extends AbstractCancellableWorkProvider<List<Object>> {
+
+        private static final Object NULL_KEY = new Object();
+        /** Batches worth of items read ahead per thread while their keys are busy */
+        private static final int READ_AHEAD_BATCHES = 4;
+
+        private CancellableWorkProvider<Object> source;
+        private Partitioning partitioning;
+        private Scriptable scope;
+        private Log logger;
+        private int batchSize;
+        private int maxPending;
+        /** Items not given out yet by their key, in the order the keys were first seen */
+        private Map<Object, Deque<Object>> pending = new LinkedHashMap<>();
+        private int pendingCount = 0;
+        /** Number of pending items whose keys are not busy */
+        private int freeCount = 0;
+        private Set<Object> busyKeys = new HashSet<>();
+        private boolean sourceFinished = false;
+        private boolean stopped = false;
+
+        /**
+         * @param threads number of threads processing the batches, to limit the items read ahead.
+         */
+        public PartitioningWorkProvider(CancellableWorkProvider<Object> source, Partitioning partitioning,
+                                        int threads, int batchSize, Scriptable scope, Log logger) {
+            this.source = source;
+            this.partitioning = partitioning;
+            this.batchSize = batchSize;
+            this.maxPending = batchSize * threads * READ_AHEAD_BATCHES;
+            this.scope = scope;
+            this.logger = logger;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            int items = source.getTotalEstimatedWorkSize();
+            return items < 0 ? -1 : new Double(Math.ceil(1.0d * items / batchSize)).intValue();
+        }
+
+        @Override
+        protected boolean hasMoreWork() {
+            return !sourceFinished || pendingCount > 0;
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            stopped = true;
+            notifyAll();
+            source.cancel();
+            return super.cancel();
+        }
+
+        /** Returns just one batch wrapped in a collection, waiting while all pending keys are busy */
+        @Override
+        protected Collection<List<Object>> doGetNextWork() {
+            while (!stopped) {
+                while (!sourceFinished && freeCount < batchSize && pendingCount < maxPending) {
+                    Collection<Object> items = source.getNextWork();
+                    if (items.isEmpty()) {
+                        sourceFinished = true;
+                    }
+                    for (Object item : items) {
+                        add(item);
+                    }
+                }
+                if (freeCount > 0) {
+                    return Collections.singletonList((List<Object>) takeBatch());
+                }
+                if (pendingCount == 0) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        private void add(Object item) {
+            Object key = partitioning.keyOf(item, scope);
+            if (key == null) {
+                key = NULL_KEY;
+            }
+            Deque<Object> items = pending.get(key);
+            if (items == null) {
+                items = new ArrayDeque<>();
+                pending.put(key, items);
+            }
+            items.add(item);
+            pendingCount++;
+            if (!busyKeys.contains(key)) {
+                freeCount++;
+            }
+        }
+
+        private PartitionBatch takeBatch() {
+            PartitionBatch batch = new PartitionBatch(this, batchSize);
+            Iterator<Map.Entry<Object, Deque<Object>>> it = pending.entrySet().iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                Map.Entry<Object, Deque<Object>> entry = it.next();
+                if (busyKeys.contains(entry.getKey())) {
+                    continue;
+                }
+                Deque<Object> items = entry.getValue();
+                while (!items.isEmpty() && batch.size() < batchSize) {
+                    batch.add(items.poll());
+                }
+                if (items.isEmpty()) {
+                    it.remove();
+                }
+                batch.keys.add(entry.getKey());
+            }
+            pendingCount -= batch.size();
+            freeCount -= batch.size();
+            for (Object key : batch.keys) {
+                busyKeys.add(key);
+                Deque<Object> left = pending.get(key);
+                if (left != null) {
+                    freeCount -= left.size();
+                }
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("giving batch of %d items of %d keys, %d items pending",
+                        batch.size(), batch.keys.size(), pendingCount));
+            }
+            return batch;
+        }
+
+        private synchronized void release(PartitionBatch batch) {
+            for (Object key : batch.keys) {
+                if (busyKeys.remove(key)) {
+                    Deque<Object> left = pending.get(key);
+                    if (left != null) {
+                        freeCount += left.size();
+                    }
+                }
+            }
+            batch.keys.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gives items emitted by the processing functions of the job before the work of another
+     * provider, so that work found while processing is done as soon as possible. Without a source
+     * gives only the emitted items, to process the ones emitted by the last batches of the job.
+     */
+    public static class EmittingWorkProvider<T> extends AbstractCancellableWorkProvider<T> {
+
+        private CancellableWorkProvider<T> source;
+        private EmittedWork emitted;
+        private int batchSize;
+        private boolean inBatches;
+        private boolean sourceFinished;
+
+        /**
+         * @param source provider of the job work, or null.
+         * @param inBatches true if the source gives batches, false if it gives items.
+         */
+        public EmittingWorkProvider(CancellableWorkProvider<T> source, EmittedWork emitted,
+                                    int batchSize, boolean inBatches) {
+            this.source = source;
+            this.emitted = emitted;
+            this.batchSize = batchSize;
+            this.inBatches = inBatches;
+            this.sourceFinished = source == null;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            return source == null ? -1 : source.getTotalEstimatedWorkSize();
+        }
+
+        @Override
+        protected boolean hasMoreWork() {
+            return !sourceFinished || !emitted.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (source != null) {
+                source.cancel();
+            }
+            return super.cancel();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Collection<T> doGetNextWork() {
+            List<Object> items = emitted.steal(batchSize);
+            if (items.isEmpty() && !sourceFinished) {
+                Collection<T> work = source.getNextWork();
+                if (!work.isEmpty()) {
+                    return work;
+                }
+                sourceFinished = true;
+                // Items may have been emitted while the source was read
+                items = emitted.steal(batchSize);
+            }
+            if (items.isEmpty()) {
+                return Collections.emptyList();
+            }
+            return inBatches ? Collections.singletonList((T) items) : (Collection<T>) items;
+        }
+    }
+
+    /**
+     * Pauses feeding work from another provider while the job's {@link HeapMonitor} reports the
+     * heap as nearly full, and stops reading content ahead in the meantime.
+     */
+    public static class ThrottlingWorkProvider<T> implements CancellableWorkProvider<T> {
+
+        private static final long CHECK_MS = 200;
+
+        private CancellableWorkProvider<T> source;
+        private HeapMonitor monitor;
+        private ContentPrefetcher prefetcher;
+        private JobStats stats;
+        private String jobName;
+        private Log logger;
+        private volatile boolean canceled = false;
+
+        /**
+         * @param prefetcher reader of content of the job, or null.
+         */
+        public ThrottlingWorkProvider(CancellableWorkProvider<T> source, HeapMonitor monitor,
+                                      ContentPrefetcher prefetcher, JobStats stats, String jobName, Log logger) {
+            this.source = source;
+            this.monitor = monitor;
+            this.prefetcher = prefetcher;
+            this.stats = stats;
+            this.jobName = jobName;
+            this.logger = logger;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            return source.getTotalEstimatedWorkSize();
+        }
+
+        @Override
+        public Collection<T> getNextWork() {
+            if (monitor.isUnderPressure() && !canceled) {
+                waitForHeap();
+            }
+            return source.getNextWork();
+        }
+
+        private void waitForHeap() {
+            long started = System.currentTimeMillis();
+            logger.warn(String.format("Job '%s' pauses feeding work, %.0f%% of the old generation is used " +
+                    "after collection", jobName, monitor.getUsage() * 100));
+            if (prefetcher != null) {
+                prefetcher.setPaused(true);
+            }
+            try {
+                while (!canceled && !monitor.isRelieved() &&
+                        System.currentTimeMillis() - started < HeapMonitor.MAX_PAUSE_MS) {
+                    Thread.sleep(CHECK_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (prefetcher != null) {
+                    prefetcher.setPaused(false);
+                }
+                long paused = System.currentTimeMillis() - started;
+                stats.throttled(paused);
+                logger.info(String.format("Job '%s' resumes feeding work after %d ms", jobName, paused));
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            canceled = true;
+            return source.cancel();
+        }
+    }
+
+    /**
+     * Gives out the values passed to a {@link Stage} by the stage before it, until that stage
+     * has finished and all its values are given out.
+     */
+    public static class StageWorkProvider implements CancellableWorkProvider<Object> {
+
+        private Stage stage;
+
+        public StageWorkProvider(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            return -1;
+        }
+
+        @Override
+        public Collection<Object> getNextWork() {
+            try {
+                return stage.take(stage.getBatchSize());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            return stage.cancel();
+        }
+    }
+
+    /**
+     * Gives out only the entries of another provider chosen by the job's {@link Sampler},
+     * reading through all the others so that the size of the whole job is known.
+     */
+    public static class SamplingWorkProvider<T> implements CancellableWorkProvider<T> {
+
+        private CancellableWorkProvider<T> source;
+        private Sampler sampler;
+
+        public SamplingWorkProvider(CancellableWorkProvider<T> source, Sampler sampler) {
+            this.source = source;
+            this.sampler = sampler;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            int total = source.getTotalEstimatedWorkSize();
+            return total < 0 ? total : (int) Math.ceil(total * sampler.getFraction());
+        }
+
+        @Override
+        public Collection<T> getNextWork() {
+            // An empty collection would end the job, so work is read until some of it is chosen
+            while (true) {
+                Collection<T> work = source.getNextWork();
+                if (work.isEmpty()) {
+                    return work;
+                }
+                List<T> chosen = new ArrayList<>();
+                for (T entry : work) {
+                    if (sampler.select(entry)) {
+                        chosen.add(entry);
+                    }
+                }
+                if (!chosen.isEmpty()) {
+                    return chosen;
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            return source.cancel();
+        }
+    }
+
+    /**
+     * Starts reading content of the nodes given by another provider as soon as their
+     * batch is handed out, so that it is in memory by the time the batch is processed.
+     */
+    public static class PrefetchingWorkProvider<T> implements CancellableWorkProvider<T> {
+
+        private CancellableWorkProvider<T> source;
+        private ContentPrefetcher prefetcher;
+
+        public PrefetchingWorkProvider(CancellableWorkProvider<T> source, ContentPrefetcher prefetcher) {
+            this.source = source;
+            this.prefetcher = prefetcher;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            return source.getTotalEstimatedWorkSize();
+        }
+
+        @Override
+        public Collection<T> getNextWork() {
+            Collection<T> work = source.getNextWork();
+            for (T entry : work) {
+                for (Object item : entry instanceof List ? (List<?>) entry : Collections.singletonList(entry)) {
+                    NodeRef node = toNodeRef(item);
+                    if (node != null) {
+                        prefetcher.prefetch(node);
+                    }
+                }
+            }
+            return work;
+        }
+
+        @Override
+        public boolean cancel() {
+            return source.cancel();
+        }
+    }
+
+    /**
+     * Registers the work given by another provider with the job's {@link Checkpointer},
+     * so that positions of the provider are saved once the work before them is done.
+     */
+    public static class CheckpointingWorkProvider<T> implements CancellableWorkProvider<T> {
+
+        private CancellableWorkProvider<T> source;
+        private Checkpointer checkpointer;
+
+        public CheckpointingWorkProvider(CancellableWorkProvider<T> source, Checkpointer checkpointer) {
+            if (!(source instanceof Checkpointable)) {
+                throw new IllegalArgumentException("checkpoints are not supported by " +
+                        source.getClass().getSimpleName());
+            }
+            this.source = source;
+            this.checkpointer = checkpointer;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            return source.getTotalEstimatedWorkSize();
+        }
+
+        @Override
+        public Collection<T> getNextWork() {
+            Collection<T> work = source.getNextWork();
+            checkpointer.givenOut(work, (Checkpointable) source);
+            return work;
+        }
+
+        @Override
+        public boolean cancel() {
+            return source.cancel();
+        }
+    }
+}
@@ -1,14 +1,29 @@
 package nl.ciber.alfresco.repo.jscript.batchexecuter;
 
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.TrackedBatch;
+import org.alfresco.model.ContentModel;
 import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.jscript.BaseScopableProcessorExtension;
 import org.alfresco.repo.jscript.ScriptNode;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.rule.RuleService;
+import org.alfresco.service.namespace.QName;
 import org.apache.commons.logging.Log;
 import org.mozilla.javascript.*;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Container class for all worker implementations used by
@@ -33,57 +48,336 @@ public class Workers {
     private abstract static class BaseProcessWorker<T> extends BatchProcessor.BatchProcessWorkerAdaptor<T>
                                                         implements CancellableWorker<T> {
 
+        private static final String KEY_BEHAVIOURS_DISABLED = BaseProcessWorker.class.getName() +
+                ".behavioursDisabled";
+        private static final String KEY_ATTEMPT_COUNTED = BaseProcessWorker.class.getName() +
+                ".attemptCounted";
+
         protected Scriptable scope;
         private String userName;
         private boolean disableRules;
         private RuleService ruleService;
+        private List<QName> disableBehaviours = new ArrayList<>();
+        private BehaviourFilter behaviourFilter;
         protected Log logger;
         private BaseScopableProcessorExtension scopable;
         private boolean canceled;
+        /** Batch of the current thread which its provider needs to know is finished */
+        private ThreadLocal<TrackedBatch> trackedBatch = new ThreadLocal<>();
+        /** Number of transactions started for the batch of the current thread */
+        private ThreadLocal<Integer> attempts = new ThreadLocal<>();
+        /** Number of items given to the last transaction of the batch of the current thread */
+        private ThreadLocal<Integer> attemptItems = new ThreadLocal<>();
+        private JobStats stats;
+        private BatchJobParameters job;
+        private ContentPrefetcher prefetcher;
+        /** Nodes of the batch of the current thread, to free their prefetched content */
+        private ThreadLocal<List<NodeRef>> batchNodes = new ThreadLocal<>();
+        private Checkpointer checkpointer;
+        private ItemProfiler profiler;
+        private ErrorBreaker errorBreaker;
+        private Sampler sampler;
+        /** Whether the last transaction of the batch of the current thread was committed */
+        private ThreadLocal<Boolean> committed = new ThreadLocal<>();
+        private TransactionListenerAdapter outcomeListener = new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                committed.set(Boolean.TRUE);
+            }
+
+            @Override
+            public void afterRollback() {
+                committed.set(Boolean.FALSE);
+            }
+        };
+        /** Entries of the batch of the current thread which were processed, for checkpoints */
+        private ThreadLocal<Set<Object>> processedEntries = new ThreadLocal<>();
+        private ClusterLeases leases;
+        /** Entries of the batch of the current thread, to finish the cluster leases they were given out under */
+        private ThreadLocal<Set<Object>> leasedEntries = new ThreadLocal<>();
 
         protected Function processFunction;
 
-        private BaseProcessWorker(Function processFunction, Scriptable scope,
-                                  String userName, boolean disableRules,
-                                  RuleService ruleService, Log logger,
-                                  BaseScopableProcessorExtension scopable) {
+        private BaseProcessWorker(Function processFunction, Scriptable scope, String userName,
+                                  BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                                  Log logger, BaseScopableProcessorExtension scopable) {
             this.processFunction = processFunction;
             this.scope = scope;
             this.userName = userName;
-            this.disableRules = disableRules;
-            this.ruleService = ruleService;
+            this.disableRules = job.getDisableRules();
+            this.ruleService = sr.getRuleService();
+            for (String className : job.getDisableBehaviours()) {
+                disableBehaviours.add(QName.resolveToQName(sr.getNamespaceService(), className));
+            }
+            this.behaviourFilter = behaviourFilter;
             this.logger = logger;
             this.scopable = scopable;
+            this.stats = job.getStats();
+            this.job = job;
+            this.prefetcher = job.getContentPrefetcher();
+            this.checkpointer = job.getCheckpointer();
+            this.leases = job.getClusterLeases();
+            this.profiler = job.getProfiler();
+            this.errorBreaker = job.getErrorBreaker();
+            this.sampler = job.getSampler();
         }
 
         @Override
         public void beforeProcess() throws Throwable {
-            if (logger.isTraceEnabled()) {
-                logger.trace("beforeProcess: entering context");
+            // Java processors run without JavaScript context
+            if (processFunction != null) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("beforeProcess: entering context");
+                }
+                Context.enter();
+                scopable.setScope(scope);
             }
-            Context.enter();
-            scopable.setScope(scope);
+            ScriptBatchExecuter.setCurrentJob(job);
             AuthenticationUtil.setRunAsUser(userName);
             if (disableRules) {
                 ruleService.disableRules();
             }
+            attempts.set(0);
+            attemptItems.set(0);
+            if (sampler != null) {
+                sampler.batchStarted();
+            }
         }
 
         @Override
         public void afterProcess() throws Throwable {
-            if (logger.isTraceEnabled()) {
-                logger.trace("afterProcess: exiting context");
+            if (processFunction != null) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("afterProcess: exiting context");
+                }
+                Context.exit();
             }
-            Context.exit();
+            ScriptBatchExecuter.setCurrentJob(null);
             if (disableRules) {
                 ruleService.enableRules();
             }
+            List<NodeRef> nodes = batchNodes.get();
+            if (nodes != null) {
+                batchNodes.remove();
+                prefetcher.discard(nodes);
+            }
+            Integer batchAttempts = attempts.get();
+            Integer batchItems = attemptItems.get();
+            int retries = batchAttempts == null ? 0 : Math.max(0, batchAttempts - 1);
+            attempts.remove();
+            attemptItems.remove();
+            stats.batchDone(batchItems == null ? 0 : batchItems, retries);
+            if (retries > 0 && logger.isDebugEnabled()) {
+                logger.debug(String.format("batch done after %d retries", retries));
+            }
+            Boolean batchCommitted = committed.get();
+            committed.remove();
+            boolean batchFailed = !Boolean.TRUE.equals(batchCommitted);
+            if (sampler != null) {
+                // Sample transactions are always rolled back, they only fail when processing fails
+                batchFailed = sampler.batchDone(batchItems == null ? 0 : batchItems, retries);
+            }
+            if (errorBreaker != null && batchAttempts != null && batchAttempts > 0) {
+                tripBreaker(batchFailed);
+            }
+            Set<Object> processed = processedEntries.get();
+            if (processed != null) {
+                processedEntries.remove();
+                // Entries of a failed batch stay pending, so no checkpoint is saved past them
+                if (Boolean.TRUE.equals(batchCommitted)) {
+                    checkpointer.done(processed);
+                }
+            }
+            Set<Object> leased = leasedEntries.get();
+            if (leased != null) {
+                leasedEntries.remove();
+                // Leases of a failed batch are released, so that another member processes their parts
+                leases.finished(leased, Boolean.TRUE.equals(batchCommitted));
+            }
+            TrackedBatch batch = trackedBatch.get();
+            if (batch != null) {
+                trackedBatch.remove();
+                batch.done();
+            }
         }
 
         @Override
         public final void process(T entry) throws Throwable {
+            recordTrackedBatch(entry);
+            recordLeased(entry);
             if (!canceled) {
+                countAttempt(entry);
+                recordNodes(entry);
+                recordProcessed(entry);
+                disableBehaviours();
+                if (sampler == null) {
+                    profiledProcess(entry);
+                } else {
+                    sampledProcess(entry);
+                }
+            }
+        }
+
+        private void profiledProcess(T entry) throws Throwable {
+            if (profiler == null) {
                 doProcess(entry);
+            } else {
+                ItemProfiler.Call call = profiler.started(entry);
+                try {
+                    doProcess(entry);
+                } finally {
+                    profiler.finished(call);
+                }
+            }
+        }
+
+        /**
+         * Measures processing by a sample run, and marks the transaction to be rolled back
+         * instead of committed, so that nothing done by the sample is kept.
+         */
+        private void sampledProcess(T entry) throws Throwable {
+            long started = System.nanoTime();
+            boolean failed = true;
+            try {
+                profiledProcess(entry);
+                failed = false;
+            } finally {
+                sampler.processed(System.nanoTime() - started, failed);
+            }
+            RetryingTransactionHelper.getActiveUserTransaction().setRollbackOnly();
+        }
+
+        /**
+         * Process is called for each entry of a batch, and again for all of them when
+         * the batch transaction is retried, so attempts are counted once per transaction.
+         */
+        private void countAttempt(T entry) {
+            if (AlfrescoTransactionSupport.getResource(KEY_ATTEMPT_COUNTED) == null) {
+                AlfrescoTransactionSupport.bindResource(KEY_ATTEMPT_COUNTED, Boolean.TRUE);
+                if (errorBreaker != null || checkpointer != null || leases != null) {
+                    AlfrescoTransactionSupport.bindListener(outcomeListener);
+                }
+                if (sampler != null) {
+                    sampler.attemptStarted();
+                }
+                attempts.set(attempts.get() + 1);
+                attemptItems.set(0);
+            }
+            attemptItems.set(attemptItems.get() + (entry instanceof List ? ((List) entry).size() : 1));
+        }
+
+        private void recordNodes(T entry) {
+            if (prefetcher == null) {
+                return;
+            }
+            List<NodeRef> nodes = batchNodes.get();
+            if (nodes == null) {
+                nodes = new ArrayList<>();
+                batchNodes.set(nodes);
+            }
+            for (Object item : entry instanceof List ? (List<?>) entry : Collections.singletonList(entry)) {
+                NodeRef node = WorkProviders.toNodeRef(item);
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+        }
+
+        /**
+         * Batches skipped after the job was canceled have no attempts and are not counted.
+         */
+        private void tripBreaker(boolean failed) {
+            String reason = errorBreaker.batchDone(failed);
+            if (reason != null && ScriptBatchExecuter.cancel(job.getId())) {
+                job.setStatusMessage("canceled by error breaker: " + reason);
+                logger.error(String.format("Job '%s' is canceled as %s", job.getName(), reason));
+            }
+        }
+
+        /**
+         * Entries skipped after the job was canceled are not recorded, so that
+         * checkpoints do not go past them.
+         */
+        private void recordProcessed(T entry) {
+            if (checkpointer == null) {
+                return;
+            }
+            Set<Object> processed = processedEntries.get();
+            if (processed == null) {
+                processed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                processedEntries.set(processed);
+            }
+            processed.add(entry);
+        }
+
+        /**
+         * Entries skipped after the job was canceled are recorded too, and as they are not
+         * committed their leases are released for other cluster members.
+         */
+        private void recordLeased(T entry) {
+            if (leases == null) {
+                return;
+            }
+            Set<Object> leased = leasedEntries.get();
+            if (leased == null) {
+                leased = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                leasedEntries.set(leased);
+            }
+            leased.add(entry);
+        }
+
+        /**
+         * @return parameters to call node function with: the item, and its content when prefetched.
+         */
+        protected Object[] nodeFunctionArgs(Object item) throws IOException {
+            NodeRef node = prefetcher == null ? null : WorkProviders.toNodeRef(item);
+            if (node == null) {
+                return new Object[]{item};
+            }
+            return new Object[]{item, Context.javaToJS(prefetcher.take(node), scope)};
+        }
+
+        /**
+         * @return node reference of an item given to a Java processor.
+         * @throws IllegalArgumentException if the item is not a node.
+         */
+        protected NodeRef toNodeRef(Object item) {
+            NodeRef node = WorkProviders.toNodeRef(item);
+            if (node == null && item instanceof CharSequence && NodeRef.isNodeRef(item.toString())) {
+                node = new NodeRef(item.toString());
+            }
+            if (node == null) {
+                throw new IllegalArgumentException("Java processors can only process nodes, but item is: " + item);
+            }
+            return node;
+        }
+
+        /**
+         * A tracked batch, e.g. with busy partition keys, is done once its transaction is finished,
+         * including its retries, so that the work waiting for it sees all changes of the batch.
+         * Skipped batches of a canceled job are recorded too, so that their work is freed.
+         */
+        private void recordTrackedBatch(T entry) {
+            if (entry instanceof TrackedBatch) {
+                trackedBatch.set((TrackedBatch) entry);
+            }
+        }
+
+        /**
+         * Behaviour filter state is bound to the transaction, so behaviours can only be disabled
+         * once the batch transaction has started, and they are enabled back when it is finished,
+         * whether committed or rolled back for a retry.
+         */
+        private void disableBehaviours() {
+            if (!disableBehaviours.isEmpty() &&
+                    AlfrescoTransactionSupport.getResource(KEY_BEHAVIOURS_DISABLED) == null) {
+                for (QName className : disableBehaviours) {
+                    behaviourFilter.disableBehaviour(className);
+                }
+                AlfrescoTransactionSupport.bindResource(KEY_BEHAVIOURS_DISABLED, Boolean.TRUE);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("disabled behaviours " + disableBehaviours);
+                }
             }
         }
 
@@ -100,15 +394,15 @@ public class Workers {
 
     public static class ProcessNodeWorker extends BaseProcessWorker<Object> {
         public ProcessNodeWorker(Function processFunction, Scriptable scope, String userName,
-                                  boolean disableRules, RuleService ruleService, Log logger,
-                                  BaseScopableProcessorExtension scopable) {
-            super(processFunction, scope, userName, disableRules, ruleService, logger, scopable);
+                                 BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                                 Log logger, BaseScopableProcessorExtension scopable) {
+            super(processFunction, scope, userName, job, sr, behaviourFilter, logger, scopable);
         }
 
         @Override
         protected void doProcess(Object entry) throws Throwable {
             Object result = processFunction.call(Context.getCurrentContext(),
-                    scope, scope, new Object[]{entry});
+                    scope, scope, nodeFunctionArgs(entry));
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("call on %s %s", entry, result == null ? "skipped" : "done"));
             }
@@ -120,17 +414,139 @@ public class Workers {
                 Object o = ((NativeJavaObject) entry).unwrap();
                 if (o instanceof ScriptNode) {
                     return String.format("%s (%s)", ((ScriptNode) o).getName(), ((ScriptNode) o).getNodeRef());
+                } else if (o instanceof ProjectedNode) {
+                    return ((ProjectedNode) o).getNodeRef().toString();
                 }
             }
             return super.getIdentifier(entry);
         }
     }
 
+    /**
+     * Calls the function of a {@link Stage} on each item, and gives the values it returns to the
+     * next stage once the batch is done, so that values of rolled back transactions are not passed.
+     */
+    public static class StageWorker extends ProcessNodeWorker {
+
+        private static final String KEY_OUTPUT = StageWorker.class.getName() + ".output";
+
+        private Stage stage;
+        /** Values returned in the last transaction of the batch of the current thread, if it succeeded */
+        private ThreadLocal<List<Object>> results = new ThreadLocal<>();
+
+        public StageWorker(Stage stage, Scriptable scope, String userName,
+                           BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                           Log logger, BaseScopableProcessorExtension scopable) {
+            super(stage.getOnNode(), scope, userName, job, sr, behaviourFilter, logger, scopable);
+            this.stage = stage;
+            stage.setWorker(this);
+        }
+
+        @Override
+        protected void doProcess(Object entry) throws Throwable {
+            StageOutput output = (StageOutput) AlfrescoTransactionSupport.getResource(KEY_OUTPUT);
+            if (output == null) {
+                output = new StageOutput();
+                AlfrescoTransactionSupport.bindResource(KEY_OUTPUT, output);
+                AlfrescoTransactionSupport.bindListener(output);
+            }
+            Object result;
+            try {
+                result = processFunction.call(Context.getCurrentContext(), scope, scope, nodeFunctionArgs(entry));
+            } catch (Throwable e) {
+                output.failed = true;
+                throw e;
+            }
+            if (stage.getNext() != null && result != null && !(result instanceof Undefined)) {
+                output.values.add(result);
+            }
+            if (stage.isReadOnly()) {
+                RetryingTransactionHelper.getActiveUserTransaction().setRollbackOnly();
+            }
+        }
+
+        @Override
+        public void afterProcess() throws Throwable {
+            List<Object> values = results.get();
+            results.remove();
+            super.afterProcess();
+            // Outside of the transaction, as the next stage may keep this thread waiting
+            if (values != null) {
+                for (Object value : values) {
+                    if (!stage.getNext().give(value)) {
+                        break;
+                    }
+                    stage.passed();
+                }
+            }
+        }
+
+        /** Values returned in one transaction, kept once it is done */
+        private class StageOutput extends TransactionListenerAdapter {
+            private List<Object> values = new ArrayList<>();
+            private boolean failed = false;
+
+            @Override
+            public void afterCommit() {
+                results.set(values);
+            }
+
+            @Override
+            public void afterRollback() {
+                // Transactions of read-only stages are rolled back on purpose
+                if (stage.isReadOnly() && !failed) {
+                    results.set(values);
+                } else {
+                    results.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls node function on each item of a batch given by
+     * {@link nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.PartitioningWorkProvider},
+     * or of a batch of a job with a {@link BatchLoader}, after loading values for all the items.
+     */
+    public static class ProcessNodeListWorker extends BaseProcessWorker<List<Object>> {
+
+        private BatchLoader loader;
+
+        public ProcessNodeListWorker(Function processFunction, Scriptable scope, String userName,
+                                     BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                                     Log logger, BaseScopableProcessorExtension scopable) {
+            super(processFunction, scope, userName, job, sr, behaviourFilter, logger, scopable);
+            this.loader = job.getLoader();
+        }
+
+        @Override
+        protected void doProcess(List<Object> entry) throws Throwable {
+            if (loader != null) {
+                // Again on each attempt, values of a rolled back transaction may be stale
+                loader.prepare(entry, scope);
+            }
+            for (Object item : entry) {
+                processFunction.call(Context.getCurrentContext(), scope, scope, nodeFunctionArgs(item));
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("call on %d items of a batch done", entry.size()));
+            }
+        }
+
+        @Override
+        public void afterProcess() throws Throwable {
+            if (loader != null) {
+                loader.clear();
+            }
+            super.afterProcess();
+        }
+    }
+
     public static class ProcessBatchWorker extends BaseProcessWorker<List<Object>> {
         public ProcessBatchWorker(Function processFunction, Scriptable scope, String userName,
-                                   boolean disableRules, RuleService ruleService, Log logger,
-                                   BaseScopableProcessorExtension scopable) {
-            super(processFunction, scope, userName, disableRules, ruleService, logger, scopable);
+                                  BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                                  Log logger, BaseScopableProcessorExtension scopable) {
+            super(processFunction, scope, userName, job, sr, behaviourFilter, logger, scopable);
         }
 
         @Override
@@ -145,5 +561,120 @@ public class Workers {
         }
     }
 
-}
+    /**
+     * Deletes each node given by
+     * {@link nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.DeletingWorkProviderFactory},
+     * all nodes of a batch in its one transaction.
+     */
+    public static class DeleteNodeWorker extends BaseProcessWorker<List<Object>> {
+
+        private static final String KEY_ALL_BEHAVIOURS_DISABLED = DeleteNodeWorker.class.getName() +
+                ".allBehavioursDisabled";
+
+        private NodeService ns;
+        private BehaviourFilter behaviourFilter;
+        private boolean archive;
+        private boolean runBehaviours;
+
+        public DeleteNodeWorker(String userName, BatchJobParameters.ProcessDeleteJobParameters job,
+                                ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                                Log logger, BaseScopableProcessorExtension scopable) {
+            super(null, null, userName, job, sr, behaviourFilter, logger, scopable);
+            this.ns = sr.getNodeService();
+            this.behaviourFilter = behaviourFilter;
+            this.archive = job.isArchive();
+            this.runBehaviours = job.isRunBehaviours();
+        }
 
+        @Override
+        protected void doProcess(List<Object> entry) throws Throwable {
+            if (!runBehaviours && AlfrescoTransactionSupport.getResource(KEY_ALL_BEHAVIOURS_DISABLED) == null) {
+                behaviourFilter.disableBehaviour();
+                AlfrescoTransactionSupport.bindResource(KEY_ALL_BEHAVIOURS_DISABLED, Boolean.TRUE);
+            }
+            for (Object item : entry) {
+                NodeRef node = toNodeRef(item);
+                // The node may have been deleted by someone else in the meantime
+                if (!ns.exists(node)) {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace(node + " is already deleted");
+                    }
+                    continue;
+                }
+                if (!archive) {
+                    // Temporary nodes are deleted for good instead of being moved to the archive store
+                    ns.addAspect(node, ContentModel.ASPECT_TEMPORARY, null);
+                }
+                ns.deleteNode(node);
+            }
+        }
+    }
+
+    /**
+     * Calls a Java {@link Processors.NodeProcessor} bean on each node.
+     */
+    public static class JavaNodeWorker extends BaseProcessWorker<Object> {
+
+        private Processors.NodeProcessor processor;
+
+        public JavaNodeWorker(Processors.NodeProcessor processor, String userName,
+                              BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                              Log logger, BaseScopableProcessorExtension scopable) {
+            super(null, null, userName, job, sr, behaviourFilter, logger, scopable);
+            this.processor = processor;
+        }
+
+        @Override
+        protected void doProcess(Object entry) throws Throwable {
+            processor.process(toNodeRef(entry));
+        }
+    }
+
+    /**
+     * Calls a Java {@link Processors.NodeProcessor} bean on each node of a batch given by
+     * {@link nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.PartitioningWorkProvider}.
+     */
+    public static class JavaNodeListWorker extends BaseProcessWorker<List<Object>> {
+
+        private Processors.NodeProcessor processor;
+
+        public JavaNodeListWorker(Processors.NodeProcessor processor, String userName,
+                                  BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                                  Log logger, BaseScopableProcessorExtension scopable) {
+            super(null, null, userName, job, sr, behaviourFilter, logger, scopable);
+            this.processor = processor;
+        }
+
+        @Override
+        protected void doProcess(List<Object> entry) throws Throwable {
+            for (Object item : entry) {
+                processor.process(toNodeRef(item));
+            }
+        }
+    }
+
+    /**
+     * Calls a Java {@link Processors.NodeBatchProcessor} bean on each batch.
+     */
+    public static class JavaBatchWorker extends BaseProcessWorker<List<Object>> {
+
+        private Processors.NodeBatchProcessor processor;
+
+        public JavaBatchWorker(Processors.NodeBatchProcessor processor, String userName,
+                               BatchJobParameters job, ServiceRegistry sr, BehaviourFilter behaviourFilter,
+                               Log logger, BaseScopableProcessorExtension scopable) {
+            super(null, null, userName, job, sr, behaviourFilter, logger, scopable);
+            this.processor = processor;
+        }
+
+        @Override
+        protected void doProcess(List<Object> entry) throws Throwable {
+            List<NodeRef> nodes = new ArrayList<>(entry.size());
+            for (Object item : entry) {
+                nodes.add(toNodeRef(item));
+            }
+            processor.process(nodes);
+        }
+    }
+
+}
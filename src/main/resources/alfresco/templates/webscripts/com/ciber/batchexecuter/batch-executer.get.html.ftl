@@ -71,9 +71,12 @@
          <th>Batch Size</th>
          <th>Threads</th>
          <th>Disabled Rules</th>
+         <th>Disabled Behaviours</th>
          <th>Node Function</th>
          <th>Batch Function</th>
          <th>Status</th>
+         <th>Cluster</th>
+         <th>Stats</th>
          <th>Action</th>
       </tr>
       </thead>
@@ -84,10 +87,58 @@
             <td>${job.batchSize?c}</td>
             <td>${job.threads?c}</td>
             <td>${job.disableRules?string}</td>
+            <td><#list job.disableBehaviours as className>${className}<#if className_has_next>, </#if></#list></td>
             <td>${job.onNodeFunction!""}</td>
             <td>${job.onBatchFunction!""}</td>
             <#assign status = job.status?string/>
-            <td>${status}</td>
+            <td>${status}<#if job.statusMessage??><br/>${job.statusMessage?html}</#if></td>
+            <td>
+               <#if job.clusterProgress??>
+               <#assign progress = job.clusterProgress/>
+               ${job.clusterRunId?html}: ${progress.processed?c} items<#if (progress.total >= 0)> of ${progress.total?c}</#if>
+               <#list progress.members?keys as member>
+               <br/>${member?html}: ${progress.members[member]?c} items
+               </#list>
+               <#else>
+               local
+               </#if>
+            </td>
+            <td>
+               <#assign stats = job.stats/>
+               batches: ${stats.batches?c}, items: ${stats.items?c}<#if (job.estimatedSize >= 0)> of about ${job.estimatedSize?c}</#if>
+               <#if (job.estimatedSecondsLeft >= 0)>
+               <br/>time left: about ${(job.estimatedSecondsLeft / 60)?floor?c} min ${(job.estimatedSecondsLeft % 60)?c} s
+               </#if>
+               <br/>retries: ${stats.retries?c} in ${stats.retriedBatches?c} batches, max ${stats.maxBatchRetries?c}
+               <#if (stats.throttles > 0)>
+               <br/>paused for heap: ${stats.throttles?c} times, ${(stats.throttledMillis / 1000)?floor?c} s
+               </#if>
+               <#if job.cache?? && (job.cache.hits + job.cache.misses > 0)>
+               <br/>cache: ${job.cache.hits?c} hits, ${job.cache.misses?c} misses, ${job.cache.size?c} of ${job.cache.maxSize?c} entries
+               </#if>
+               <#if job.loader??>
+               <br/>loader: ${job.loader.keys?c} keys in ${job.loader.batchLoads?c} batch loads, ${job.loader.singleLoads?c} single loads
+               </#if>
+               <#if job.stages??>
+               <#list job.stages as stage>
+               <br/>stage ${stage.number?c}: ${stage.threads?c} threads<#if stage.readOnly>, read-only</#if><#if (stage.queueSize >= 0)>, queue ${stage.queued?c} of ${stage.queueSize?c}</#if><#if stage.next??>, passed ${stage.passed?c}</#if>
+               </#list>
+               </#if>
+               <#if job.sampler??>
+               <br/>sample: ${job.sampler.summary}
+               </#if>
+               <#if job.emittedWork?? && (job.emittedWork.count > 0)>
+               <br/>emitted: ${job.emittedWork.count?c}
+               </#if>
+               <#if job.profiler??>
+               <#assign profiler = job.profiler/>
+               <br/>times:<#list profiler.histogram as bucket><#if (bucket.count > 0)> ${bucket.label}: ${bucket.count?c};</#if></#list>
+               <#list profiler.slowestItems as slow>
+               <br/>${slow.millis?c} ms: ${slow.item?html}<#if (slow.stack?size > 0)>
+               <span title="<#list slow.stack as frame>${frame?html}&#10;</#list>">[stack]</span></#if>
+               </#list>
+               </#if>
+            </td>
             <td>
                <#if status != "CANCELED" && status != "FINISHED">
                <div title="Cancel job" class="cancel" onclick="cancel('${job.id?replace("'", "\\'")}');"></div>
@@ -82,13 +82,18 @@ public class BaseScriptingTest {
         return sr.getScriptService().executeScriptString(script, model);
     }
 
-    protected void executeWithModelNonBlocking(final String script) {
-        new Thread(new Runnable() {
+    /**
+     * @return the started thread, which can be joined to wait for the script to finish.
+     */
+    protected Thread executeWithModelNonBlocking(final String script) {
+        Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
                 AuthenticationUtil.setFullyAuthenticatedUser("admin");
                 executeWithModel(script);
             }
-        }).start();
+        });
+        thread.start();
+        return thread;
     }
 }
@@ -2,10 +2,19 @@ package nl.ciber.alfresco.repo.jscript.batchexecuter;
 
 import nl.ciber.alfresco.repo.jscript.BaseScriptingTest;
 import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.context.ConfigurableApplicationContext;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.ibm.icu.impl.Assert.fail;
 import static org.junit.Assert.*;
@@ -45,6 +54,13 @@ public class ScriptBEExecutionTest extends BaseScriptingTest {
 
     public static final String FUNCTION_NULL = "null";
 
+    private static ScriptBatchExecuter batchExecuter;
+
+    @BeforeClass
+    public static void initContext() {
+        batchExecuter = (ScriptBatchExecuter) ctx.getBean("batchExecuterScript");
+    }
+
     @Test
     public void jsObjectExists() {
         final String script =
@@ -148,6 +164,308 @@ public class ScriptBEExecutionTest extends BaseScriptingTest {
         assertEquals("changed-" + n3, ns.getProperty(d3, ContentModel.PROP_NAME));
     }
 
+    @Test
+    public void processesChangesSinceWatermark() {
+        final String n1 = "old.bin";
+        final String n2 = "new.bin";
+        NodeRef d1 = createTestDocument(n1);
+        final String script = String.format(
+                "batchExecuter.processFolderRecursively({\n" +
+                "    root: search.findNode('%2$s'),\n" +
+                "    since: 'test-%3$d',\n" +
+                "    onNode: %1$s\n" +
+                "});\n" +
+                "batchExecuter.getWatermark('test-%3$d');\n",
+                "%s", testHome, System.currentTimeMillis());
+
+        // First run only moves the watermark past existing nodes
+        Object watermark = execute(String.format(script, "function(node) {}"));
+        assertNotNull(watermark);
+
+        NodeRef d2 = createTestDocument(n2);
+        execute(String.format(script, FUNCTION_RENAME_NODE));
+
+        // Changes committed shortly before the watermark are read again, as their transactions may commit late
+        assertEquals("changed-" + n1, ns.getProperty(d1, ContentModel.PROP_NAME));
+        assertEquals("changed-" + n2, ns.getProperty(d2, ContentModel.PROP_NAME));
+    }
+
+    @Test
+    public void filtersNodesBeforeCallingFunction() {
+        NodeRef f1 = sr.getFileFolderService().create(testHome, "folder1", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d1 = createTestDocument("doc1.bin", f1);
+        NodeRef f2 = sr.getFileFolderService().create(f1, "folder2", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d2 = createTestDocument("doc2.bin", f2);
+
+        execute(String.format(
+                "batchExecuter.processFolderRecursively({\n" +
+                "    root: search.findNode('%s'),\n" +
+                "    filter: {types: ['cm:content'], maxDepth: 1},\n" +
+                "    onNode: function(node) {\n" +
+                "        node.properties['cm:name'] = 'changed-' + node.name;\n" +
+                "        node.save();\n" +
+                "    }\n" +
+                "});\n",
+                f1));
+
+        assertEquals("changed-doc1.bin", ns.getProperty(d1, ContentModel.PROP_NAME));
+        assertEquals("folder1", ns.getProperty(f1, ContentModel.PROP_NAME));
+        assertEquals("folder2", ns.getProperty(f2, ContentModel.PROP_NAME));
+        // Deeper than maxDepth
+        assertEquals("doc2.bin", ns.getProperty(d2, ContentModel.PROP_NAME));
+    }
+
+    @Test
+    public void prunesFoldersRejectedByOnFolder() {
+        NodeRef f1 = sr.getFileFolderService().create(testHome, "folder1", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d1 = createTestDocument("doc1.bin", f1);
+        NodeRef archive = sr.getFileFolderService().create(f1, "Archive", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d2 = createTestDocument("doc2.bin", archive);
+
+        execute(String.format(
+                "batchExecuter.processFolderRecursively({\n" +
+                "    root: search.findNode('%s'),\n" +
+                "    onFolder: function(folder) { return folder.name != 'Archive'; },\n" +
+                "    onNode: %s\n" +
+                "});\n",
+                f1, FUNCTION_RENAME_NODE));
+
+        assertEquals("changed-doc1.bin", ns.getProperty(d1, ContentModel.PROP_NAME));
+        assertEquals("doc2.bin", ns.getProperty(d2, ContentModel.PROP_NAME));
+    }
+
+    @Test
+    public void updatesPropertiesOnCommit() {
+        NodeRef d1 = createTestDocument("node1.bin");
+        NodeRef d2 = createTestDocument("node2.bin");
+
+        execute(String.format(
+                "batchExecuter.processArray({\n" +
+                "    items: [search.findNode('%s'), search.findNode('%s')],\n" +
+                "    batchSize: 2,\n" +
+                "    onNode: function(node) {\n" +
+                "        batchExecuter.update(node, {'cm:title': 'title of ' + node.name});\n" +
+                "        batchExecuter.update(node, {'cm:description': 'description'});\n" +
+                "    }\n" +
+                "});\n",
+                d1, d2));
+
+        assertEquals("title of node1.bin", ns.getProperty(d1, ContentModel.PROP_TITLE).toString());
+        assertEquals("title of node2.bin", ns.getProperty(d2, ContentModel.PROP_TITLE).toString());
+        assertEquals("description", ns.getProperty(d2, ContentModel.PROP_DESCRIPTION).toString());
+        assertEquals("node2.bin", ns.getProperty(d2, ContentModel.PROP_NAME));
+    }
+
+    @Test
+    public void givesProjectedNodes() {
+        NodeRef f1 = sr.getFileFolderService().create(testHome, "folder1", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d1 = createTestDocument("doc1.bin", f1);
+
+        execute(String.format(
+                "batchExecuter.processFolderRecursively({\n" +
+                "    root: search.findNode('%s'),\n" +
+                "    fields: ['cm:name'],\n" +
+                "    onNode: function(node) {\n" +
+                "        if (node.typeShort == 'cm:content') {\n" +
+                "            batchExecuter.update(node, {'cm:title': 'title of ' + node.properties['cm:name']});\n" +
+                "            node.scriptNode.properties['cm:description'] = 'full node';\n" +
+                "            node.scriptNode.save();\n" +
+                "        }\n" +
+                "    }\n" +
+                "});\n",
+                f1));
+
+        assertEquals("title of doc1.bin", ns.getProperty(d1, ContentModel.PROP_TITLE).toString());
+        assertEquals("full node", ns.getProperty(d1, ContentModel.PROP_DESCRIPTION).toString());
+    }
+
+    @Test
+    public void processesSameParentSerially() {
+        NodeRef f1 = sr.getFileFolderService().create(testHome, "folder1", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef f2 = sr.getFileFolderService().create(testHome, "folder2", ContentModel.TYPE_FOLDER).getNodeRef();
+        for (int i = 0; i < 10; i++) {
+            createTestDocument("doc" + i + ".bin", i % 2 == 0 ? f1 : f2);
+        }
+
+        // Counters on parents are only exact when children of one parent never run in parallel
+        execute(String.format(
+                "batchExecuter.processFolderRecursively({\n" +
+                "    root: search.findNode('%s'),\n" +
+                "    filter: {types: ['cm:content']},\n" +
+                "    partitionBy: 'parent',\n" +
+                "    batchSize: 1,\n" +
+                "    threads: 4,\n" +
+                "    onNode: function(node) {\n" +
+                "        var parent = node.parent;\n" +
+                "        parent.properties['cm:description'] = (parseInt(parent.properties['cm:description'] || '0') + 1) + '';\n" +
+                "        parent.save();\n" +
+                "    }\n" +
+                "});\n",
+                testHome));
+
+        assertEquals("5", ns.getProperty(f1, ContentModel.PROP_DESCRIPTION).toString());
+        assertEquals("5", ns.getProperty(f2, ContentModel.PROP_DESCRIPTION).toString());
+    }
+
+    @Test
+    public void givesPrefetchedContent() {
+        NodeRef d1 = createTestDocument("doc1.txt");
+        ContentWriter writer = sr.getContentService().getWriter(d1, ContentModel.PROP_CONTENT, true);
+        writer.setMimetype("text/plain");
+        writer.setEncoding("UTF-8");
+        writer.putContent("prefetched text");
+
+        execute(String.format(
+                "batchExecuter.processArray({\n" +
+                "    items: [search.findNode('%s')],\n" +
+                "    prefetchContent: true,\n" +
+                "    onNode: function(node, content) {\n" +
+                "        node.properties['cm:title'] = content.content;\n" +
+                "        node.properties['cm:description'] = batchExecuter.getContent(node).mimetype;\n" +
+                "        node.save();\n" +
+                "    }\n" +
+                "});\n",
+                d1));
+
+        assertEquals("prefetched text", ns.getProperty(d1, ContentModel.PROP_TITLE).toString());
+        assertEquals("text/plain", ns.getProperty(d1, ContentModel.PROP_DESCRIPTION).toString());
+    }
+
+    @Test
+    public void callsJavaProcessorBean() {
+        // Registered for this test only, the context is shared by all tests
+        DefaultListableBeanFactory beanFactory = (DefaultListableBeanFactory)
+                ((ConfigurableApplicationContext) ctx).getBeanFactory();
+        beanFactory.registerSingleton("testTitleProcessor", new Processors.NodeProcessor() {
+            @Override
+            public void process(NodeRef node) {
+                ns.setProperty(node, ContentModel.PROP_TITLE, "java " + node.getId());
+            }
+        });
+        try {
+            NodeRef d1 = createTestDocument("doc1");
+            NodeRef d2 = createTestDocument("doc2");
+
+            execute(String.format(
+                    "batchExecuter.processArray({\n" +
+                    "    items: [search.findNode('%s'), '%s'],\n" +
+                    "    onNode: 'testTitleProcessor'\n" +
+                    "});\n",
+                    d1, d2));
+
+            assertEquals("java " + d1.getId(), ns.getProperty(d1, ContentModel.PROP_TITLE));
+            assertEquals("java " + d2.getId(), ns.getProperty(d2, ContentModel.PROP_TITLE));
+        } finally {
+            beanFactory.destroySingleton("testTitleProcessor");
+        }
+    }
+
+    @Test
+    public void rejectsPrefetchContentWithJavaProcessor() {
+        String message = null;
+        try {
+            execute("batchExecuter.processArray({items: [], onNode: 'testTitleProcessor', prefetchContent: true});");
+        } catch (RuntimeException e) {
+            message = e.getMessage();
+        }
+        assertNotNull("Job was not rejected", message);
+        assertTrue(message, message.contains("prefetchContent"));
+    }
+
+    @Test
+    public void processesRepeatedNodesOnce() {
+        NodeRef d1 = createTestDocument("doc1");
+        ns.setProperty(d1, ContentModel.PROP_TITLE, "");
+
+        execute(String.format(
+                "var node = search.findNode('%s');\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: [node, node, '%s'],\n" +
+                "    threads: 1,\n" +
+                "    dedupe: true,\n" +
+                "    onNode: function(node) {\n" +
+                "        node.properties['cm:title'] += 'x';\n" +
+                "        node.save();\n" +
+                "    }\n" +
+                "});\n",
+                d1, d1));
+
+        assertEquals("x", ns.getProperty(d1, ContentModel.PROP_TITLE));
+    }
+
+    @Test
+    public void processesEmittedItems() {
+        NodeRef d1 = createTestDocument("doc1");
+        NodeRef d2 = createTestDocument("doc2");
+        NodeRef d3 = createTestDocument("doc3");
+
+        execute(String.format(
+                "var next = {'%s': '%s', '%s': '%s'};\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: [search.findNode('%s')],\n" +
+                "    threads: 2,\n" +
+                "    onNode: function(node) {\n" +
+                "        node.properties['cm:title'] = 'done';\n" +
+                "        node.save();\n" +
+                "        var ref = next[node.nodeRef.toString()];\n" +
+                "        if (ref) {\n" +
+                "            batchExecuter.emit(search.findNode(ref));\n" +
+                "        }\n" +
+                "    }\n" +
+                "});\n",
+                d1, d2, d2, d3, d1));
+
+        assertEquals("done", ns.getProperty(d1, ContentModel.PROP_TITLE));
+        assertEquals("done", ns.getProperty(d2, ContentModel.PROP_TITLE));
+        assertEquals("done", ns.getProperty(d3, ContentModel.PROP_TITLE));
+    }
+
+    @Test
+    public void deletesFolderFromLeaves() {
+        NodeRef f1 = sr.getFileFolderService().create(testHome, "folder1", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d1 = createTestDocument("doc1.bin", f1);
+        NodeRef f2 = sr.getFileFolderService().create(f1, "folder2", ContentModel.TYPE_FOLDER).getNodeRef();
+        NodeRef d2 = createTestDocument("doc2.bin", f2);
+        NodeRef linked = createTestDocument("linked.bin");
+        ns.addChild(f2, linked, ContentModel.ASSOC_CONTAINS, ContentModel.ASSOC_CONTAINS);
+
+        execute(String.format(
+                "batchExecuter.processDelete({\n" +
+                "    root: search.findNode('%s'),\n" +
+                "    batchSize: 1,\n" +
+                "    threads: 2,\n" +
+                "    archive: false\n" +
+                "});\n",
+                f1));
+
+        for (NodeRef node : new NodeRef[]{f1, d1, f2, d2}) {
+            assertFalse(ns.exists(node));
+            assertFalse(ns.exists(new NodeRef(StoreRef.STORE_REF_ARCHIVE_SPACESSTORE, node.getId())));
+        }
+        // Only linked into the folder
+        assertTrue(ns.exists(linked));
+    }
+
+    @Test
+    public void disablesBehaviours() {
+        NodeRef d1 = createTestDocument("node1.bin");
+        Object modified = ns.getProperty(d1, ContentModel.PROP_MODIFIED);
+
+        execute(String.format(
+                "batchExecuter.processArray({\n" +
+                "    items: [search.findNode('%s')],\n" +
+                "    disableBehaviours: ['cm:auditable'],\n" +
+                "    onNode: function(node) {\n" +
+                "        node.properties['cm:title'] = 'changed';\n" +
+                "        node.save();\n" +
+                "    }\n" +
+                "});\n",
+                d1));
+
+        assertEquals("changed", ns.getProperty(d1, ContentModel.PROP_TITLE).toString());
+        assertEquals(modified, ns.getProperty(d1, ContentModel.PROP_MODIFIED));
+    }
+
     @Test
     public void preservesScope() {
         final String n1 = "node1.bin";
@@ -175,12 +493,6 @@ public class ScriptBEExecutionTest extends BaseScriptingTest {
 
         execute(script);
 
-        // Verify that names changed after a while
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            fail(e);
-        }
         assertEquals("changed-" + n1, ns.getProperty(d1, ContentModel.PROP_NAME));
         assertEquals("changed-" + n2, ns.getProperty(d2, ContentModel.PROP_NAME));
     }
@@ -231,6 +543,70 @@ public class ScriptBEExecutionTest extends BaseScriptingTest {
         assertTrue(((String) result).contains("Tests"));
     }
 
+    @Test
+    public void clusterMembersShareArray() throws InterruptedException {
+        final int itemsCount = 40;
+        final int batchSize = 2;
+        final String runId = "test-" + System.currentTimeMillis();
+        final String script =
+                "var array = [];\n" +
+                "for (var i = 0; i < " + itemsCount + "; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: " + batchSize + ",\n" +
+                "    threads: 2,\n" +
+                "    executeOn: 'cluster',\n" +
+                "    clusterRunId: '" + runId + "',\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(50);\n" +
+                "        companyhome.childByNamePath('Tests').createFile('item-' + item + '.bin');\n" +
+                "    }\n" +
+                "});\n";
+
+        // Two executers sharing one database behave like two cluster members
+        Thread first = executeWithModelNonBlocking(script);
+        Thread second = executeWithModelNonBlocking(script);
+        List<BatchJobParameters> members = new ArrayList<>();
+        long until = System.currentTimeMillis() + 5000;
+        while (members.size() < 2 && System.currentTimeMillis() < until) {
+            for (BatchJobParameters job : batchExecuter.getCurrentJobs()) {
+                if (runId.equals(job.getClusterRunId()) && job.getClusterLeases() != null &&
+                        !members.contains(job)) {
+                    members.add(job);
+                    // Each member publishes its progress as soon as it starts
+                    assertNotNull(job.getClusterProgress());
+                    assertTrue(job.getClusterProgress().getMembers().containsKey(job.getClusterLeases().getMember()));
+                }
+            }
+            Thread.sleep(10);
+        }
+        first.join(30000);
+        second.join(30000);
+        assertEquals("Both members have started", 2, members.size());
+
+        long processed = 0;
+        for (BatchJobParameters job : members) {
+            assertEquals(BatchJobParameters.Status.FINISHED, job.getStatus());
+            assertEquals(0, job.getTotalErrors());
+            assertTrue("Each member has processed some batches", job.getStats().getItems() > 0);
+            processed += job.getStats().getItems();
+        }
+        // A batch is leased once, so the members' batches are disjoint and cover the array
+        assertEquals(itemsCount, processed);
+        // Attributes of the run are removed once both members are finished
+        assertTrue(members.get(0).getClusterLeases().getProgress().getMembers().isEmpty());
+
+        // Each item is created exactly once, otherwise duplicate names would fail
+        Set<String> names = new HashSet<>();
+        for (FileInfo file : sr.getFileFolderService().listFiles(testHome)) {
+            names.add(file.getName());
+        }
+        assertEquals(itemsCount, names.size());
+        for (int i = 0; i < itemsCount; i++) {
+            assertTrue(names.contains("item-" + i + ".bin"));
+        }
+    }
+
     @Test
     public void handlesJavaArray() {
         Object result = executeWithModel(
@@ -1,10 +1,22 @@
 package nl.ciber.alfresco.repo.jscript.batchexecuter;
 
 import nl.ciber.alfresco.repo.jscript.BaseScriptingTest;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.CancellableWorkProvider;
+import nl.ciber.alfresco.repo.jscript.batchexecuter.WorkProviders.ThrottlingWorkProvider;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.dao.ConcurrencyFailureException;
 
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.*;
 
@@ -18,7 +30,11 @@ public class ScriptBEJobManagementTest extends BaseScriptingTest {
 
 //    private static final Log logger = LogFactory.getLog(BaseScriptingTest.class);
 
+    private static final long JOB_TIMEOUT_MS = 30000;
+
     private static ScriptBatchExecuter batchExecuter;
+    /** Keys which have failed once, see {@link #failFirstAttempt(String)} */
+    private static final Set<String> failedOnce = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     @BeforeClass
     public static void initContext() {
@@ -51,6 +67,31 @@ public class ScriptBEJobManagementTest extends BaseScriptingTest {
         assertEquals(null, getJobByNameContains(batchExecuter.getCurrentJobs(), "Company Home"));
     }
 
+    /**
+     * Starts a script in another thread and waits until its job is running.
+     */
+    private BatchJobParameters startJob(String script, String nameText) throws InterruptedException {
+        Thread thread = executeWithModelNonBlocking(script);
+        long until = System.currentTimeMillis() + JOB_TIMEOUT_MS;
+        BatchJobParameters job;
+        while ((job = getJobByNameContains(batchExecuter.getCurrentJobs(), nameText)) == null) {
+            assertTrue("Job has not started", thread.isAlive() && System.currentTimeMillis() < until);
+            Thread.sleep(10);
+        }
+        return job;
+    }
+
+    /**
+     * Waits until a job has finished or is canceled, and is no longer running.
+     */
+    private void waitForJob(BatchJobParameters job) throws InterruptedException {
+        long until = System.currentTimeMillis() + JOB_TIMEOUT_MS;
+        while (batchExecuter.getCurrentJobs().contains(job)) {
+            assertTrue("Job has not finished in time", System.currentTimeMillis() < until);
+            Thread.sleep(10);
+        }
+    }
+
     private BatchJobParameters getJobByNameContains(Collection<BatchJobParameters> jobs, String text) {
         BatchJobParameters job = null;
         for (BatchJobParameters jobParameters : jobs) {
@@ -62,6 +103,360 @@ public class ScriptBEJobManagementTest extends BaseScriptingTest {
         return job;
     }
 
+    @Test
+    public void jobHasRetryPolicyAndStats() throws InterruptedException {
+        executeWithModelNonBlocking(
+                "var array = [];\n" +
+                "for (var i = 0; i < 100; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    retry: {maxRetries: 3, minRetryWaitMs: 10, maxRetryWaitMs: 50},\n" +
+                "    onNode: function(item) {\n" +
+                "        companyhome.childByNamePath('Tests').createFile('retry-' + item + '.bin');\n" +
+                "    }\n" +
+                "});\n"
+        );
+        Thread.sleep(200);
+        Collection<BatchJobParameters> jobs = batchExecuter.getCurrentJobs();
+        BatchJobParameters job = getJobByNameContains(jobs, "100-items");
+        assertNotNull(job);
+        assertFalse(job.getRetryPolicy().isEmpty());
+        assertEquals(3, job.getRetryPolicy().getMaxRetries());
+        assertEquals(10, job.getRetryPolicy().getMinRetryWaitMs());
+        assertEquals(50, job.getRetryPolicy().getMaxRetryWaitMs());
+
+        Thread.sleep(2000);
+        assertEquals(20, job.getStats().getBatches());
+        assertEquals(100, job.getStats().getItems());
+        assertEquals(0, job.getStats().getRetries());
+    }
+
+    @Test
+    public void retriesAreCounted() throws InterruptedException {
+        failedOnce.clear();
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 20; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    retry: {maxRetries: 3, minRetryWaitMs: 10, maxRetryWaitMs: 50},\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(20);\n" +
+                "        if (item % 10 == 0) {\n" +
+                "            Packages." + ScriptBEJobManagementTest.class.getName() +
+                        ".failFirstAttempt('retry-' + item);\n" +
+                "        }\n" +
+                "        companyhome.childByNamePath('Tests').createFile('retry-' + item + '.bin');\n" +
+                "    }\n" +
+                "});\n", "20-items");
+        waitForJob(job);
+
+        // Batches of items 0 and 10 commit on their second attempt
+        assertEquals(0, job.getTotalErrors());
+        assertEquals(4, job.getStats().getBatches());
+        assertEquals(2, job.getStats().getRetries());
+        assertEquals(2, job.getStats().getRetriedBatches());
+        assertEquals(1, job.getStats().getMaxBatchRetries());
+        assertEquals(20, sr.getFileFolderService().listFiles(testHome).size());
+    }
+
+    /**
+     * Fails the first call with a key with an exception the transaction is retried on.
+     */
+    public static void failFirstAttempt(String key) {
+        if (failedOnce.add(key)) {
+            throw new ConcurrencyFailureException("First attempt of " + key + " fails");
+        }
+    }
+
+    @Test
+    public void folderSizeIsEstimated() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            createTestDocument("estimated-" + i + ".bin");
+        }
+        BatchJobParameters job = startJob(
+                "batchExecuter.processFolderRecursively({\n" +
+                "    root: companyhome.childByNamePath('Tests'),\n" +
+                "    batchSize: 2,\n" +
+                "    threads: 1,\n" +
+                "    estimateSize: true,\n" +
+                "    onNode: function(node) { java.lang.Thread.sleep(50); }\n" +
+                "});\n", "Tests");
+        long until = System.currentTimeMillis() + JOB_TIMEOUT_MS;
+        while (job.getEstimatedSize() < 0 || job.getStats().getItems() == 0) {
+            assertTrue("Size has not been estimated in time", System.currentTimeMillis() < until);
+            Thread.sleep(10);
+        }
+        // Every random path from the folder goes through one of its 20 documents
+        assertEquals(21, job.getEstimatedSize());
+        assertTrue(job.getEstimatedSecondsLeft() >= 0);
+        waitForJob(job);
+    }
+
+    @Test
+    public void slowItemsAreProfiled() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 30; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    profile: {top: 3, stackAfterMs: 100},\n" +
+                "    onNode: function(item) {\n" +
+                "        if (item == 7) { java.lang.Thread.sleep(400); }\n" +
+                "    }\n" +
+                "});\n", "30-items");
+        waitForJob(job);
+
+        ItemProfiler profiler = job.getProfiler();
+        assertEquals(3, profiler.getSlowestItems().size());
+        ItemProfiler.SlowItem slowest = profiler.getSlowestItems().get(0);
+        assertEquals("7", slowest.getItem());
+        assertTrue(slowest.getMillis() >= 400);
+        assertFalse(slowest.getStack().isEmpty());
+        long count = 0;
+        for (ItemProfiler.Bucket bucket : profiler.getHistogram()) {
+            count += bucket.getCount();
+        }
+        assertEquals(30, count);
+    }
+
+    @Test
+    public void jobIsCanceledWhenBatchesKeepFailing() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 40; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 1,\n" +
+                "    threads: 1,\n" +
+                "    maxConsecutiveFailures: 3,\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(50);\n" +
+                "        throw 'broken';\n" +
+                "    }\n" +
+                "});\n", "40-items");
+        waitForJob(job);
+
+        assertEquals(BatchJobParameters.Status.CANCELED, job.getStatus());
+        assertNotNull(job.getStatusMessage());
+        assertTrue(job.getStats().getBatches() < 10);
+    }
+
+    @Test
+    public void cachedValueIsComputedOnce() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 20; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 2,\n" +
+                "    threads: 4,\n" +
+                "    onNode: function(item) {\n" +
+                "        var value = batchExecuter.cache.get('key', function(key) {\n" +
+                "            java.lang.Thread.sleep(100);\n" +
+                "            return key + '-value';\n" +
+                "        });\n" +
+                "        if (value != 'key-value') { throw 'wrong value ' + value; }\n" +
+                "    }\n" +
+                "});\n", "20-items");
+        waitForJob(job);
+
+        assertEquals(0, job.getTotalErrors());
+        assertEquals(1, job.getCache().getMisses());
+        assertEquals(19, job.getCache().getHits());
+        assertEquals(1, job.getCache().getSize());
+    }
+
+    @Test
+    public void cacheFailsComputeFunctionAskingForItsOwnKey() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 10; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(50);\n" +
+                "        batchExecuter.cache.get('key' + item, function(key) {\n" +
+                "            return batchExecuter.cache.get(key, function(key) { return 'value'; });\n" +
+                "        });\n" +
+                "    }\n" +
+                "});\n", "10-items");
+        waitForJob(job);
+
+        // Items fail instead of waiting for themselves forever
+        assertEquals(BatchJobParameters.Status.FINISHED, job.getStatus());
+        assertTrue(job.getTotalErrors() > 0);
+    }
+
+    @Test
+    public void loaderLoadsValuesOncePerBatch() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 10; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    loader: {\n" +
+                "        keys: function(item) { return 'key' + item; },\n" +
+                "        load: function(keys) {\n" +
+                "            java.lang.Thread.sleep(100);\n" +
+                "            return keys.map(function(key) { return key + '-value'; });\n" +
+                "        }\n" +
+                "    },\n" +
+                "    onNode: function(item) {\n" +
+                "        var value = batchExecuter.loader.load('key' + item);\n" +
+                "        if (value != 'key' + item + '-value') { throw 'wrong value ' + value; }\n" +
+                "    }\n" +
+                "});\n", "10-items");
+        waitForJob(job);
+
+        assertEquals(0, job.getTotalErrors());
+        BatchLoader loader = job.getLoader();
+        assertEquals(2, loader.getBatchLoads());
+        assertEquals(10, loader.getKeys());
+        assertEquals(10, loader.getCalls());
+        assertEquals(0, loader.getSingleLoads());
+    }
+
+    @Test
+    public void sampleRunKeepsNothing() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 100; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    sample: {count: 10},\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(20);\n" +
+                "        companyhome.childByNamePath('Tests').createFile('sample-' + item + '.bin');\n" +
+                "    }\n" +
+                "});\n", "100-items");
+        waitForJob(job);
+
+        assertEquals(BatchJobParameters.Status.FINISHED, job.getStatus());
+        assertEquals(0, job.getTotalErrors());
+        Sampler sampler = job.getSampler();
+        assertEquals(100, sampler.getSeenItems());
+        assertEquals(10, sampler.getSampledItems());
+        assertEquals(0, sampler.getFailedBatches());
+        assertFalse(sampler.getEstimates(job.getBatchSize()).isEmpty());
+        assertEquals(0, sr.getFileFolderService().listFiles(testHome).size());
+    }
+
+    @Test
+    public void stagesPassReturnedValues() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 20; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    stages: [{\n" +
+                "        threads: 4,\n" +
+                "        readOnly: true,\n" +
+                "        onNode: function(item) {\n" +
+                "            companyhome.childByNamePath('Tests').createFile('analysis-' + item + '.bin');\n" +
+                "            return item % 2 == 0 ? 'written-' + item : null;\n" +
+                "        }\n" +
+                "    }, {\n" +
+                "        threads: 1,\n" +
+                "        queueSize: 2,\n" +
+                "        onNode: function(name) {\n" +
+                "            companyhome.childByNamePath('Tests').createFile(name + '.bin');\n" +
+                "        }\n" +
+                "    }]\n" +
+                "});\n", "20-items");
+        waitForJob(job);
+
+        assertEquals(BatchJobParameters.Status.FINISHED, job.getStatus());
+        assertEquals(0, job.getTotalErrors());
+        assertEquals(10, job.getStages().get(0).getPassed());
+        // Files of the read-only stage are rolled back
+        assertEquals(10, sr.getFileFolderService().listFiles(testHome).size());
+    }
+
+    @Test
+    public void heapMonitorDoesNotPauseJobWhileHeapIsFree() throws InterruptedException {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 30; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 5,\n" +
+                "    threads: 2,\n" +
+                "    maxHeapUsage: 0.95,\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(10);\n" +
+                "    }\n" +
+                "});\n", "30-items");
+        waitForJob(job);
+
+        assertEquals(BatchJobParameters.Status.FINISHED, job.getStatus());
+        assertEquals(30, job.getStats().getItems());
+        assertEquals(0, job.getStats().getThrottles());
+    }
+
+    @Test
+    public void heapMonitorPausesFeedingUnderPressure() {
+        HeapMonitor monitor = HeapMonitor.parse(0.99, "maxHeapUsage");
+        Assume.assumeTrue(monitor.start());
+        final List<String> events = new ArrayList<>();
+        ContentPrefetcher prefetcher = new ContentPrefetcher(sr, "admin", 1, "heap-test",
+                LogFactory.getLog(ScriptBEJobManagementTest.class)) {
+            @Override
+            public void setPaused(boolean paused) {
+                events.add(paused ? "paused" : "resumed");
+                super.setPaused(paused);
+            }
+        };
+        try {
+            CancellableWorkProvider<Object> source = new CancellableWorkProvider<Object>() {
+                @Override
+                public int getTotalEstimatedWorkSize() {
+                    return 1;
+                }
+
+                @Override
+                public Collection<Object> getNextWork() {
+                    events.add("fed");
+                    return Collections.<Object>singletonList("item");
+                }
+
+                @Override
+                public boolean cancel() {
+                    return false;
+                }
+            };
+            JobStats stats = new JobStats();
+            ThrottlingWorkProvider<Object> provider = new ThrottlingWorkProvider<>(source, monitor, prefetcher,
+                    stats, "heap-test", LogFactory.getLog(ScriptBEJobManagementTest.class));
+
+            // Old generation left full by a collection, as the JVM would report it
+            monitor.thresholdExceeded(monitor.getPoolName(), new MemoryUsage(0, 100, 100, 100));
+            assertTrue(monitor.isUnderPressure());
+            provider.getNextWork();
+
+            // The real heap is free, so feeding resumes at the first check
+            assertEquals(Arrays.asList("paused", "resumed", "fed"), events);
+            assertEquals(1, stats.getThrottles());
+            assertFalse(monitor.isUnderPressure());
+        } finally {
+            prefetcher.shutdown();
+            monitor.stop();
+        }
+    }
+
     @Test
     public void jobCanBeStopped() throws Exception {
         final int maxCreateCount = 100;
@@ -98,6 +493,49 @@ public class ScriptBEJobManagementTest extends BaseScriptingTest {
         assertTrue("Job was canceled", createdCount < maxCreateCount);
     }
 
+    @Test
+    public void jobCanBeResumedFromCheckpoint() throws Exception {
+        BatchJobParameters job = startJob(
+                "var array = [];\n" +
+                "for (var i = 0; i < 40; i++) { array[i] = i; }\n" +
+                "batchExecuter.processArray({\n" +
+                "    items: array,\n" +
+                "    batchSize: 2,\n" +
+                "    threads: 1,\n" +
+                "    checkpoint: 0,\n" +
+                "    onNode: function(item) {\n" +
+                "        java.lang.Thread.sleep(50);\n" +
+                "        companyhome.childByNamePath('Tests').createFile('first-' + item + '.bin');\n" +
+                "    }\n" +
+                "});\n", "40-items");
+        // Cancel once some batches are committed
+        long until = System.currentTimeMillis() + JOB_TIMEOUT_MS;
+        while (job.getStats().getBatches() < 2) {
+            assertTrue("Job has not processed batches in time", System.currentTimeMillis() < until);
+            Thread.sleep(10);
+        }
+        assertTrue(batchExecuter.cancelJob(job.getId()));
+        waitForJob(job);
+        assertTrue(batchExecuter.getCheckpoints().containsKey(job.getId()));
+        int firstCount = sr.getFileFolderService().listFiles(testHome).size();
+        assertTrue("Job was canceled", firstCount > 0 && firstCount < 40);
+
+        executeWithModel(
+                "var array = [];\n" +
+                "for (var i = 0; i < 40; i++) { array[i] = i; }\n" +
+                "batchExecuter.resumeJob('" + job.getId() + "', {\n" +
+                "    items: array,\n" +
+                "    onNode: function(item) {\n" +
+                "        companyhome.childByNamePath('Tests').createFile('second-' + item + '.bin');\n" +
+                "    }\n" +
+                "});\n"
+        );
+
+        // Each item is processed by exactly one of the runs
+        assertEquals(40, sr.getFileFolderService().listFiles(testHome).size());
+        assertFalse(batchExecuter.getCheckpoints().containsKey(job.getId()));
+    }
+
     @Test
     public void memoryAllocationDoesNotIncreaseWhileExecuting() {
         // TODO: implement